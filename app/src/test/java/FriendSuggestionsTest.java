@@ -0,0 +1,105 @@
+// FriendSuggestionsTest.java
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FriendSuggestions' incrementally maintained tables match tables built
+ * from scratch. Builds a random graph of users with hundreds of friends
+ * each, has 100 readers ask for suggestions, then runs random request +
+ * accept pairs from several threads while the readers keep asking.
+ * Afterwards every reader's live suggestions must equal those of a fresh
+ * FriendSuggestions.
+ */
+class FriendSuggestionsTest {
+    private static final int USERS = 2_000;
+    private static final int FRIENDS_PER_USER = 500;
+    private static final int READERS = 100;
+    private static final int THREADS = 8;
+    private static final int ACCEPTS = 10_000;
+
+    @TempDir Path dir;
+
+    @Test
+    void liveTablesMatchFreshOnesAfterConcurrentAccepts() throws Exception {
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        UserStore store = new UserStore(dir.resolve("users.txt").toString(), dir.resolve("users.log").toString(), false);
+        store.load(users);
+        FriendSuggestions suggestions = new FriendSuggestions(users);
+        SocialGraph graph = new SocialGraph(users, store, suggestions);
+
+        Random random = new Random(42);
+        String[] countries = {"BD", "IN", "US"};
+        String[] names = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            names[i] = "u" + i;
+            ChipiChipiServer.User user = new ChipiChipiServer.User(names[i], "pw", 18 + random.nextInt(40), "x",
+                    countries[random.nextInt(countries.length)]);
+            users.put(user.username, user);
+        }
+        // friends are built directly, as loading users.txt would: half of each list comes from other users' picks
+        for (int i = 0; i < USERS; i++) {
+            ChipiChipiServer.User user = users.get(names[i]);
+            for (int k = 0; k < FRIENDS_PER_USER / 2; k++) {
+                int f = random.nextInt(USERS);
+                if (f == i) continue;
+                user.friends.add(names[f]);
+                users.get(names[f]).friends.add(user.username);
+            }
+        }
+        List<ChipiChipiServer.User> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) readers.add(users.get(names[i]));
+        for (ChipiChipiServer.User reader : readers) suggestions.suggest(reader);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                writers.add(pool.submit(() -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    go.await();
+                    for (int i = 0; i < ACCEPTS / THREADS; i++) {
+                        // bias towards the readers' neighbourhoods so their tables actually change
+                        String a = names[r.nextInt(i % 2 == 0 ? READERS : USERS)];
+                        String b = names[r.nextInt(USERS)];
+                        if (a.equals(b)) continue;
+                        graph.request(a, b);
+                        graph.accept(b, a);
+                    }
+                    return null;
+                }));
+            }
+            Future<?> reading = pool.submit(() -> {
+                go.await();
+                while (!writers.stream().allMatch(Future::isDone)) {
+                    for (ChipiChipiServer.User reader : readers) suggestions.suggest(reader);
+                }
+                return null;
+            });
+            go.countDown();
+            for (Future<?> f : writers) f.get();
+            reading.get();
+        } finally {
+            pool.shutdown();
+            store.close();
+        }
+
+        // every live table must match a fresh build; stale ones are rebuilt by suggest() itself
+        FriendSuggestions fresh = new FriendSuggestions(users);
+        List<String> problems = new ArrayList<>();
+        for (ChipiChipiServer.User reader : readers) {
+            List<FriendSuggestions.Suggestion> live = suggestions.suggest(reader);
+            List<FriendSuggestions.Suggestion> expected = fresh.suggest(reader);
+            if (!live.equals(expected)) problems.add(reader.username + ": " + live + " != " + expected);
+        }
+        assertTrue(problems.isEmpty(), problems.size() + " of " + READERS + " readers differ, e.g.\n"
+                + String.join("\n", problems.subList(0, Math.min(5, problems.size()))));
+    }
+}
@@ -0,0 +1,115 @@
+// HomeTimelineTest.java
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A home timeline inbox built while friends are posting still gets every
+ * post, and no post twice. Readers follow a few hundred authors. Each round
+ * drops every reader's inbox, then has half the threads post as random
+ * authors while the other half read the readers' first pages, so inboxes are
+ * built in the middle of the fan-out. Afterwards each reader's first page
+ * must equal the newest posts found in the authors' own indexes.
+ */
+class HomeTimelineTest {
+    private static final int READERS = 50;
+    private static final int AUTHORS = 300;
+    private static final int POSTS_PER_ROUND = 200;
+    private static final int ROUNDS = 50;
+    private static final int THREADS = 8;
+
+    @TempDir Path dir;
+
+    @Test
+    void inboxesBuiltDuringFanOutHoldEveryPostOnce() throws Exception {
+        PostStore store = new PostStore(dir.resolve("posts.txt").toString(), false, false, 0);
+        store.open();
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        List<ChipiChipiServer.User> readers = new ArrayList<>();
+        String[] authors = new String[AUTHORS];
+        for (int a = 0; a < AUTHORS; a++) {
+            authors[a] = "author" + a;
+            users.put(authors[a], new ChipiChipiServer.User(authors[a], "pw", 30, "x", "BD"));
+        }
+        for (int r = 0; r < READERS; r++) {
+            ChipiChipiServer.User reader = new ChipiChipiServer.User("reader" + r, "pw", 30, "x", "BD");
+            users.put(reader.username, reader);
+            readers.add(reader);
+            for (String author : authors) {
+                reader.friends.add(author);
+                users.get(author).friends.add(reader.username);
+            }
+        }
+        HomeTimeline timeline = new HomeTimeline(store, users);
+        // some history, so building an inbox has something to scan
+        for (int i = 0; i < AUTHORS * 5; i++) post(store, timeline, authors[i % AUTHORS], i);
+
+        List<String> problems = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (ChipiChipiServer.User reader : readers) timeline.invalidate(reader.username);
+                CountDownLatch go = new CountDownLatch(1);
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    boolean poster = t % 2 == 0;
+                    tasks.add(pool.submit(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        go.await();
+                        if (poster) {
+                            for (int i = 0; i < POSTS_PER_ROUND / (THREADS / 2); i++) {
+                                post(store, timeline, authors[random.nextInt(AUTHORS)], i);
+                            }
+                        } else {
+                            for (int i = 0; i < READERS; i++) {
+                                timeline.page(readers.get(random.nextInt(READERS)), Integer.MAX_VALUE, PostStore.PAGE_SIZE);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                go.countDown();
+                for (Future<?> task : tasks) task.get();
+
+                for (ChipiChipiServer.User reader : readers) {
+                    List<Integer> page = ids(timeline.page(reader, Integer.MAX_VALUE, PostStore.PAGE_SIZE));
+                    List<Integer> expected = newest(store, reader, PostStore.PAGE_SIZE);
+                    if (!page.equals(expected)) {
+                        problems.add("round " + round + ": " + reader.username + " sees " + page + " instead of " + expected);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(problems.isEmpty(), problems.size() + " wrong pages, e.g.\n"
+                + String.join("\n", problems.subList(0, Math.min(10, problems.size()))));
+    }
+
+    /** What savePost does for the timeline: store the post, then fan it out. */
+    private static void post(PostStore store, HomeTimeline timeline, String author, int n) throws IOException {
+        int id = store.append(author, "2025-08-17 04:05", "post " + n);
+        timeline.onPost(author, id);
+    }
+
+    private static List<Integer> ids(List<PostStore.Post> posts) {
+        List<Integer> ids = new ArrayList<>();
+        for (PostStore.Post post : posts) ids.add(post.id());
+        return ids;
+    }
+
+    private static List<Integer> newest(PostStore store, ChipiChipiServer.User reader, int limit) {
+        TreeSet<Integer> merged = new TreeSet<>(Comparator.reverseOrder());
+        for (String friend : reader.friends) {
+            for (int id : store.idsByAuthor(friend, Integer.MAX_VALUE, limit)) merged.add(id);
+        }
+        return merged.stream().limit(limit).toList();
+    }
+}
@@ -0,0 +1,47 @@
+// MessageStoreImportTest.java
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The one-time import of the legacy a_b_msg.txt files keeps every
+ * conversation it can read: a file with bytes that are not UTF-8 is
+ * imported with U+FFFD in their place, and one that cannot be read at all is
+ * left out without losing the others or the store.
+ */
+class MessageStoreImportTest {
+    private static final Set<String> USERS = Set.of("alice", "bob", "carol", "dave", "erin", "frank");
+
+    @TempDir Path dir;
+
+    @Test
+    void badBytesAndUnreadableFilesDoNotStopTheImport() throws IOException {
+        byte[] latin1 = "alice: hi\nbob: café\n".getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(dir.resolve("alice_bob_msg.txt"), latin1);
+        Files.writeString(dir.resolve("carol_dave_msg.txt"), "carol: hello\ndave: hey\n");
+        // a directory matches the file pattern but cannot be read as one
+        Files.createDirectory(dir.resolve("erin_frank_msg.txt"));
+
+        MessageStore store = new MessageStore(dir.resolve("messages").toString());
+        store.open(USERS);
+
+        assertEquals(List.of("alice: hi", "bob: caf�"), rendered(store, "alice", "bob"));
+        assertEquals(List.of("carol: hello", "dave: hey"), rendered(store, "carol", "dave"));
+        assertEquals(List.of(), rendered(store, "erin", "frank"));
+        assertFalse(Files.exists(dir.resolve("messages.import")));
+
+        store.append("erin", "frank", "still works");
+        assertEquals(List.of("erin: still works"), rendered(store, "erin", "frank"));
+    }
+
+    private static List<String> rendered(MessageStore store, String a, String b) throws IOException {
+        return store.latest(a, b, MessageStore.PAGE_SIZE).stream().map(MessageStore.Message::render).toList();
+    }
+}
@@ -0,0 +1,138 @@
+// RecordInjectionTest.java
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Text sent through the framed protocol, where \n, \r and \t arrive
+ * unescaped, cannot forge records in users.log, posts.txt or the message
+ * segments. For the thread-per-client server and for --nio, registers users
+ * whose names, passwords or profile fields carry ';', ',' or line breaks
+ * (each must be refused), then posts and sends direct messages holding line
+ * breaks, record-shaped lines and backslashes. After a restart, the forged
+ * users must not exist and every post and message must read back exactly as
+ * sent, one each. Menu clients read the same line breaks escaped, so a
+ * framed post, message or chat line reaches them as one line each.
+ */
+class RecordInjectionTest {
+    private static final String[][] BAD_REGISTRATIONS = {
+            {"mallory\nC;evil;pw;30;F;BD", "pw", "30", "F", "BD"},
+            {"eve;x", "pw", "30", "F", "BD"},
+            {"eve,x", "pw", "30", "F", "BD"},
+            {"trent", "pw\nC;evil;pw;30;F;BD", "30", "F", "BD"},
+            {"trent", "pw", "30", "F;x", "BD"},
+            {"trent", "pw", "30", "F", "BD\r\nC;evil;pw;30;F;BD"},
+    };
+    private static final List<String> TEXTS = List.of(
+            "first line\nC;evil;pw;30;F;BD",
+            "carol;Sun Aug 17 04:05:00 UTC 2025;a forged post",
+            "back\\slash, a literal \\n and a trailing \\",
+            "cr\r\nS;alice;bob",
+            "tab\tand ; semicolons ; kept");
+
+    @ParameterizedTest(name = "nio={0}")
+    @ValueSource(booleans = {false, true})
+    void framedFieldsCannotForgeRecords(boolean nio) throws Exception {
+        try (ServerProcess server = nio ? ServerProcess.start("--nio") : ServerProcess.start()) {
+            ServerConnection alice = connect();
+            for (String[] fields : BAD_REGISTRATIONS) {
+                assertFalse(succeeds(alice, "REGISTER", fields), "registered " + quote(Arrays.asList(fields)));
+            }
+            alice.request("REGISTER", "alice", "pw", "30", "F", "BD").get();
+            alice.request("REGISTER", "bob", "pw", "31", "M", "IN").get();
+            alice.request("LOGIN", "alice", "pw").get();
+            ServerConnection bob = connect();
+            bob.request("LOGIN", "bob", "pw").get();
+            alice.request("FRIEND", "bob").get();
+            bob.request("ACCEPT", "alice").get();
+            for (String text : TEXTS) {
+                alice.request("POST", text).get();
+                alice.request("SEND", "bob", text).get();
+            }
+            alice.close();
+            bob.close();
+
+            server.stop();
+            server.restart();
+
+            ServerConnection check = connect();
+            for (String forged : List.of("evil", "mallory", "eve", "trent")) {
+                assertFalse(succeeds(check, "LOGIN", forged, "pw"), "forged user " + forged + " exists after restart");
+            }
+            check.request("LOGIN", "alice", "pw").get();
+            List<String> posts = check.request("POSTS").get();
+            List<String> postTexts = new ArrayList<>();
+            for (int i = 3; i < posts.size(); i += 4) postTexts.add(0, posts.get(i));
+            assertEquals(quote(TEXTS), quote(postTexts), "posts read back differently");
+            List<String> messages = check.request("MESSAGES", "bob").get();
+            List<String> messageTexts = new ArrayList<>();
+            for (int i = 2; i < messages.size(); i += 3) messageTexts.add(messages.get(i));
+            assertEquals(quote(TEXTS), quote(messageTexts), "messages read back differently");
+            check.close();
+        }
+    }
+
+    @ParameterizedTest(name = "nio={0}")
+    @ValueSource(booleans = {false, true})
+    void framedLineBreaksReachMenuClientsAsOneLine(boolean nio) throws Exception {
+        String text = "line one\nline two\r\nline three";
+        try (ServerProcess server = nio ? ServerProcess.start("--nio") : ServerProcess.start();
+             MenuClient dave = MenuClient.login("dave")) {
+            ServerConnection alice = connect();
+            alice.request("REGISTER", "alice", "pw", "30", "F", "BD").get();
+            alice.request("LOGIN", "alice", "pw").get();
+            alice.request("FRIEND", "dave").get();
+            dave.command("2", "A");
+            dave.command("15", "");
+            alice.request("POST", text).get();
+            alice.request("SEND", "dave", text).get();
+            alice.request("SAY", ChatRoom.GLOBAL, text).get();
+            alice.close();
+
+            List<String> lines = new ArrayList<>();
+            lines.addAll(dave.command("5"));
+            lines.addAll(dave.command("7", "alice"));
+            // the DM and chat pushes come from other threads; give them a few seconds
+            for (int i = 0; i < 50 && !(contains(lines, "[DM from alice]") && contains(lines, "[" + ChatRoom.GLOBAL + "]")); i++) {
+                Thread.sleep(100);
+                lines.addAll(dave.command("3"));
+            }
+            List<String> shown = lines.stream().filter(l -> l.contains("line ")).toList();
+            assertEquals(4, shown.size(), "post, message, DM and chat lines:\n" + String.join("\n", shown));
+            for (String line : shown) {
+                assertTrue(line.contains("line one\\nline two\\r\\nline three"), "not one line: " + line);
+            }
+        }
+    }
+
+    private static boolean contains(List<String> lines, String prefix) {
+        return lines.stream().anyMatch(l -> l.startsWith(prefix));
+    }
+
+    private static boolean succeeds(ServerConnection conn, String verb, String... args) throws InterruptedException {
+        try {
+            conn.request(verb, args).get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static ServerConnection connect() throws Exception {
+        ServerConnection.Listener listener = new ServerConnection.Listener() {
+            @Override public void onDirectMessage(String sender, long id, String text) {}
+            @Override public void onChat(String room, long id, String sender, String text) {}
+            @Override public void onDisconnect(String reason) {}
+        };
+        return ServerConnection.connect("localhost", ServerConnection.DEFAULT_PORT, listener).get();
+    }
+
+    private static String quote(List<String> texts) {
+        return texts.toString().replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
@@ -0,0 +1,123 @@
+// SocialGraphStressTest.java
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers SocialGraph from 64 threads over a small set of users, then
+ * checks that nothing was lost, over many fresh rounds:
+ *
+ *   - every friendship is symmetric
+ *   - pending requests = requests sent - accepted - rejected
+ *   - reloading users.txt + users.log gives exactly the in-memory graph,
+ *     i.e. the log (and the snapshots compacted mid-run) saw every change
+ *     in the order it was applied
+ *
+ * Runs once with plain friend sets and once with CompactGraph views, as in
+ * the server started with --compact-graph.
+ */
+class SocialGraphStressTest {
+    private static final int THREADS = 64;
+    private static final int OPS_PER_THREAD = 2_000;
+    private static final int USERS = 8;
+    private static final int ROUNDS = 50;
+
+    @TempDir Path scratch;
+
+    @AfterEach
+    void plainGraph() {
+        ChipiChipiServer.compactGraph = null;
+    }
+
+    @ParameterizedTest(name = "compactGraph={0}")
+    @ValueSource(booleans = {false, true})
+    void concurrentChangesAreMutualCountedAndLogged(boolean compact) throws Exception {
+        // few users and many fresh rounds: the graph saturates quickly, so contention lives in the early ops
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<String> problems = round(pool, compact, Files.createTempDirectory(scratch, "round"));
+                assertTrue(problems.isEmpty(), "round " + round + ":\n"
+                        + String.join("\n", problems.subList(0, Math.min(20, problems.size()))));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<String> round(ExecutorService pool, boolean compact, Path dir) throws Exception {
+        ChipiChipiServer.compactGraph = compact ? new CompactGraph() : null;
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        UserStore store = new UserStore(dir.resolve("users.txt").toString(), dir.resolve("users.log").toString(), false);
+        store.load(users);
+        SocialGraph graph = new SocialGraph(users, store);
+        for (int i = 0; i < USERS; i++) {
+            ChipiChipiServer.User user = new ChipiChipiServer.User("u" + i, "pw", 20, "x", "BD");
+            users.put(user.username, user);
+            store.userCreated(user);
+        }
+
+        LongAdder sent = new LongAdder();
+        LongAdder accepted = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            done.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                go.await();
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    String a = "u" + random.nextInt(USERS);
+                    String b = "u" + random.nextInt(USERS);
+                    switch (random.nextInt(3)) {
+                        case 0 -> { if (graph.request(a, b) == SocialGraph.RequestResult.SENT) sent.increment(); }
+                        case 1 -> { if (graph.accept(a, b)) accepted.increment(); }
+                        default -> { if (graph.reject(a, b)) rejected.increment(); }
+                    }
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> f : done) f.get();
+        store.close();
+
+        List<String> problems = new ArrayList<>();
+        long pending = 0;
+        for (ChipiChipiServer.User user : users.values()) {
+            pending += user.friendRequests.size();
+            for (String friend : user.friends) {
+                if (!users.get(friend).friends.contains(user.username)) {
+                    problems.add(user.username + " -> " + friend + " is not mutual");
+                }
+            }
+        }
+        long expected = sent.sum() - accepted.sum() - rejected.sum();
+        if (pending != expected) {
+            problems.add("pending requests " + pending + ", expected " + expected);
+        }
+
+        // the reloaded users get a graph of their own, so they cannot share lists with the originals
+        ChipiChipiServer.compactGraph = compact ? new CompactGraph() : null;
+        Map<String, ChipiChipiServer.User> reloaded = new ConcurrentHashMap<>();
+        UserStore replay = new UserStore(dir.resolve("users.txt").toString(), dir.resolve("users.log").toString(), false);
+        replay.load(reloaded);
+        replay.close();
+        for (ChipiChipiServer.User user : users.values()) {
+            ChipiChipiServer.User copy = reloaded.get(user.username);
+            if (copy == null || !copy.friends.equals(user.friends) || !copy.friendRequests.equals(user.friendRequests)) {
+                problems.add(user.username + " differs after reload");
+            }
+        }
+        return problems;
+    }
+}
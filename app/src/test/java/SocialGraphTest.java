@@ -0,0 +1,68 @@
+// SocialGraphTest.java
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A change SocialGraph cannot log is not applied, and the caller hears about
+ * it: the store's log is closed under it, so every append fails.
+ */
+class SocialGraphTest {
+    @TempDir Path dir;
+
+    private final Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+    private UserStore store;
+    private SocialGraph graph;
+
+    @BeforeEach
+    void aliceAndBob() throws IOException {
+        store = new UserStore(dir.resolve("users.txt").toString(), dir.resolve("users.log").toString(), false);
+        store.load(users);
+        graph = new SocialGraph(users, store);
+        assertTrue(graph.register(new ChipiChipiServer.User("alice", "pw", 30, "F", "BD")));
+        assertTrue(graph.register(new ChipiChipiServer.User("bob", "pw", 31, "M", "IN")));
+        assertFalse(graph.register(new ChipiChipiServer.User("bob", "pw2", 32, "M", "US")));
+    }
+
+    @Test
+    void failedRegistrationIsNotVisible() throws IOException {
+        store.close();
+        assertThrows(IOException.class, () -> graph.register(new ChipiChipiServer.User("carol", "pw", 22, "F", "US")));
+        assertFalse(users.containsKey("carol"));
+    }
+
+    @Test
+    void failedRequestAcceptAndRejectChangeNothing() throws IOException {
+        assertEquals(SocialGraph.RequestResult.SENT, graph.request("alice", "bob"));
+        store.close();
+        assertThrows(IOException.class, () -> graph.request("bob", "alice"));
+        assertThrows(IOException.class, () -> graph.accept("bob", "alice"));
+        assertThrows(IOException.class, () -> graph.reject("bob", "alice"));
+        assertEquals(Set.of(), Set.copyOf(users.get("alice").friendRequests));
+        assertEquals(Set.of("alice"), Set.copyOf(users.get("bob").friendRequests));
+        assertFalse(graph.areFriends("alice", "bob"));
+    }
+
+    @Test
+    void logReplaysToTheSameGraph() throws IOException {
+        graph.request("alice", "bob");
+        graph.accept("bob", "alice");
+        graph.request("bob", "alice");
+        store.close();
+        Map<String, ChipiChipiServer.User> reloaded = new ConcurrentHashMap<>();
+        UserStore replay = new UserStore(dir.resolve("users.txt").toString(), dir.resolve("users.log").toString(), false);
+        replay.load(reloaded);
+        replay.close();
+        assertEquals(Set.of("alice", "bob"), reloaded.keySet());
+        assertEquals(Set.of("alice"), Set.copyOf(reloaded.get("bob").friends));
+        assertEquals("pw", reloaded.get("bob").password);
+    }
+}
@@ -0,0 +1,209 @@
+// UserLogRecoveryTest.java
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The user table survives the server dying at any point while it writes
+ * users.log or compacts it into users.txt:
+ *
+ * 1. Torn tails: users.log files whose last record is cut at every byte, or
+ *    followed by zeros as after a power cut, and malformed records in the
+ *    middle, load the complete records only, and load the same again after
+ *    the startup compaction.
+ * 2. Kill during appends: a ServerProcess (with fsync) is killed with
+ *    SIGKILL while clients register and send friend requests; after a
+ *    restart every registration and request it acknowledged is still there.
+ * 3. Kill during compaction: a server whose startup compacts a large
+ *    users.txt and users.log is killed at random points of its startup, each
+ *    time from the original files. After every kill, and after a final
+ *    clean start, the files on disk load to the same table as the originals.
+ */
+class UserLogRecoveryTest {
+    private static final int CLIENTS = 8;
+    private static final int KILLS = 4;
+
+    @TempDir Path scratch;
+
+    @Test
+    void tornTailsLoadOnlyCompleteRecords() throws IOException {
+        String base = "C;alice;pw;30;F;BD\nC;bob;pw;31;M;IN\nS;alice;bob\n";
+        String expected = load(base);
+        List<String> problems = new ArrayList<>();
+        for (String last : List.of("C;carol;pw;22;F;US\n", "A;bob;alice\n", "R;bob;alice\n")) {
+            for (int cut = 0; cut < last.length(); cut++) {
+                String torn = base + last.substring(0, cut);
+                // without a newline, or with zeros where the rest should have been, the record never happened
+                for (String log : List.of(torn, torn + "\0".repeat(8))) {
+                    expect(log, expected, "torn " + quote(last.substring(0, cut)), problems);
+                }
+                // ended by a newline, a cut record may still parse; it only must not stop the load
+                expect(torn + "\n", null, "cut " + quote(last.substring(0, cut)), problems);
+            }
+        }
+        expect("C;alice;pw;30;F;BD\nS;alice\nA;;\nC;bob;pw;x;M;IN\nC;bob;pw;31;M;IN\nS;alice;bob\n", expected,
+                "malformed records in the middle", problems);
+        assertTrue(problems.isEmpty(), String.join("\n", problems));
+    }
+
+    @Test
+    void killDuringAppendsKeepsAcknowledgedChanges() throws Exception {
+        Set<String> registered = ConcurrentHashMap.newKeySet();
+        Set<String> requested = ConcurrentHashMap.newKeySet(); // "from;to"
+        AtomicBoolean killed = new AtomicBoolean();
+        List<String> problems = new ArrayList<>();
+        try (ServerProcess server = ServerProcess.start()) {
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int c = 0; c < CLIENTS; c++) {
+                    int client = c;
+                    executor.submit(() -> {
+                        Random random = new Random(client);
+                        for (int i = 0; !killed.get(); i++) {
+                            String name = "c" + client + "u" + i;
+                            try (MenuClient session = MenuClient.login(name)) {
+                                registered.add(name);
+                                for (int k = 0; k < 3 && i > 0; k++) {
+                                    String target = "c" + client + "u" + random.nextInt(i);
+                                    if (session.command("1", target).contains(SocialGraph.RequestResult.SENT.reply)) {
+                                        requested.add(name + ";" + target);
+                                    }
+                                }
+                            } catch (IOException e) {
+                                return; // the server is gone
+                            }
+                        }
+                    });
+                }
+                Thread.sleep(3000);
+                killed.set(true);
+                server.kill();
+            }
+            server.restart();
+            server.stop();
+
+            Map<String, ChipiChipiServer.User> users = loadUsers(server.file("users.txt"), server.file("users.log"));
+            for (String name : registered) {
+                if (!users.containsKey(name)) problems.add("acknowledged user " + name + " is gone");
+            }
+            for (String request : requested) {
+                String[] p = request.split(";");
+                ChipiChipiServer.User target = users.get(p[1]);
+                if (target == null || !target.friendRequests.contains(p[0])) {
+                    problems.add("acknowledged request " + request + " is gone");
+                }
+            }
+        }
+        assertFalse(registered.isEmpty(), "no registration was acknowledged before the kill");
+        assertTrue(problems.isEmpty(), String.join("\n", problems));
+    }
+
+    @Test
+    void killDuringCompactionKeepsTheTable() throws Exception {
+        // a snapshot and a log big enough that compacting them at startup takes a while
+        Random random = new Random(5);
+        int userCount = 20_000;
+        StringBuilder snapshot = new StringBuilder();
+        for (int i = 0; i < userCount; i++) snapshot.append("u").append(i).append(";pw;30;F;BD;;\n");
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 200_000; i++) {
+            int from = random.nextInt(userCount + i / 10), to = random.nextInt(userCount + i / 10);
+            switch (i % 10) {
+                case 0 -> log.append("C;u").append(userCount + i / 10).append(";pw;25;M;IN\n");
+                case 1, 2, 3, 4, 5 -> log.append("S;u").append(from).append(";u").append(to).append('\n');
+                case 6, 7, 8 -> log.append("A;u").append(from).append(";u").append(to).append('\n');
+                default -> log.append("R;u").append(from).append(";u").append(to).append('\n');
+            }
+        }
+        Path originals = Files.createDirectory(scratch.resolve("originals"));
+        Files.writeString(originals.resolve("users.txt"), snapshot);
+        Files.writeString(originals.resolve("users.log"), log);
+        Path copy = Files.createDirectory(scratch.resolve("copy"));
+        String expected = stateOfCopy(originals, copy);
+
+        try (ServerProcess server = ServerProcess.prepare(List.of())) {
+            for (int k = 0; k < KILLS; k++) {
+                // every round starts from the originals, so each kill lands somewhere in a full compaction
+                Files.copy(originals.resolve("users.txt"), server.file("users.txt"), StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(originals.resolve("users.log"), server.file("users.log"), StandardCopyOption.REPLACE_EXISTING);
+                server.launch();
+                Thread.sleep(100 + random.nextInt(3500)); // startup takes about 3 s on one core
+                server.kill();
+                assertEquals(expected, stateOfCopy(server.file("users.txt").getParent(), copy),
+                        "table differs after kill " + (k + 1));
+            }
+            server.restart();
+            server.stop();
+            assertEquals(expected, stateOfCopy(server.file("users.txt").getParent(), copy),
+                    "table differs after the final restart");
+        }
+    }
+
+    /** Loads {@code log} twice (the first load compacts it); both must equal {@code expected}, if given, and each other. */
+    private void expect(String log, String expected, String what, List<String> problems) throws IOException {
+        String first, second;
+        try {
+            first = load(log);
+            second = state(logDir);
+        } catch (RuntimeException e) {
+            problems.add(what + ": load failed with " + e);
+            return;
+        }
+        if (expected != null && !first.equals(expected)) {
+            problems.add(what + ": loaded\n" + first + "instead of\n" + expected);
+        } else if (!second.equals(first)) {
+            problems.add(what + ": loaded differently after compaction");
+        }
+    }
+
+    private Path logDir; // where load() put the log, for the reload after compaction
+
+    private String load(String log) throws IOException {
+        logDir = Files.createTempDirectory(scratch, "log");
+        Files.write(logDir.resolve("users.log"), log.getBytes(StandardCharsets.UTF_8));
+        return state(logDir);
+    }
+
+    /** Loads users.txt and users.log from {@code from} in a scratch copy, leaving the originals as they are. */
+    private static String stateOfCopy(Path from, Path copy) throws IOException {
+        for (String name : List.of("users.txt", "users.log")) {
+            Files.deleteIfExists(copy.resolve(name));
+            if (Files.exists(from.resolve(name))) Files.copy(from.resolve(name), copy.resolve(name));
+        }
+        return state(copy);
+    }
+
+    private static String state(Path dir) throws IOException {
+        return describe(loadUsers(dir.resolve("users.txt"), dir.resolve("users.log")));
+    }
+
+    private static Map<String, ChipiChipiServer.User> loadUsers(Path snapshot, Path log) throws IOException {
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        UserStore store = new UserStore(snapshot.toString(), log.toString(), false);
+        store.load(users);
+        store.close();
+        return users;
+    }
+
+    private static String describe(Map<String, ChipiChipiServer.User> users) {
+        StringBuilder sb = new StringBuilder();
+        for (ChipiChipiServer.User u : new TreeMap<>(users).values()) {
+            sb.append(u.username).append(';').append(u.password).append(';').append(u.age).append(';').append(u.gender)
+                    .append(';').append(u.country).append(';').append(new TreeSet<>(u.friends))
+                    .append(';').append(new TreeSet<>(u.friendRequests)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\n", "\\n") + "\"";
+    }
+}
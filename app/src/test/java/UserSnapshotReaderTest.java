@@ -0,0 +1,58 @@
+// UserSnapshotReaderTest.java
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A username on several rows of users.txt loads as its last row, friends
+ * included, whether the rows share a chunk or not. Runs once with plain
+ * friend sets and once with CompactGraph, where every row of a name adds to
+ * the same friend list.
+ */
+class UserSnapshotReaderTest {
+    @TempDir Path dir;
+
+    @AfterEach
+    void plainGraph() {
+        ChipiChipiServer.compactGraph = null;
+    }
+
+    @ParameterizedTest(name = "compactGraph={0}")
+    @ValueSource(booleans = {false, true})
+    void lastRowWinsWithItsOwnFriends(boolean compact) throws IOException {
+        ChipiChipiServer.compactGraph = compact ? new CompactGraph() : null;
+        Path file = dir.resolve("users.txt");
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            bw.write("alice;pw1;30;F;BD;bob,carol;dave\n");
+            bw.write("bob;pw1;31;M;IN;alice,carol;\n");
+            bw.write("alice;pw2;32;F;US;erin;\n");
+            // pad past a chunk, so bob's second row is parsed by another task
+            for (int i = 0; i < UserSnapshotReader.CHUNK_BYTES / 20 + 1; i++) {
+                bw.write("user" + i + ";pw;20;x;BD;;\n");
+            }
+            bw.write("bob;pw2;33;M;IN;frank;alice\n");
+        }
+
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        assertEquals(0, UserSnapshotReader.read(file, users));
+
+        ChipiChipiServer.User alice = users.get("alice");
+        assertEquals("pw2", alice.password);
+        assertEquals(Set.of("erin"), Set.copyOf(alice.friends));
+        assertEquals(Set.of(), Set.copyOf(alice.friendRequests));
+        ChipiChipiServer.User bob = users.get("bob");
+        assertEquals("pw2", bob.password);
+        assertEquals(Set.of("frank"), Set.copyOf(bob.friends));
+        assertEquals(Set.of("alice"), Set.copyOf(bob.friendRequests));
+    }
+}
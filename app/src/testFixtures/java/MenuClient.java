@@ -0,0 +1,69 @@
+// MenuClient.java
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A scripted user of the text menus for tests and reports that need plain
+ * connections to a ServerProcess: login() registers and logs in, and each
+ * command() waits for the user menu to come back.
+ */
+public class MenuClient implements Closeable {
+    private static final String MAIN_PROMPT = "Choose option (1-3):";
+    private static final String USER_PROMPT = "Choose option:";
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    private MenuClient() throws IOException {
+        socket = new Socket("localhost", ServerConnection.DEFAULT_PORT);
+        socket.setSoTimeout(60_000);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /** Registers {@code username} with password "pw" and logs in. */
+    static MenuClient login(String username) throws IOException {
+        MenuClient client = new MenuClient();
+        try {
+            client.await(MAIN_PROMPT);
+            client.send("1", username, "pw", "30", "Other", "BD");
+            client.await(MAIN_PROMPT);
+            client.send("2", username, "pw");
+            client.await(USER_PROMPT);
+            return client;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /** Sends a menu choice and the answers to its prompts, then waits for the user menu; returns what came before it. */
+    List<String> command(String... lines) throws IOException {
+        send(lines);
+        return await(USER_PROMPT);
+    }
+
+    private void send(String... lines) {
+        for (String line : lines) out.print(line + "\n");
+        out.flush();
+    }
+
+    private List<String> await(String prompt) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(prompt)) return lines;
+            lines.add(line);
+        }
+        throw new EOFException("Server closed the connection");
+    }
+
+    @Override public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,124 @@
+// ServerProcess.java
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChipiChipiServer running as a separate process in a fresh temporary
+ * directory, on the default port, for tests and reports that drive it
+ * through ServerConnection or MenuClient. The server's output goes to
+ * server.log in that directory; close() stops the server and deletes the
+ * directory. A test can also kill() it and restart() it on the files it
+ * left behind.
+ */
+public class ServerProcess implements Closeable {
+    private final Path dir;
+    private final List<String> command;
+    private Process process;
+
+    private ServerProcess(Path dir, List<String> command) {
+        this.dir = dir;
+        this.command = command;
+    }
+
+    /** Starts the server with {@code args} and waits until it accepts connections. */
+    static ServerProcess start(String... args) throws IOException, InterruptedException {
+        return start(List.of(), args);
+    }
+
+    /** Starts the server with JVM options, e.g. a flight recording, before the main class. */
+    static ServerProcess start(List<String> jvmOptions, String... args) throws IOException, InterruptedException {
+        ServerProcess server = prepare(jvmOptions, args);
+        server.restart();
+        return server;
+    }
+
+    /** Creates the directory without starting the server, so files can be put there first; then restart(). */
+    static ServerProcess prepare(List<String> jvmOptions, String... args) throws IOException {
+        Path dir = Files.createTempDirectory("chipichipi-server");
+        String java = ProcessHandle.current().info().command().orElse("java");
+        // absolute, since the server runs in dir
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        List<String> command = new ArrayList<>(List.of(java, "-cp", classPath.toString()));
+        command.addAll(jvmOptions);
+        command.add("ChipiChipiServer");
+        command.addAll(Arrays.asList(args));
+        return new ServerProcess(dir, command);
+    }
+
+    /** Starts the server in its directory, keeping whatever files an earlier run left, and waits until it accepts connections. */
+    void restart() throws IOException, InterruptedException {
+        launch();
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            try (Socket probe = new Socket("localhost", ServerConnection.DEFAULT_PORT)) {
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.nanoTime() > deadline) {
+                    process.destroy();
+                    throw new IOException("Server did not start; see " + dir.resolve("server.log"));
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /** Starts the server without waiting for it, e.g. to kill() it while it is still loading. */
+    void launch() throws IOException {
+        process = new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dir.resolve("server.log").toFile()))
+                .start();
+    }
+
+    /** Kills the server as a crash would: SIGKILL, no shutdown hooks, nothing flushed. */
+    void kill() throws InterruptedException {
+        process.destroyForcibly();
+        process.waitFor();
+    }
+
+    /** The server's Threads and VmRSS lines from /proc, e.g. "threads 5012, rss 412,300 KB", or "n/a" off Linux. */
+    String threadsAndMemory() {
+        try {
+            long threads = 0, rss = 0;
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(process.pid()), "status"))) {
+                String[] f = line.trim().split("\\s+");
+                if (f[0].equals("Threads:")) threads = Long.parseLong(f[1]);
+                if (f[0].equals("VmRSS:")) rss = Long.parseLong(f[1]);
+            }
+            return String.format("threads %,d, rss %,d KB", threads, rss);
+        } catch (IOException e) {
+            return "n/a";
+        }
+    }
+
+    /** A file in the server's working directory, e.g. a recording it wrote on exit; gone after close(). */
+    Path file(String name) {
+        return dir.resolve(name);
+    }
+
+    /** Shuts the server down as Ctrl+C would, running its shutdown hooks, and waits for it to exit. */
+    void stop() {
+        if (process == null) return;
+        process.destroy();
+        try {
+            process.waitFor(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        stop();
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
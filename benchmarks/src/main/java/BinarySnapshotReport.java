@@ -0,0 +1,140 @@
+// BinarySnapshotReport.java
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the users.txt and users.bin snapshots: file size, load time and
+ * save time through UserStore, plus a round-trip check:
+ *
+ *   java -Xms4500m -Xmx4500m -cp benchmarks/target/benchmarks.jar BinarySnapshotReport [users] [friendsPerUser]
+ *
+ * Defaults are 500k users with 20 friends each. The text table is converted
+ * with BinaryUserSnapshot.convert, then both are loaded and saved three
+ * times. Exits with status 1 if the binary load differs from the text load,
+ * or if fields holding ';' and ',' do not survive a binary round trip.
+ */
+public class BinarySnapshotReport {
+    private static final String[] COUNTRIES = {"BD", "IN", "US", "DE", "BR", "JP"};
+
+    public static void main(String[] args) throws IOException {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int friendsPerUser = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Path dir = Files.createTempDirectory("chipichipi-snapshot");
+        try {
+            Path text = dir.resolve("users.txt");
+            Path binary = dir.resolve("users.bin");
+            writeUsers(text, userCount, friendsPerUser);
+            long start = System.nanoTime();
+            BinaryUserSnapshot.convert(text, binary);
+            System.out.printf("%,d users, %d friends each: users.txt %,d MB, users.bin %,d MB, converted in %,d ms%n",
+                    userCount, friendsPerUser, Files.size(text) >> 20, Files.size(binary) >> 20,
+                    (System.nanoTime() - start) / 1_000_000);
+
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("round %d: text load %s, save %s | binary load %s, save %s%n", round + 1,
+                        loadTime(dir, text), saveTime(dir, text), loadTime(dir, binary), saveTime(dir, binary));
+            }
+
+            int failures = compare(dir, text, binary) + roundTripOddFields(dir);
+            if (failures > 0) {
+                System.out.println("FAILED: " + failures + " differences");
+                System.exit(1);
+            }
+            System.out.println("OK: users.bin loads the same table as users.txt");
+        } finally {
+            try (var files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static String loadTime(Path dir, Path snapshot) throws IOException {
+        for (int i = 0; i < 3; i++) System.gc();
+        long start = System.nanoTime();
+        UserStore store = load(dir, snapshot, new ConcurrentHashMap<>());
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        store.close();
+        return String.format("%,d ms", millis);
+    }
+
+    /** UserStore.compact is what saveUsers became: the whole table written as a fresh snapshot. */
+    private static String saveTime(Path dir, Path snapshot) throws IOException {
+        UserStore store = load(dir, snapshot, new ConcurrentHashMap<>());
+        for (int i = 0; i < 3; i++) System.gc();
+        long start = System.nanoTime();
+        store.compact();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        store.close();
+        return String.format("%,d ms", millis);
+    }
+
+    private static UserStore load(Path dir, Path snapshot, Map<String, ChipiChipiServer.User> users) throws IOException {
+        UserStore store = new UserStore(snapshot.toString(), dir.resolve("users.log").toString(), false);
+        store.load(users);
+        return store;
+    }
+
+    private static int compare(Path dir, Path text, Path binary) throws IOException {
+        Map<String, ChipiChipiServer.User> fromText = new ConcurrentHashMap<>();
+        load(dir, text, fromText).close();
+        Map<String, String> rows = new HashMap<>(fromText.size());
+        fromText.forEach((name, u) -> rows.put(name, describe(u)));
+        fromText = null;
+
+        Map<String, ChipiChipiServer.User> fromBinary = new ConcurrentHashMap<>();
+        load(dir, binary, fromBinary).close();
+        int failures = Math.abs(rows.size() - fromBinary.size());
+        for (ChipiChipiServer.User u : fromBinary.values()) {
+            if (!describe(u).equals(rows.get(u.username))) failures++;
+        }
+        return failures;
+    }
+
+    /** Separators inside fields, and a friend who is not a user, must come back unchanged. */
+    private static int roundTripOddFields(Path dir) throws IOException {
+        Path file = dir.resolve("odd.bin");
+        ChipiChipiServer.User a = new ChipiChipiServer.User("a;b,c", "p;w", 30, "x,y", "B;D");
+        ChipiChipiServer.User b = new ChipiChipiServer.User("ünï", "pw", 40, "", "");
+        a.friends.add(b.username);
+        b.friends.add(a.username);
+        a.friendRequests.add("not, a user");
+        BinaryUserSnapshot.write(file, List.of(a, b));
+        Map<String, ChipiChipiServer.User> read = new HashMap<>();
+        BinaryUserSnapshot.read(file, read);
+        int failures = 0;
+        for (ChipiChipiServer.User u : List.of(a, b)) {
+            ChipiChipiServer.User back = read.get(u.username);
+            if (back == null || !describe(back).equals(describe(u))) {
+                System.out.println("round trip changed " + u.username + ": " + (back == null ? "missing" : describe(back)));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static String describe(ChipiChipiServer.User u) {
+        return u.password + "|" + u.age + "|" + u.gender + "|" + u.country + "|"
+                + new TreeSet<>(u.friends) + "|" + new TreeSet<>(u.friendRequests);
+    }
+
+    /** Same shape as ServerFixture.writeUsers: friends are neighbours on a ring, plus one pending request. */
+    private static void writeUsers(Path file, int users, int friendsPerUser) throws IOException {
+        Random random = new Random(42);
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < users; i++) {
+                StringJoiner friends = new StringJoiner(",");
+                for (int k = 1; k <= friendsPerUser / 2; k++) {
+                    friends.add("user" + Math.floorMod(i - k, users));
+                    friends.add("user" + Math.floorMod(i + k, users));
+                }
+                bw.write("user" + i + ";pw" + i + ";" + (18 + random.nextInt(60)) + ";" + (i % 2 == 0 ? "Male" : "Female")
+                        + ";" + COUNTRIES[random.nextInt(COUNTRIES.length)] + ";" + friends + ";user" + random.nextInt(users) + "\n");
+            }
+        }
+    }
+}
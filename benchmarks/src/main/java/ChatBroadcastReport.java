@@ -0,0 +1,146 @@
+// ChatBroadcastReport.java
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures ChatRoom broadcast fan-out to 1k, 10k and 50k subscribers:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar ChatBroadcastReport [subscribers...]
+ *
+ * Every subscriber is a real Outbox.Queued, i.e. a bounded queue drained by
+ * its own virtual thread into the subscriber's writer. Healthy subscribers
+ * write into a line counter; one in a hundred is stalled, as a client that
+ * stopped reading would be, and never returns from its socket write.
+ * Each run posts about 5M deliveries' worth of messages from one sender, which
+ * keeps at most WINDOW messages unread by healthy subscribers (well inside
+ * Outbox.CAPACITY), and reports sustained messages and deliveries per second,
+ * fan-out time per message and push-to-write latency. Exits with status 1 if
+ * a healthy subscriber missed a message or a stalled one was never evicted.
+ */
+public class ChatBroadcastReport {
+    private static final int STALLED_EVERY = 100;
+    private static final int WINDOW = 32;
+    private static final long DELIVERIES_PER_RUN = 5_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray() : new int[] {1_000, 10_000, 50_000};
+        System.out.printf("%d cores, 1 in %d subscribers stalled, %d messages in flight%n",
+                Runtime.getRuntime().availableProcessors(), STALLED_EVERY, WINDOW);
+        int failures = 0;
+        for (int size : sizes) {
+            run(size, 20); // warm-up
+            failures += run(size, (int) Math.max(100, DELIVERIES_PER_RUN / size));
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " runs lost messages or kept a stalled subscriber");
+            System.exit(1);
+        }
+        System.out.println("OK: every healthy subscriber got every message");
+    }
+
+    private static int run(int subscribers, int messages) throws Exception {
+        ChatRoom room = new ChatRoom("#bench" + subscribers);
+        LineCounter healthyLines = new LineCounter();
+        CountDownLatch unstall = new CountDownLatch(1);
+        List<Outbox> outboxes = new ArrayList<>(subscribers);
+        int stalled = 0;
+        for (int i = 0; i < subscribers; i++) {
+            boolean stall = i % STALLED_EVERY == STALLED_EVERY - 1;
+            OutputStream sink = stall ? new StalledStream(unstall) : healthyLines;
+            Outbox outbox = new Outbox.Queued(new Outbox.SocketWriter(sink));
+            outboxes.add(outbox);
+            room.join("u" + i, outbox);
+            if (stall) stalled++;
+        }
+        long healthy = subscribers - stalled;
+
+        long deliveredBefore = Outbox.delivered.sum();
+        long latencyBefore = Outbox.deliveryNanos.sum();
+        Outbox.maxDeliveryNanos.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // keep the healthy subscribers' queues from overflowing: this measures the rate they can sustain
+            while ((i - WINDOW) * healthy > healthyLines.count.sum()) Thread.onSpinWait();
+            while (room.post("sender", "message " + i + " to everybody in the room", System.nanoTime()) < 0) Thread.sleep(1);
+        }
+        long expected = messages * healthy;
+        long lastProgress = System.nanoTime();
+        long seen = -1;
+        while (healthyLines.count.sum() < expected && System.nanoTime() - lastProgress < 5_000_000_000L) {
+            long now = healthyLines.count.sum();
+            if (now != seen) {
+                seen = now;
+                lastProgress = System.nanoTime();
+            }
+            Thread.sleep(1);
+        }
+        double seconds = (healthyLines.lastWrite - start) / 1e9;
+        long delivered = Outbox.delivered.sum() - deliveredBefore;
+        long received = healthyLines.count.sum();
+
+        if (messages > 20) {
+            System.out.printf("%,7d subscribers: %,6d messages in %.2f s = %,8.0f msg/s, %,10.0f deliveries/s | "
+                            + "fan-out %,d us/msg | push to write avg %,d us max %,d us | dropped %,d evicted %d of %d stalled%n",
+                    subscribers, messages, seconds, messages / seconds, received / seconds,
+                    room.fanoutNanos.sum() / room.messages.sum() / 1000,
+                    delivered == 0 ? 0 : (Outbox.deliveryNanos.sum() - latencyBefore) / delivered / 1000,
+                    Outbox.maxDeliveryNanos.get() / 1000, room.dropped.sum(), room.evicted.sum(), stalled);
+        }
+
+        for (int i = 0; i < subscribers; i++) room.leave("u" + i, outboxes.get(i));
+        for (Outbox outbox : outboxes) outbox.close();
+        unstall.countDown();
+
+        int failures = 0;
+        if (received != expected) {
+            System.out.println("healthy subscribers received " + received + " of " + expected + " lines");
+            failures++;
+        }
+        // a stalled queue only overflows once more than CAPACITY messages were sent
+        if (messages > Outbox.CAPACITY + ChatRoom.SLOW_CONSUMER_DROPS && room.evicted.sum() != stalled) {
+            System.out.println(room.evicted.sum() + " of " + stalled + " stalled subscribers were evicted");
+            failures++;
+        }
+        return failures;
+    }
+
+    /** Counts lines written, by any number of drainer threads. */
+    private static final class LineCounter extends OutputStream {
+        final LongAdder count = new LongAdder();
+        volatile long lastWrite;
+
+        @Override public void write(int b) {
+            if (b == '\n') {
+                count.increment();
+                lastWrite = System.nanoTime();
+            }
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') count.increment();
+            }
+            lastWrite = System.nanoTime();
+        }
+    }
+
+    /** A client that stopped reading: every write blocks until the run is over. */
+    private static final class StalledStream extends OutputStream {
+        private final CountDownLatch unstall;
+
+        StalledStream(CountDownLatch unstall) {
+            this.unstall = unstall;
+        }
+
+        @Override public void write(int b) throws IOException {
+            try {
+                unstall.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+// ChatSwitchReport.java
+
+import javax.swing.SwingUtilities;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares what switching between friend chats costs with ChatCache against
+ * reloading the newest page on every switch:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar ChatSwitchReport [friends] [switches]
+ *
+ * Starts ChipiChipiServer as a ServerProcess. A viewer has a few hundred
+ * messages with each of its friends (default 10). It then switches to a
+ * random friend the given number of times (default 1000), while before each
+ * switch a few random friends send it 0 to 2 new messages, which reach the
+ * viewer as pushes. Reports MESSAGES bytes read per switch and the switch
+ * round trip for each mode, and exits with status 1 if a cached chat ended up
+ * different from the server's newest page. With more friends than
+ * ChatCache.MAX_CONVERSATIONS, some switches miss the cache and fetch whole.
+ */
+public class ChatSwitchReport {
+    private static final int HISTORY = 300;
+    private static final String PASSWORD = "pw";
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int friends = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int switches = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int failures = 0;
+        try (ServerProcess server = ServerProcess.start()) {
+            List<ServerConnection> senders = new ArrayList<>();
+            for (int i = 0; i < friends; i++) senders.add(login("friend" + i, null));
+            System.out.printf("%d friends with %d messages each, %,d switches per mode, up to %d chats cached%n",
+                    friends, HISTORY, switches, ChatCache.MAX_CONVERSATIONS);
+            for (boolean cached : new boolean[] {false, true}) {
+                failures += run(cached, senders, switches);
+            }
+            for (ServerConnection c : senders) c.close();
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " cached chats differ from the server");
+            System.exit(1);
+        }
+        System.out.println("OK: cached chats match the server");
+    }
+
+    private static int run(boolean cached, List<ServerConnection> senders, int switches) throws Exception {
+        String name = cached ? "viewer-cached" : "viewer-reload";
+        ChatCache cache = new ChatCache();
+        ServerConnection viewer = login(name, new ServerConnection.Listener() {
+            @Override public void onDirectMessage(String sender, long id, String text) {
+                cache.add(sender, new ChatView.Line(id, sender, text));
+            }
+
+            @Override public void onChat(String room, long id, String sender, String text) {}
+
+            @Override public void onDisconnect(String reason) {}
+        });
+        for (ServerConnection s : senders) s.request("FRIEND", name).get();
+        for (int i = 0; i < senders.size(); i++) viewer.request("ACCEPT", "friend" + i).get();
+        List<CompletableFuture<List<String>>> sent = new ArrayList<>();
+        for (int m = 0; m < HISTORY; m++) {
+            for (ServerConnection s : senders) sent.add(s.request("SEND", name, "history message " + m));
+        }
+        for (CompletableFuture<List<String>> f : sent) f.get();
+
+        Random random = new Random(11);
+        LatencyHistogram times = new LatencyHistogram();
+        long bytes = 0;
+        for (int i = 0; i < switches; i++) {
+            sent.clear();
+            for (int k = 0; k < 3; k++) {
+                int n = random.nextInt(3);
+                ServerConnection s = senders.get(random.nextInt(senders.size()));
+                for (int m = 0; m < n; m++) sent.add(s.request("SEND", name, "new message " + i + "." + k + "." + m));
+            }
+            for (CompletableFuture<List<String>> f : sent) f.get();
+
+            String friend = "friend" + random.nextInt(senders.size());
+            long start = System.nanoTime();
+            if (cached) {
+                bytes += openCached(viewer, cache, friend);
+            } else {
+                bytes += ServerConnection.wireSize(viewer.request("MESSAGES", friend).get());
+            }
+            times.recordNanos(System.nanoTime() - start);
+        }
+
+        System.out.printf("%-7s %,6d bytes read per switch | switch p50 %,d us p99 %,d us%s%n",
+                cached ? "cached" : "reload", bytes / switches, times.percentileMicros(50), times.percentileMicros(99),
+                cached ? " | " + onEdt(cache::stats) : "");
+        int failures = cached ? verify(viewer, cache, senders.size()) : 0;
+        viewer.close();
+        return failures;
+    }
+
+    /** What ChipiChipiGUI_Full does on a switch: the cached copy, then only newer messages; returns bytes read. */
+    private static int openCached(ServerConnection viewer, ChatCache cache, String friend) throws Exception {
+        ChatCache.Conversation conv = onEdt(() -> cache.open(friend));
+        String afterId = conv == null ? "" : Long.toString(onEdt(conv::lastId));
+        List<String> f = viewer.request("MESSAGES", friend, "", afterId).get();
+        int bytes = ServerConnection.wireSize(f);
+        onEdt(() -> cache.merge(friend, lines(f), bytes));
+        return bytes;
+    }
+
+    /** Every cached chat must end with the server's newest page, once the pushes in flight have arrived. */
+    private static int verify(ServerConnection viewer, ChatCache cache, int friends) throws Exception {
+        Thread.sleep(500);
+        int failures = 0;
+        for (int i = 0; i < friends; i++) {
+            String friend = "friend" + i;
+            List<ChatView.Line> latest = lines(viewer.request("MESSAGES", friend).get());
+            List<ChatView.Line> copy = onEdt(() -> {
+                ChatCache.Conversation conv = cache.get(friend);
+                return conv == null ? null : conv.lines();
+            });
+            if (copy == null) continue; // dropped from the cache
+            List<ChatView.Line> tail = copy.subList(Math.max(0, copy.size() - latest.size()), copy.size());
+            if (!tail.equals(latest)) {
+                System.out.println(friend + ": cached chat ends " + (tail.isEmpty() ? "empty" : tail.get(tail.size() - 1).id())
+                        + ", server " + (latest.isEmpty() ? "empty" : latest.get(latest.size() - 1).id()));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static List<ChatView.Line> lines(List<String> f) {
+        List<ChatView.Line> lines = new ArrayList<>(f.size() / 3);
+        for (int i = 0; i + 2 < f.size(); i += 3) lines.add(new ChatView.Line(Long.parseLong(f.get(i)), f.get(i + 1), f.get(i + 2)));
+        return lines;
+    }
+
+    /** ChatCache is used on the event thread only, as in the client. */
+    private static <T> T onEdt(java.util.function.Supplier<T> action) throws Exception {
+        List<T> result = new ArrayList<>(1);
+        SwingUtilities.invokeAndWait(() -> result.add(action.get()));
+        return result.get(0);
+    }
+
+    private static ServerConnection login(String username, ServerConnection.Listener listener) throws Exception {
+        if (listener == null) {
+            listener = new ServerConnection.Listener() {
+                @Override public void onDirectMessage(String sender, long id, String text) {}
+                @Override public void onChat(String room, long id, String sender, String text) {}
+                @Override public void onDisconnect(String reason) {}
+            };
+        }
+        ServerConnection conn = ServerConnection.connect("localhost", ServerConnection.DEFAULT_PORT, listener).get();
+        conn.request("REGISTER", username, PASSWORD, "30", "N/A", "N/A").get();
+        conn.request("LOGIN", username, PASSWORD).get();
+        return conn;
+    }
+}
@@ -0,0 +1,206 @@
+// ChatViewReport.java
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Opens a long conversation in ChatView and scrolls all the way up through
+ * it, then builds the same conversation the way refreshChatPanel used to (a
+ * panel, label and text area per message), and compares time and heap:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar ChatViewReport [messages]
+ *
+ * Defaults to 50k messages. Runs headless; the views are painted into an
+ * image the size of a chat window. Pages come from an in-memory conversation
+ * in MessageStore.PAGE_SIZE pieces, answered on a later event-thread turn as
+ * server replies are. Exits with status 1 if paging skipped or repeated a
+ * message, or if ChatView held more than MAX_LOADED plus a page of them.
+ */
+public class ChatViewReport {
+    private static final int WIDTH = 700;
+    private static final int HEIGHT = 560;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        List<ChatView.Line> conversation = new ArrayList<>(messages);
+        Random random = new Random(3);
+        for (int i = 1; i <= messages; i++) {
+            String text = "message " + i + " " + "lorem ipsum dolor sit amet ".repeat(1 + random.nextInt(8));
+            conversation.add(new ChatView.Line(i, i % 3 == 0 ? "me" : "friend", text.trim()));
+        }
+        long baseline = usedHeap();
+        System.out.printf("%,d messages, %dx%d window, heap before %,d KB%n", messages, WIDTH, HEIGHT, baseline >> 10);
+
+        int failures = virtualized(conversation, baseline);
+        componentPerMessage(conversation, baseline);
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " problems");
+            System.exit(1);
+        }
+        System.out.println("OK: paged through every message once with at most " + (ChatView.MAX_LOADED + MessageStore.PAGE_SIZE) + " loaded");
+    }
+
+    private static int virtualized(List<ChatView.Line> conversation, long baseline) throws Exception {
+        ChatView view = new ChatView();
+        JScrollBar bar = view.getVerticalScrollBar();
+        Pager pager = new Pager(view, conversation);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+
+        long start = System.nanoTime();
+        SwingUtilities.invokeAndWait(() -> {
+            view.setSize(WIDTH, HEIGHT);
+            pager.latest();
+        });
+        SwingUtilities.invokeAndWait(() -> paint(view, screen));
+        long openNanos = System.nanoTime() - start;
+
+        LatencyHistogram pages = new LatencyHistogram();
+        long maxHeap = 0;
+        int maxLoaded = 0;
+        int steps = 0;
+        int maxSteps = conversation.size() / MessageStore.PAGE_SIZE + 10;
+        while (!pager.olderDone && steps++ < maxSteps) {
+            long pageStart = System.nanoTime();
+            // scroll to the top; the pager answers on the next turn, then the view is painted
+            SwingUtilities.invokeAndWait(() -> bar.setValue(0));
+            SwingUtilities.invokeAndWait(() -> paint(view, screen));
+            pages.recordNanos(System.nanoTime() - pageStart);
+            maxLoaded = Math.max(maxLoaded, view.loaded());
+            if (steps % 100 == 0) maxHeap = Math.max(maxHeap, usedHeap() - baseline);
+        }
+        maxHeap = Math.max(maxHeap, usedHeap() - baseline);
+
+        int failures = 0;
+        List<ChatView.Line> top = rows(view);
+        if (top.isEmpty() || top.get(0).id() != 1) {
+            System.out.println("top of the conversation not reached: first row " + (top.isEmpty() ? "none" : top.get(0).id()));
+            failures++;
+        }
+        failures += checkContiguous(top);
+        // back down to the bottom: the newest rows were dropped on the way up and have to come back
+        SwingUtilities.invokeAndWait(() -> bar.setValue(bar.getMaximum()));
+        SwingUtilities.invokeAndWait(() -> paint(view, screen));
+        List<ChatView.Line> bottom = rows(view);
+        if (bottom.isEmpty() || bottom.get(bottom.size() - 1).id() != conversation.size()) {
+            System.out.println("scrolling back down did not reload the newest messages");
+            failures++;
+        }
+        failures += checkContiguous(bottom);
+        if (maxLoaded > ChatView.MAX_LOADED + MessageStore.PAGE_SIZE) {
+            System.out.println("held " + maxLoaded + " messages at once");
+            failures++;
+        }
+
+        System.out.printf("ChatView:       open %,d ms | %,d pages scrolled up, page+paint p50 %,d us p99 %,d us max %,d us | "
+                        + "at most %,d messages loaded, heap at most +%,d KB%n",
+                openNanos / 1_000_000, pager.pagesServed, pages.percentileMicros(50), pages.percentileMicros(99),
+                pages.maxMicros(), maxLoaded, maxHeap >> 10);
+        return failures;
+    }
+
+    /** The component tree refreshChatPanel used to build: a wrapper, a name label and a text area per message. */
+    private static void componentPerMessage(List<ChatView.Line> conversation, long baseline) throws Exception {
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        JPanel[] panel = new JPanel[1];
+        long start = System.nanoTime();
+        SwingUtilities.invokeAndWait(() -> {
+            JPanel chatPanel = new JPanel();
+            chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
+            chatPanel.setOpaque(false);
+            JScrollPane chatScroll = new JScrollPane(chatPanel);
+            chatScroll.setSize(WIDTH, HEIGHT);
+            for (ChatView.Line line : conversation) {
+                boolean isMe = line.sender().equals("me");
+                JPanel bubbleWrap = new JPanel(new BorderLayout());
+                bubbleWrap.setOpaque(false);
+                JPanel bubble = new JPanel(new BorderLayout());
+                JTextArea ta = new JTextArea(line.text());
+                ta.setEditable(false);
+                ta.setLineWrap(true);
+                ta.setWrapStyleWord(true);
+                ta.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+                ta.setBorder(new EmptyBorder(10, 10, 10, 10));
+                bubble.add(ta, BorderLayout.CENTER);
+                bubble.setMaximumSize(new Dimension(620, Integer.MAX_VALUE));
+                if (!isMe) bubbleWrap.add(new JLabel(line.sender()), BorderLayout.NORTH);
+                bubbleWrap.add(bubble, isMe ? BorderLayout.EAST : BorderLayout.WEST);
+                bubbleWrap.setBorder(new EmptyBorder(6, 6, 6, 6));
+                chatPanel.add(bubbleWrap);
+                chatPanel.add(Box.createVerticalStrut(6));
+            }
+            chatScroll.validate();
+            chatScroll.getVerticalScrollBar().setValue(chatScroll.getVerticalScrollBar().getMaximum());
+            paint(chatScroll, screen);
+            panel[0] = chatPanel;
+        });
+        long openNanos = System.nanoTime() - start;
+        long heap = usedHeap() - baseline;
+        System.out.printf("one per message: open %,d ms | %,d components | heap +%,d KB%n",
+                openNanos / 1_000_000, panel[0].getComponentCount(), heap >> 10);
+    }
+
+    private static void paint(JComponent view, BufferedImage screen) {
+        Graphics2D g = screen.createGraphics();
+        view.paint(g);
+        g.dispose();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ChatView.Line> rows(ChatView view) throws Exception {
+        List<ChatView.Line> rows = new ArrayList<>();
+        SwingUtilities.invokeAndWait(() -> {
+            ListModel<ChatView.Line> model = ((JList<ChatView.Line>) view.getViewport().getView()).getModel();
+            for (int i = 0; i < model.getSize(); i++) rows.add(model.getElementAt(i));
+        });
+        return rows;
+    }
+
+    private static int checkContiguous(List<ChatView.Line> rows) {
+        for (int i = 1; i < rows.size(); i++) {
+            if (rows.get(i).id() != rows.get(i - 1).id() + 1) {
+                System.out.println("rows jump from " + rows.get(i - 1).id() + " to " + rows.get(i).id());
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** Serves MESSAGES-sized pages of an in-memory conversation, replying on a later event-thread turn. */
+    private static final class Pager implements ChatView.Pager {
+        private final ChatView view;
+        private final List<ChatView.Line> conversation;
+        int pagesServed;
+        boolean olderDone;
+
+        Pager(ChatView view, List<ChatView.Line> conversation) {
+            this.view = view;
+            this.conversation = conversation;
+        }
+
+        @Override public void older(long beforeId) {
+            int end = (int) beforeId - 1; // ids are 1-based positions
+            List<ChatView.Line> page = List.copyOf(conversation.subList(Math.max(0, end - MessageStore.PAGE_SIZE), end));
+            pagesServed++;
+            if (page.isEmpty()) olderDone = true;
+            SwingUtilities.invokeLater(() -> view.prepend(page, !page.isEmpty()));
+        }
+
+        @Override public void latest() {
+            int n = conversation.size();
+            List<ChatView.Line> page = List.copyOf(conversation.subList(Math.max(0, n - MessageStore.PAGE_SIZE), n));
+            pagesServed++;
+            SwingUtilities.invokeLater(() -> view.load("me", page, n > page.size(), this));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+// CompactGraphReport.java
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds a synthetic friend graph in CompactGraph and reports heap per edge
+ * and membership-check latency, the two numbers that decide whether the
+ * friend graph fits on one server:
+ *
+ *   java -Xmx3500m -cp benchmarks/target/benchmarks.jar CompactGraphReport [users] [edges] [baselineUsers]
+ *
+ * Defaults are 5M users and 200M undirected edges (every user has 80
+ * friends, picked at random). The same degree is then built as
+ * Set<String> per user for {@code baselineUsers} users (default 200k) to
+ * show what the old representation costs per edge. Heap is measured as
+ * used heap after a full GC, so run it with nothing else in the JVM.
+ */
+public class CompactGraphReport {
+    private static final int LOOKUPS = 5_000_000;
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        long edges = args.length > 1 ? Long.parseLong(args[1]) : 200_000_000L;
+        int baselineUsers = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+        int degree = (int) (2 * edges / users);
+
+        System.out.println(users + " users, " + edges + " edges, " + degree + " friends each");
+        long base = usedHeap();
+        CompactGraph graph = new CompactGraph();
+        for (int i = 0; i < users; i++) graph.idOf("user" + i);
+        long interned = usedHeap();
+        Random random = new Random(42);
+        for (int i = 0; i < users; i++) graph.addAll(i, randomFriends(random, i, users, degree));
+        long built = usedHeap();
+
+        long entries = (long) users * degree;
+        System.out.printf("name interning   %,d MB (%d bytes per user)%n", (interned - base) >> 20, (interned - base) / users);
+        System.out.printf("adjacency        %,d MB (%.1f bytes per edge)%n", (built - interned) >> 20, 2.0 * (built - interned) / entries);
+        System.out.printf("total            %,d MB (%.1f bytes per edge)%n", (built - base) >> 20, 2.0 * (built - base) / entries);
+
+        // ids: the int path; names: the Set<String> path User.friends uses for sendMessage / sendFriendRequest
+        int[] from = new int[LOOKUPS];
+        int[] to = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            from[i] = random.nextInt(users);
+            int[] friends = graph.neighbors(from[i]);
+            // half hits, half (almost certainly) misses
+            to[i] = i % 2 == 0 ? friends[random.nextInt(friends.length)] : random.nextInt(users);
+        }
+        String[] fromNames = new String[LOOKUPS];
+        String[] toNames = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            fromNames[i] = graph.nameOf(from[i]);
+            toNames[i] = graph.nameOf(to[i]);
+        }
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < LOOKUPS; i++) if (graph.contains(from[i], to[i])) hits++;
+            double idNanos = (double) (System.nanoTime() - start) / LOOKUPS;
+
+            start = System.nanoTime();
+            int nameHits = 0;
+            for (int i = 0; i < LOOKUPS; i++) if (graph.neighborSet(fromNames[i]).contains(toNames[i])) nameHits++;
+            double nameNanos = (double) (System.nanoTime() - start) / LOOKUPS;
+            System.out.printf("pass %d: contains(id, id) %.0f ns, friends.contains(name) %.0f ns (%d%% / %d%% hits)%n",
+                    pass + 1, idNanos, nameNanos, 100L * hits / LOOKUPS, 100L * nameHits / LOOKUPS);
+        }
+
+        from = to = null;
+        fromNames = toNames = null;
+        graph = null;
+        baseline(baselineUsers, degree);
+    }
+
+    /** The old representation: one concurrent Set<String> per user. */
+    private static void baseline(int users, int degree) {
+        List<Set<String>> sets = new ArrayList<>(users);
+        String[] names = new String[users];
+        for (int i = 0; i < users; i++) names[i] = "user" + i;
+        long named = usedHeap();
+        Random random = new Random(42);
+        for (int i = 0; i < users; i++) {
+            Set<String> friends = ConcurrentHashMap.newKeySet();
+            for (int id : randomFriends(random, i, users, degree)) friends.add(names[id]);
+            sets.add(friends);
+        }
+        long built = usedHeap();
+        System.out.printf("Set<String> baseline at %d users: %.1f bytes per edge%n",
+                users, 2.0 * (built - named) / ((long) users * degree));
+
+        Map<String, Set<String>> byName = new HashMap<>();
+        for (int i = 0; i < users; i++) byName.put(names[i], sets.get(i));
+        String[] fromNames = new String[LOOKUPS];
+        String[] toNames = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int from = random.nextInt(users);
+            fromNames[i] = names[from];
+            toNames[i] = i % 2 == 0 ? sets.get(from).iterator().next() : names[random.nextInt(users)];
+        }
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < LOOKUPS; i++) if (byName.get(fromNames[i]).contains(toNames[i])) hits++;
+            System.out.printf("pass %d: friends.contains(name) %.0f ns (%d%% hits)%n",
+                    pass + 1, (double) (System.nanoTime() - start) / LOOKUPS, 100L * hits / LOOKUPS);
+        }
+    }
+
+    private static int[] randomFriends(Random random, int self, int users, int degree) {
+        int[] friends = new int[degree];
+        for (int k = 0; k < degree; k++) {
+            int f = random.nextInt(users - 1);
+            friends[k] = f >= self ? f + 1 : f;
+        }
+        return friends;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
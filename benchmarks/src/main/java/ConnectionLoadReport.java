@@ -0,0 +1,106 @@
+// ConnectionLoadReport.java
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares how many logged-in connections the thread-per-connection server
+ * and the --nio selector loop hold, and how quickly they still answer:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar ConnectionLoadReport [connections] [seconds]
+ *
+ * For each mode, starts ChipiChipiServer as a ServerProcess and logs in the
+ * given number of users (default 5,000) through the text menus, then leaves
+ * them idle with their connections open. Reports how many got in, the
+ * server's thread count and resident memory, and then the throughput and
+ * latency of ACTIVE more sessions asking for their friend list back to back
+ * for the given time (default 10 s) while the idle ones stay connected.
+ * Exits with status 1 if the NIO server lost any connection.
+ */
+public class ConnectionLoadReport {
+    private static final int ACTIVE = 50;
+    private static final int CONNECTING = 20; // logins in flight, well inside the default accept backlog of 50
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        System.out.printf("%,d idle logged-in connections, %d active sessions for %d s, %d cores%n",
+                connections, ACTIVE, seconds, Runtime.getRuntime().availableProcessors());
+        int failures = 0;
+        for (boolean nio : new boolean[] {false, true}) {
+            failures += run(nio, connections, seconds);
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: the NIO server lost " + failures + " connections");
+            System.exit(1);
+        }
+        System.out.println("OK: the NIO server held every connection");
+    }
+
+    private static int run(boolean nio, int connections, int seconds) throws Exception {
+        String mode = nio ? "nio" : "threads";
+        int lost;
+        try (ServerProcess server = nio ? ServerProcess.start("--nio", "--no-fsync") : ServerProcess.start("--no-fsync")) {
+            List<MenuClient> idle = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            Semaphore connecting = new Semaphore(CONNECTING);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < connections; i++) {
+                    String name = mode + "-idle" + i;
+                    connecting.acquire();
+                    executor.submit(() -> {
+                        try {
+                            idle.add(MenuClient.login(name));
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        } finally {
+                            connecting.release();
+                        }
+                    });
+                }
+            }
+            long setupMillis = (System.nanoTime() - start) / 1_000_000;
+            String resources = server.threadsAndMemory();
+
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicInteger errors = new AtomicInteger();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            long measured = System.nanoTime();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < ACTIVE; i++) {
+                    String name = mode + "-active" + i;
+                    executor.submit(() -> {
+                        try (MenuClient client = MenuClient.login(name)) {
+                            while (System.nanoTime() < deadline) {
+                                long t = System.nanoTime();
+                                client.command("3");
+                                latency.recordNanos(System.nanoTime() - t);
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    });
+                }
+            }
+            double elapsed = (System.nanoTime() - measured) / 1e9;
+
+            // idle connections that no longer answer were dropped by the server
+            lost = failed.get();
+            for (MenuClient client : idle) {
+                try {
+                    client.command("3");
+                } catch (IOException e) {
+                    lost++;
+                }
+                client.close();
+            }
+            System.out.printf("%-7s %,6d of %,d logged in (%,d ms), %,d lost | server %s | active: %,.0f req/s, p50 %,d us, p99 %,d us, %d errors%n",
+                    mode, idle.size(), connections, setupMillis, lost, resources,
+                    latency.count() / elapsed, latency.percentileMicros(50), latency.percentileMicros(99), errors.get());
+        }
+        return nio ? lost : 0;
+    }
+}
@@ -0,0 +1,187 @@
+// EdtStallReport.java
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures how responsive a client's event thread stays under heavy chat
+ * traffic, with requests made the way ChipiChipiGUI_Full makes them (async
+ * callbacks) and the way a GUI that waits on the network would (blocking on
+ * the event thread):
+ *
+ *   java -cp benchmarks/target/benchmarks.jar EdtStallReport [seconds] [messagesPerSecond]
+ *
+ * Starts ChipiChipiServer as a ServerProcess, then SENDERS users flood
+ * #Global and direct messages at the viewer, split evenly, at the given
+ * total rate (default 10 s at 2000/s). The viewer's pushes are appended to
+ * a Swing text model on the event thread, and every
+ * SWITCH_MS it "opens" a sender's conversation: MESSAGES, then the page is
+ * rendered. Runs headless; nothing is shown. Reports the EdtStallMonitor
+ * probe delays and stalls, and the click-to-rendered time of the switches,
+ * for each mode. Exits with status 1 if the async mode stalled the event
+ * thread or lost pushes.
+ */
+public class EdtStallReport {
+    private static final int SENDERS = 4;
+    private static final int SWITCH_MS = 50;
+    private static final String PASSWORD = "pw";
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        int failures = 0;
+        try (ServerProcess server = ServerProcess.start()) {
+            List<ServerConnection> senders = new ArrayList<>();
+            for (int i = 0; i < SENDERS; i++) senders.add(login("sender" + i, new Viewer()));
+            System.out.printf("%d cores, %d senders, %,d messages/s for %d s per mode, a chat switch every %d ms%n",
+                    Runtime.getRuntime().availableProcessors(), SENDERS, rate, seconds, SWITCH_MS);
+            for (boolean blocking : new boolean[] {true, false}) {
+                failures += run(blocking, senders, seconds, rate);
+            }
+            for (ServerConnection c : senders) c.close();
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " problems in async mode");
+            System.exit(1);
+        }
+        System.out.println("OK: async mode kept the event thread responsive");
+    }
+
+    private static int run(boolean blocking, List<ServerConnection> senders, int seconds, int rate) throws Exception {
+        String mode = blocking ? "blocking" : "async";
+        String name = "viewer-" + mode;
+        Viewer viewer = new Viewer();
+        ServerConnection conn = login(name, viewer);
+        // each sender befriends the viewer, so it may send it direct messages
+        for (ServerConnection s : senders) s.request("FRIEND", name).get();
+        for (int i = 0; i < SENDERS; i++) conn.request("ACCEPT", "sender" + i).get();
+        conn.request("JOIN", ChatRoom.GLOBAL).get();
+
+        EdtStallMonitor monitor = new EdtStallMonitor();
+        LatencyHistogram switches = new LatencyHistogram();
+        monitor.start();
+        javax.swing.Timer switcher = new javax.swing.Timer(SWITCH_MS, e -> switchChat(conn, viewer, switches, blocking));
+        SwingUtilities.invokeAndWait(switcher::start);
+
+        long sent = flood(senders, name, seconds, rate);
+
+        SwingUtilities.invokeAndWait(switcher::stop);
+        monitor.stop();
+        // let the pushes already on their way arrive
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (viewer.received() < sent && System.nanoTime() < deadline) Thread.sleep(10);
+        SwingUtilities.invokeAndWait(() -> {});
+        conn.close();
+
+        System.out.printf("%-8s edt delay p50 %,d us p99 %,d us max %,d us, stalls>=%dms %d | "
+                        + "switch p50 %,d us p99 %,d us (%d) | pushes %,d of %,d%n",
+                mode, monitor.delays.percentileMicros(50), monitor.delays.percentileMicros(99), monitor.delays.maxMicros(),
+                EdtStallMonitor.STALL_MS, monitor.stalls.sum(), switches.percentileMicros(50),
+                switches.percentileMicros(99), switches.count(), viewer.received(), sent);
+        if (blocking) return 0;
+        int failures = 0;
+        if (monitor.stalls.sum() > 0) failures++;
+        if (viewer.received() != sent) failures++;
+        return failures;
+    }
+
+    /** Opens a random sender's conversation and renders its latest page. */
+    private static void switchChat(ServerConnection conn, Viewer viewer, LatencyHistogram switches, boolean blocking) {
+        long start = System.nanoTime();
+        String friend = "sender" + ThreadLocalRandom.current().nextInt(SENDERS);
+        CompletableFuture<List<String>> page = conn.request("MESSAGES", friend);
+        if (blocking) {
+            try {
+                viewer.render(page.get());
+                switches.recordNanos(System.nanoTime() - start);
+            } catch (InterruptedException | ExecutionException ignored) {}
+            return;
+        }
+        ServerConnection.onEdt(page, f -> {
+            viewer.render(f);
+            switches.recordNanos(System.nanoTime() - start);
+        }, error -> {});
+    }
+
+    /** Sends rate messages a second, alternating #Global and DMs, round-robin over the senders; returns how many. */
+    private static long flood(List<ServerConnection> senders, String viewer, int seconds, int rate) throws Exception {
+        long intervalNanos = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long sent = 0;
+        List<CompletableFuture<List<String>>> inFlight = new ArrayList<>();
+        while (true) {
+            long due = start + sent * intervalNanos;
+            if (due >= end) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            ServerConnection s = senders.get((int) (sent % SENDERS));
+            String text = "message " + sent + " under load";
+            inFlight.add(sent % 2 == 0
+                    ? s.request("SAY", ChatRoom.GLOBAL, text)
+                    : s.request("SEND", viewer, text));
+            sent++;
+            if (inFlight.size() >= 1000) {
+                for (CompletableFuture<List<String>> f : inFlight) f.get();
+                inFlight.clear();
+            }
+        }
+        for (CompletableFuture<List<String>> f : inFlight) f.get();
+        return sent;
+    }
+
+    private static ServerConnection login(String username, ServerConnection.Listener listener) throws Exception {
+        ServerConnection conn = ServerConnection.connect("localhost", ServerConnection.DEFAULT_PORT, listener).get();
+        conn.request("REGISTER", username, PASSWORD, "30", "N/A", "N/A").get();
+        conn.request("LOGIN", username, PASSWORD).get();
+        return conn;
+    }
+
+    /** The viewer's UI, reduced to what the event thread does with each push and each opened chat. */
+    private static final class Viewer implements ServerConnection.Listener {
+        private final Document chat = new JTextArea().getDocument();
+        private final Document conversation = new JTextArea().getDocument();
+        private volatile long received;
+
+        long received() {
+            return received;
+        }
+
+        @Override public void onDirectMessage(String sender, long id, String text) {
+            append(chat, sender + ": " + text);
+        }
+
+        @Override public void onChat(String room, long id, String sender, String text) {
+            append(chat, "[" + room + "] " + sender + ": " + text);
+        }
+
+        @Override public void onDisconnect(String reason) {}
+
+        private void append(Document doc, String line) {
+            try {
+                // keep the model bounded, like a chat view that drops what scrolled far out of sight
+                if (doc.getLength() > 1 << 20) doc.remove(0, doc.getLength() / 2);
+                doc.insertString(doc.getLength(), line + "\n", null);
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            received++;
+        }
+
+        void render(List<String> page) {
+            try {
+                conversation.remove(0, conversation.getLength());
+                for (int i = 0; i + 2 < page.size(); i += 3) {
+                    conversation.insertString(conversation.getLength(), page.get(i + 1) + ": " + page.get(i + 2) + "\n", null);
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
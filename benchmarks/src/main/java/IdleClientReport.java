@@ -0,0 +1,209 @@
+// IdleClientReport.java
+
+import javax.swing.*;
+import java.awt.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Measures what a logged-in client that nobody touches costs, with its views
+ * kept current the way ChipiChipiGUI_Full used to (a Swing Timer copying the
+ * state into them every 250 ms) and the way it does now (ClientModel change
+ * listeners):
+ *
+ *   java -cp benchmarks/target/benchmarks.jar IdleClientReport [seconds] [friends]
+ *
+ * Starts ChipiChipiServer as a ServerProcess, logs a user in with the given
+ * number of friends (default 20) and a few pending requests, and binds a chat
+ * label, profile area, title label and friend list to a ClientModel filled
+ * from PROFILE, FRIENDS and REQUESTS. Each mode then idles for the given time
+ * (default 10 s) with the connection open. Reports the events the event
+ * thread dispatched, its CPU time inside them, and the process CPU time.
+ * Runs headless, so nothing is painted: in a real window every timer tick
+ * also repaints the profile area. Exits with status 1 if the listener mode
+ * did work while idle, or if a real change did not reach every view.
+ */
+public class IdleClientReport {
+    private static final int TIMER_MS = 250;
+    private static final int REQUESTS = 3;
+    private static final String PASSWORD = "pw";
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int friends = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        CountingQueue queue = new CountingQueue();
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(queue);
+
+        int failures = 0;
+        try (ServerProcess server = ServerProcess.start()) {
+            ServerConnection conn = login("idle-user");
+            for (int i = 0; i < friends + REQUESTS; i++) {
+                ServerConnection other = login("idle-friend" + i);
+                other.request("FRIEND", "idle-user").get();
+                if (i < friends) conn.request("ACCEPT", "idle-friend" + i).get();
+                other.close();
+            }
+            System.out.printf("%d friends, %d pending requests, %d s idle per mode%n", friends, REQUESTS, seconds);
+            for (boolean polling : new boolean[] {true, false}) {
+                failures += run(polling, conn, queue, seconds);
+            }
+            conn.close();
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " problems with the change listeners");
+            System.exit(1);
+        }
+        System.out.println("OK: idle client did no event-thread work, changes still reached every view");
+    }
+
+    private static int run(boolean polling, ServerConnection conn, CountingQueue queue, int seconds) throws Exception {
+        List<String> profile = conn.request("PROFILE").get();
+        List<String> friends = conn.request("FRIENDS").get();
+        List<String> requests = conn.request("REQUESTS").get();
+        Views views = new Views();
+        javax.swing.Timer timer = new javax.swing.Timer(TIMER_MS, e -> views.copy());
+        SwingUtilities.invokeAndWait(() -> {
+            if (polling) {
+                timer.start();
+            } else {
+                views.listen();
+            }
+            views.model.setUser(new ClientModel.User(profile.get(0), Integer.parseInt(profile.get(1)), profile.get(2), profile.get(3)));
+            views.model.setFriends(new ClientModel.Friends(friends, requests));
+            views.model.setActiveChat("#Global");
+        });
+        // let the login updates settle before measuring
+        Thread.sleep(1000);
+
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        SwingUtilities.invokeAndWait(queue::reset);
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long cpu = os.getProcessCpuTime() - cpuStart;
+        long elapsed = System.nanoTime() - start;
+        long[] edt = new long[2];
+        // neither probe is counted: reset() turns counting on during its event, this one reads before its own is counted
+        SwingUtilities.invokeAndWait(() -> {
+            edt[0] = queue.events;
+            edt[1] = queue.cpuNanos;
+            queue.counting = false;
+        });
+
+        SwingUtilities.invokeAndWait(timer::stop);
+        System.out.printf("%-9s %,5d events on the event thread, %,7d us of its CPU | process CPU %,d ms (%.2f%% of one core)%n",
+                polling ? "timer" : "listeners", edt[0], edt[1] / 1000, cpu / 1_000_000, 100.0 * cpu / elapsed);
+        if (polling) return 0;
+
+        int failures = 0;
+        if (edt[0] > 0) {
+            System.out.println("listeners: " + edt[0] + " events dispatched while idle");
+            failures++;
+        }
+        failures += checkChange(views, friends, requests);
+        return failures;
+    }
+
+    /** Setting what is already there fires nothing; a real change reaches every view bound to it. */
+    private static int checkChange(Views views, List<String> friends, List<String> requests) throws Exception {
+        List<String> problems = new ArrayList<>();
+        SwingUtilities.invokeAndWait(() -> {
+            ClientModel model = views.model;
+            long fired = model.changesFired();
+            model.setActiveChat("#Global");
+            model.setFriends(new ClientModel.Friends(friends, requests));
+            model.setUser(model.user());
+            if (model.changesFired() != fired) problems.add("setting unchanged values fired " + (model.changesFired() - fired) + " changes");
+
+            String friend = friends.get(0);
+            model.setActiveChat(friend);
+            if (!views.chatLabel.getText().equals("Chat: " + friend)) problems.add("chat label shows " + views.chatLabel.getText());
+            String request = requests.get(0);
+            model.acceptRequest(request);
+            if (!views.friendsList.contains(request)) problems.add("accepted request missing from the friend list");
+            if (!views.profileArea.getText().contains("Friends: " + (friends.size() + 1))) problems.add("profile shows old friend count");
+            model.setUser(null);
+            if (!views.userTitle.getText().equals("User: Guest")) problems.add("title shows " + views.userTitle.getText());
+        });
+        for (String problem : problems) System.out.println("listeners: " + problem);
+        return problems.size();
+    }
+
+    /** The parts of ChipiChipiGUI_Full that show ClientModel state, bound either way. */
+    private static final class Views {
+        final ClientModel model = new ClientModel();
+        final JLabel chatLabel = new JLabel();
+        final JLabel userTitle = new JLabel("User: Guest");
+        final JTextArea profileArea = new JTextArea();
+        final DefaultListModel<String> friendsList = new DefaultListModel<>();
+
+        /** What the 250 ms timer did on every tick. */
+        void copy() {
+            chatLabel.setText("Chat: " + model.activeChat());
+            if (model.loggedIn()) profileArea.setText(profileText());
+        }
+
+        /** What ChipiChipiGUI_Full does now: each view changes when its property does. */
+        void listen() {
+            model.addListener(ClientModel.ACTIVE_CHAT, e -> chatLabel.setText("Chat: " + model.activeChat()));
+            model.addListener(ClientModel.USER, e -> {
+                userTitle.setText("User: " + (model.loggedIn() ? model.username() : "Guest"));
+                profileArea.setText(profileText());
+            });
+            model.addListener(ClientModel.FRIENDS, e -> {
+                friendsList.clear();
+                friendsList.addElement("#Global");
+                for (String f : model.friends().friends()) friendsList.addElement(f);
+                profileArea.setText(profileText());
+            });
+        }
+
+        private String profileText() {
+            ClientModel.User u = model.user();
+            if (u == null) return "No user logged in";
+            return "Username: " + u.username() + "\nAge: " + u.age() + "\nGender: " + u.gender() + "\nCountry: " + u.country()
+                    + "\nFriends: " + model.friends().friends().size() + "\nRequests: " + model.friends().requests().size() + "\n";
+        }
+    }
+
+    /** Counts the events the event thread dispatches for the client, and its CPU time inside them, while counting is on. */
+    private static final class CountingQueue extends EventQueue {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean counting;
+        long events, cpuNanos;
+
+        void reset() {
+            events = 0;
+            cpuNanos = 0;
+            counting = true;
+        }
+
+        @Override protected void dispatchEvent(AWTEvent event) {
+            // AWT's own notice that the event thread has gone idle and may shut down is not the client's work
+            if (!counting || event.getSource().getClass().getName().equals("sun.awt.AWTAutoShutdown")) {
+                super.dispatchEvent(event);
+                return;
+            }
+            long start = threads.getCurrentThreadCpuTime();
+            super.dispatchEvent(event);
+            cpuNanos += threads.getCurrentThreadCpuTime() - start;
+            events++;
+        }
+    }
+
+    private static ServerConnection login(String username) throws Exception {
+        ServerConnection.Listener listener = new ServerConnection.Listener() {
+            @Override public void onDirectMessage(String sender, long id, String text) {}
+            @Override public void onChat(String room, long id, String sender, String text) {}
+            @Override public void onDisconnect(String reason) {}
+        };
+        ServerConnection conn = ServerConnection.connect("localhost", ServerConnection.DEFAULT_PORT, listener).get();
+        conn.request("REGISTER", username, PASSWORD, "30", "N/A", "N/A").get();
+        conn.request("LOGIN", username, PASSWORD).get();
+        return conn;
+    }
+}
@@ -0,0 +1,181 @@
+// PostSearchReport.java
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds PostSearch over a synthetic posts.txt, checks its answers against
+ * a plain scan of every post, and reports build time, heap and query latency:
+ *
+ *   java -Xmx2g -cp benchmarks/target/benchmarks.jar PostSearchReport [posts] [authors] [queries]
+ *
+ * Post words follow a Zipf-like distribution over a 20k-word vocabulary, so
+ * queries mix very common words with rare ones. After the startup build,
+ * several threads post at once through PostStore and onPost, which exercises
+ * out-of-order catch-up. Exits with status 1 if any page differs from the scan.
+ */
+public class PostSearchReport {
+    private static final int VOCABULARY = 20_000;
+    private static final int WRITERS = 4;
+    private static final int LIVE_POSTS = 20_000;
+    private static final int CHECKED_QUERIES = 300;
+
+    public static void main(String[] args) throws Exception {
+        int postCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int authors = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+        Path dir = Files.createTempDirectory("chipichipi-postsearch");
+        Random random = new Random(42);
+        double[] weights = zipf(VOCABULARY);
+        try (BufferedWriter bw = Files.newBufferedWriter(dir.resolve("posts.txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < postCount; i++) {
+                bw.write("user" + random.nextInt(authors) + ";2025-08-17 04:05;" + text(random, weights) + "\n");
+            }
+        }
+
+        PostStore store = new PostStore(dir.resolve("posts.txt").toString());
+        store.open();
+        long before = usedHeap();
+        long start = System.nanoTime();
+        PostSearch search = new PostSearch(store);
+        search.build();
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+        long after = usedHeap();
+        System.out.printf("%,d posts indexed in %,d ms: %,d words, %,d MB of index (%d bytes per post)%n",
+                search.size(), buildMillis, search.distinctWords(), (after - before) >> 20, (after - before) / postCount);
+
+        // concurrent posts: onPost calls arrive out of id order and must catch up from the store
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < WRITERS; t++) {
+            long seed = t;
+            writers.add(pool.submit(() -> {
+                Random r = new Random(seed);
+                for (int i = 0; i < LIVE_POSTS / WRITERS; i++) {
+                    String author = "user" + r.nextInt(authors);
+                    String content = text(r, weights);
+                    int id = store.append(author, "2025-08-17 04:06", content);
+                    search.onPost(id, author, content);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : writers) f.get();
+        pool.shutdown();
+
+        List<PostStore.Post> all = store.all();
+        List<Set<String>> postWords = new ArrayList<>(all.size());
+        for (PostStore.Post p : all) postWords.add(new HashSet<>(PostSearch.words(p.content())));
+        int failures = 0;
+        for (int q = 0; q < CHECKED_QUERIES; q++) {
+            PostSearch.Query query = PostSearch.Query.parse(randomQuery(random, weights, authors, q));
+            int cursor = random.nextBoolean() ? Integer.MAX_VALUE : random.nextInt(all.size());
+            int[] expected = scan(all, postWords, query, cursor, PostStore.PAGE_SIZE);
+            int[] actual = search.ids(query, cursor, PostStore.PAGE_SIZE);
+            if (!Arrays.equals(expected, actual)) {
+                if (failures++ < 5) {
+                    System.out.println(query + " before " + cursor + ": " + Arrays.toString(actual) + " != " + Arrays.toString(expected));
+                }
+            }
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long[] one = new long[queries];
+            long[] and = new long[queries];
+            long[] byAuthor = new long[queries];
+            for (int i = 0; i < queries; i++) {
+                String common = word(random, weights);
+                String other = word(random, weights);
+                one[i] = time(search, common);
+                and[i] = time(search, common + " " + other);
+                byAuthor[i] = time(search, common + " from:user" + random.nextInt(authors));
+            }
+            System.out.printf("round %d: one word %s | two words %s | word + author %s%n",
+                    round + 1, percentiles(one), percentiles(and), percentiles(byAuthor));
+        }
+
+        // what the same page costs without the index
+        long t0 = System.nanoTime();
+        int scans = 20;
+        for (int i = 0; i < scans; i++) {
+            scan(store.all(), null, PostSearch.Query.parse(word(random, weights) + " " + word(random, weights)),
+                    Integer.MAX_VALUE, PostStore.PAGE_SIZE);
+        }
+        System.out.printf("full scan of posts.txt for one page: %.1f ms%n", (System.nanoTime() - t0) / 1e6 / scans);
+
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        if (failures == 0) {
+            System.out.println("OK: " + CHECKED_QUERIES + " pages match a full scan");
+        } else {
+            System.out.println("FAILED: " + failures + " of " + CHECKED_QUERIES + " pages differ from a full scan");
+            System.exit(1);
+        }
+    }
+
+    private static long time(PostSearch search, String text) throws IOException {
+        long t0 = System.nanoTime();
+        search.search(PostSearch.Query.parse(text), Integer.MAX_VALUE, PostStore.PAGE_SIZE);
+        return System.nanoTime() - t0;
+    }
+
+    /** Newest-first matching ids below {@code before}, by checking every post. */
+    private static int[] scan(List<PostStore.Post> all, List<Set<String>> postWords, PostSearch.Query query, int before, int limit) {
+        List<Integer> ids = new ArrayList<>();
+        for (int id = Math.min(before, all.size()) - 1; id >= 0 && ids.size() < limit; id--) {
+            PostStore.Post p = all.get(id);
+            if (query.author() != null && !query.author().equals(p.author())) continue;
+            Collection<String> words = postWords != null ? postWords.get(id) : PostSearch.words(p.content());
+            if (words.containsAll(query.words())) ids.add(id);
+        }
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static String randomQuery(Random random, double[] weights, int authors, int q) {
+        return switch (q % 4) {
+            case 0 -> word(random, weights);
+            case 1 -> word(random, weights) + " " + word(random, weights);
+            case 2 -> word(random, weights) + " from:user" + random.nextInt(authors);
+            default -> "from:user" + random.nextInt(authors);
+        };
+    }
+
+    private static String text(Random random, double[] weights) {
+        StringBuilder sb = new StringBuilder();
+        int n = 5 + random.nextInt(15);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(i % 7 == 0 ? ", " : " ");
+            String w = word(random, weights);
+            sb.append(i == 0 ? Character.toUpperCase(w.charAt(0)) + w.substring(1) : w);
+        }
+        return sb.append('.').toString();
+    }
+
+    private static String word(Random random, double[] cumulative) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+        return "w" + Integer.toString(i < 0 ? -i - 1 : i, 36);
+    }
+
+    private static double[] zipf(int n) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) cumulative[i] = sum += 1.0 / (i + 1);
+        return cumulative;
+    }
+
+    private static String percentiles(long[] nanos) {
+        Arrays.sort(nanos);
+        return String.format("p50 %.1f us p99 %.1f us", nanos[nanos.length / 2] / 1e3, nanos[nanos.length * 99 / 100] / 1e3);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,103 @@
+// ServerFixture.java
+
+import chipichipi.bench.ServerOps;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ServerOps on top of ChipiChipiServer's static state. Lives in the unnamed
+ * package so it can reach the package-private server classes.
+ */
+public class ServerFixture implements ServerOps {
+    private static final String[] GENDERS = {"Male", "Female"};
+    private static final String[] COUNTRIES = {"BD", "IN", "US", "DE", "BR", "JP"};
+
+    private UserStore userStore;
+
+    @Override public void writeUsers(Path dir, int users, int friendsPerUser) throws IOException {
+        Random random = new Random(42);
+        try (BufferedWriter bw = Files.newBufferedWriter(dir.resolve("users.txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < users; i++) {
+                // friends are neighbours on a ring, so every friendship is mutual
+                StringJoiner friends = new StringJoiner(",");
+                for (int k = 1; k <= friendsPerUser / 2; k++) {
+                    friends.add("user" + Math.floorMod(i - k, users));
+                    friends.add("user" + Math.floorMod(i + k, users));
+                }
+                String request = "user" + random.nextInt(users);
+                bw.write("user" + i + ";pw" + i + ";" + (18 + random.nextInt(60)) + ";" + GENDERS[i % 2] + ";"
+                        + COUNTRIES[random.nextInt(COUNTRIES.length)] + ";" + friends + ";" + request + "\n");
+            }
+        }
+    }
+
+    @Override public void writePosts(Path dir, int posts, int authors) throws IOException {
+        Random random = new Random(7);
+        try (BufferedWriter bw = Files.newBufferedWriter(dir.resolve("posts.txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < posts; i++) {
+                bw.write("user" + random.nextInt(authors) + ";2025-08-17 04:05;post number " + i
+                        + " with a little more text so the line is about as long as a real one\n");
+            }
+        }
+    }
+
+    @Override public int loadUsers(Path dir) throws IOException {
+        close();
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        userStore = new UserStore(dir.resolve("users.txt").toString(), dir.resolve("users.log").toString(), false);
+        userStore.load(users);
+        ChipiChipiServer.users = users;
+        ChipiChipiServer.userStore = userStore;
+        ChipiChipiServer.socialGraph = new SocialGraph(users, userStore);
+        return users.size();
+    }
+
+    @Override public void saveUsers() {
+        ChipiChipiServer.socialGraph.compact();
+    }
+
+    @Override public void openPosts(Path dir, boolean mapped) throws IOException {
+        ChipiChipiServer.postStore = new PostStore(dir.resolve("posts.txt").toString(), mapped, false, 0);
+        ChipiChipiServer.postStore.open();
+        ChipiChipiServer.homeTimeline = new HomeTimeline(ChipiChipiServer.postStore, ChipiChipiServer.users);
+    }
+
+    @Override public void viewPosts() {
+        ChipiChipiServer.writePosts(new PrintWriter(Writer.nullWriter()));
+    }
+
+    @Override public int postCount() {
+        return ChipiChipiServer.postStore.size();
+    }
+
+    @Override public int postPage(int beforeId) throws IOException {
+        return ChipiChipiServer.postPage(beforeId).size();
+    }
+
+    @Override public int appendPost(String author, String text) throws IOException {
+        return ChipiChipiServer.postStore.append(author, "2025-08-17 04:05", text);
+    }
+
+    @Override public int postsByUser(String username) {
+        return ChipiChipiServer.getPostsByUser(username).size();
+    }
+
+    @Override public String requestAndAccept(String from, String to) throws IOException {
+        ChipiChipiServer.User sender = ChipiChipiServer.users.get(from);
+        ChipiChipiServer.User target = ChipiChipiServer.users.get(to);
+        String reply = ChipiChipiServer.sendFriendRequest(sender, to);
+        ChipiChipiServer.acceptFriendRequest(target, from);
+        sender.friends.remove(to);
+        target.friends.remove(from);
+        return reply;
+    }
+
+    @Override public void close() throws IOException {
+        if (userStore != null) userStore.close();
+        userStore = null;
+    }
+}
@@ -0,0 +1,125 @@
+// StartupLoadReport.java
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times loading users.txt at startup, the old line-by-line way and with
+ * UserSnapshotReader, and checks that both give the same table:
+ *
+ *   java -Xmx4g -cp benchmarks/target/benchmarks.jar StartupLoadReport [users] [friendsPerUser] [--compact-graph]
+ *
+ * Defaults are 1M users with 20 friends each. A 10M-user table needs
+ * --compact-graph and few friends to fit in a few GB of heap, e.g.
+ * "StartupLoadReport 10000000 4 --compact-graph" with -Xmx4600m.
+ * Exits with status 1 if the two loads differ.
+ */
+public class StartupLoadReport {
+    private static final String[] COUNTRIES = {"BD", "IN", "US", "DE", "BR", "JP"};
+
+    public static void main(String[] args) throws IOException {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int friendsPerUser = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        boolean compact = Arrays.asList(args).contains("--compact-graph");
+
+        Path dir = Files.createTempDirectory("chipichipi-startup");
+        Path file = dir.resolve("users.txt");
+        writeUsers(file, userCount, friendsPerUser);
+        System.out.printf("%,d users, %d friends each%s: users.txt is %,d MB, %d cores%n", userCount, friendsPerUser,
+                compact ? ", compact graph" : "", Files.size(file) >> 20, Runtime.getRuntime().availableProcessors());
+
+        try {
+            for (int round = 0; round < 3; round++) {
+                String legacy = time(() -> legacyLoad(file, fresh(compact)));
+                String reader = time(() -> UserSnapshotReader.read(file, fresh(compact)));
+                System.out.printf("round %d: line by line %s | UserSnapshotReader %s%n", round + 1, legacy, reader);
+            }
+
+            Map<String, ChipiChipiServer.User> expected = fresh(compact);
+            legacyLoad(file, expected);
+            Map<String, String> rows = new HashMap<>(expected.size());
+            expected.forEach((name, u) -> rows.put(name, describe(u)));
+            expected = null;
+            Map<String, ChipiChipiServer.User> actual = fresh(compact);
+            UserSnapshotReader.read(file, actual);
+            int differing = rows.size() == actual.size() ? 0 : Math.abs(rows.size() - actual.size());
+            for (ChipiChipiServer.User u : actual.values()) {
+                if (!describe(u).equals(rows.get(u.username))) differing++;
+            }
+            if (differing > 0) {
+                System.out.println("FAILED: " + differing + " users differ between the two loads");
+                System.exit(1);
+            }
+            System.out.println("OK: both loads give the same " + rows.size() + " users");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    interface Load {
+        void run() throws IOException;
+    }
+
+    /** Wall time, and how much of it went to collections (copying the growing table dominates on small machines). */
+    private static String time(Load load) throws IOException {
+        for (int i = 0; i < 3; i++) System.gc();
+        long gcBefore = gcMillis();
+        long start = System.nanoTime();
+        load.run();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        return String.format("%,d ms (%,d ms in GC)", millis, gcMillis() - gcBefore);
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += gc.getCollectionTime();
+        return total;
+    }
+
+    private static Map<String, ChipiChipiServer.User> fresh(boolean compact) {
+        ChipiChipiServer.compactGraph = compact ? new CompactGraph() : null;
+        return new ConcurrentHashMap<>();
+    }
+
+    /** How UserStore read users.txt before UserSnapshotReader: one line at a time on one thread. */
+    private static void legacyLoad(Path file, Map<String, ChipiChipiServer.User> users) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(";");
+                if (parts.length < 5) continue;
+                ChipiChipiServer.User user = new ChipiChipiServer.User(parts[0], parts[1], Integer.parseInt(parts[2]), parts[3], parts[4]);
+                if (parts.length > 5 && !parts[5].isEmpty()) user.friends.addAll(Arrays.asList(parts[5].split(",")));
+                if (parts.length > 6 && !parts[6].isEmpty()) user.friendRequests.addAll(Arrays.asList(parts[6].split(",")));
+                users.put(user.username, user);
+            }
+        }
+    }
+
+    private static String describe(ChipiChipiServer.User u) {
+        return u.password + ";" + u.age + ";" + u.gender + ";" + u.country + ";"
+                + new TreeSet<>(u.friends) + ";" + new TreeSet<>(u.friendRequests);
+    }
+
+    /** Same shape as ServerFixture.writeUsers: friends are neighbours on a ring, plus one pending request. */
+    private static void writeUsers(Path file, int users, int friendsPerUser) throws IOException {
+        Random random = new Random(42);
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < users; i++) {
+                StringJoiner friends = new StringJoiner(",");
+                for (int k = 1; k <= friendsPerUser / 2; k++) {
+                    friends.add("user" + Math.floorMod(i - k, users));
+                    friends.add("user" + Math.floorMod(i + k, users));
+                }
+                bw.write("user" + i + ";pw" + i + ";" + (18 + random.nextInt(60)) + ";" + (i % 2 == 0 ? "Male" : "Female")
+                        + ";" + COUNTRIES[random.nextInt(COUNTRIES.length)] + ";" + friends + ";user" + random.nextInt(users) + "\n");
+            }
+        }
+    }
+}
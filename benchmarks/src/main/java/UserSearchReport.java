@@ -0,0 +1,115 @@
+// UserSearchReport.java
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes a synthetic username table in UserSearch and reports index size,
+ * build time and query latency for prefix queries and for misspelt names:
+ *
+ *   java -Xmx2g -cp benchmarks/target/benchmarks.jar UserSearchReport [users] [queries]
+ *
+ * Names are random syllables with an optional number ("kabe", "torimu42"),
+ * 1M of them by default, so prefixes and trigrams are spread the way real
+ * names are rather than all starting with "user".
+ *
+ * Then builds the index the way the server does at startup, in the
+ * background with UserSearch.building(), and reports how long the caller
+ * waited, how long searches took while they scanned the names instead, and
+ * when the index was ready.
+ */
+public class UserSearchReport {
+    private static final String[] SYLLABLES = {
+        "ka", "ki", "ku", "ke", "ko", "sa", "shi", "su", "se", "so", "ta", "chi", "tsu", "te", "to",
+        "na", "ni", "nu", "ne", "no", "ma", "mi", "mu", "me", "mo", "ra", "ri", "ru", "re", "ro",
+        "ba", "bi", "bu", "be", "bo", "da", "de", "do", "ga", "gi", "go", "ya", "yu", "yo", "wa", "an", "el", "is",
+    };
+
+    public static void main(String[] args) throws InterruptedException {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        Random random = new Random(42);
+        Set<String> unique = new LinkedHashSet<>();
+        while (unique.size() < userCount) unique.add(randomName(random));
+        List<String> names = new ArrayList<>(unique);
+        unique = null;
+
+        long before = usedHeap();
+        long start = System.nanoTime();
+        UserSearch search = UserSearch.of(names);
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+        long after = usedHeap();
+        System.out.printf("%,d names indexed in %,d ms, %,d MB of index (%d bytes per name)%n",
+                search.size(), buildMillis, (after - before) >> 20, (after - before) / userCount);
+
+        for (int round = 0; round < 3; round++) {
+            long[] prefix = new long[queries];
+            long[] typo = new long[queries];
+            int found = 0;
+            for (int i = 0; i < queries; i++) {
+                String name = names.get(random.nextInt(names.size()));
+                String query = name.substring(0, 1 + random.nextInt(Math.min(4, name.length())));
+                long t0 = System.nanoTime();
+                search.search(query, UserSearch.DEFAULT_LIMIT);
+                prefix[i] = System.nanoTime() - t0;
+
+                String misspelt = misspell(random, name);
+                t0 = System.nanoTime();
+                if (search.search(misspelt, UserSearch.DEFAULT_LIMIT).contains(name)) found++;
+                typo[i] = System.nanoTime() - t0;
+            }
+            Arrays.sort(prefix);
+            Arrays.sort(typo);
+            System.out.printf("round %d: prefix p50 %.1f us p99 %.1f us | one typo p50 %.1f us p99 %.1f us, intended name found %d%%%n",
+                    round + 1, prefix[queries / 2] / 1e3, prefix[queries * 99 / 100] / 1e3,
+                    typo[queries / 2] / 1e3, typo[queries * 99 / 100] / 1e3, 100L * found / queries);
+        }
+        search = null;
+        background(names, random);
+    }
+
+    private static void background(List<String> names, Random random) throws InterruptedException {
+        Set<String> table = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        table.addAll(names);
+        long start = System.nanoTime();
+        UserSearch search = UserSearch.building(table);
+        long returnedMicros = (System.nanoTime() - start) / 1_000;
+        LatencyHistogram scans = new LatencyHistogram();
+        while (!search.ready()) {
+            String name = names.get(random.nextInt(names.size()));
+            long t0 = System.nanoTime();
+            search.search(misspell(random, name), UserSearch.DEFAULT_LIMIT);
+            if (!search.ready()) scans.recordNanos(System.nanoTime() - t0);
+            Thread.sleep(50);
+        }
+        long readyMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("background build: building() returned in %,d us, %,d searches by scan meanwhile (p50 %,d us, max %,d us), index ready after %,d ms%n",
+                returnedMicros, scans.count(), scans.percentileMicros(50), scans.percentileMicros(100), readyMillis);
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int syllables = 2 + random.nextInt(3);
+        for (int i = 0; i < syllables; i++) sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        if (random.nextBoolean()) sb.append(random.nextInt(1000));
+        return sb.toString();
+    }
+
+    /** One random substitution, insertion or deletion. */
+    private static String misspell(Random random, String name) {
+        int pos = random.nextInt(name.length());
+        char c = (char) ('a' + random.nextInt(26));
+        return switch (random.nextInt(3)) {
+            case 0 -> name.substring(0, pos) + c + name.substring(pos + 1);
+            case 1 -> name.substring(0, pos) + c + name.substring(pos);
+            default -> name.substring(0, pos) + name.substring(pos + 1);
+        };
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
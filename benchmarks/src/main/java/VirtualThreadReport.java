@@ -0,0 +1,145 @@
+// VirtualThreadReport.java
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same menu workload against a thread-per-client server and a
+ * --virtual-threads server, and counts how often a session pinned its
+ * carrier thread:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar VirtualThreadReport [clients] [seconds] [thinkMs]
+ *
+ * For each mode, starts ChipiChipiServer as a ServerProcess with a flight
+ * recording of every jdk.VirtualThreadPinned event (threshold 0), logs in the
+ * given number of MenuClients (default 10,000) and has each post, browse
+ * posts, read its home timeline and send friend requests for the given time
+ * (default 30 s), with an exponential think time (mean 1,000 ms) between
+ * actions. Reports actions per second, latency, the server's threads and
+ * memory, and the pinned events by the server frame they happened in. Exits
+ * with status 1 if the virtual-thread server pinned a carrier at all.
+ */
+public class VirtualThreadReport {
+    private static final int CONNECTING = 20;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int thinkMillis = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        System.out.printf("%,d clients for %d s, think time %,d ms, %d cores%n",
+                clients, seconds, thinkMillis, Runtime.getRuntime().availableProcessors());
+        long pinned = 0;
+        for (boolean virtual : new boolean[] {false, true}) {
+            long events = run(virtual, clients, seconds, thinkMillis);
+            if (virtual) pinned = events;
+        }
+        if (pinned > 0) {
+            System.out.println("FAILED: virtual-thread sessions pinned their carrier " + pinned + " times");
+            System.exit(1);
+        }
+        System.out.println("OK: no virtual-thread session pinned its carrier");
+    }
+
+    private static long run(boolean virtual, int clients, int seconds, int thinkMillis) throws Exception {
+        String mode = virtual ? "virtual" : "platform";
+        List<String> jvm = List.of("-XX:StartFlightRecording=filename=pinned.jfr,jdk.VirtualThreadPinned#threshold=0ms");
+        try (ServerProcess server = virtual ? ServerProcess.start(jvm, "--virtual-threads") : ServerProcess.start(jvm)) {
+            List<MenuClient> sessions = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger failed = new AtomicInteger();
+            Semaphore connecting = new Semaphore(CONNECTING);
+            long setupStart = System.nanoTime();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < clients; i++) {
+                    String name = mode + i;
+                    connecting.acquire();
+                    executor.submit(() -> {
+                        try {
+                            sessions.add(MenuClient.login(name));
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        } finally {
+                            connecting.release();
+                        }
+                    });
+                }
+            }
+            long setupMillis = (System.nanoTime() - setupStart) / 1_000_000;
+
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicInteger errors = new AtomicInteger();
+            long start = System.nanoTime();
+            long deadline = start + seconds * 1_000_000_000L;
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (MenuClient client : sessions) {
+                    executor.submit(() -> act(client, sessions.size(), mode, deadline, thinkMillis, latency, errors));
+                }
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            String resources = server.threadsAndMemory();
+            for (MenuClient client : sessions) client.close();
+
+            server.stop();
+            Map<String, Integer> pinnedAt = pinnedEvents(server.file("pinned.jfr"));
+            long pinned = pinnedAt.values().stream().mapToLong(Integer::longValue).sum();
+            System.out.printf("%-8s %,6d logged in (%,d ms), %,d failed | %,8.0f actions/s, p50 %,d us, p99 %,d us, %d errors | server %s | %,d pinned%n",
+                    mode, sessions.size(), setupMillis, failed.get(), latency.count() / elapsed,
+                    latency.percentileMicros(50), latency.percentileMicros(99), errors.get(), resources, pinned);
+            pinnedAt.forEach((frame, n) -> System.out.printf("    %,6d pinned in %s%n", n, frame));
+            return pinned;
+        }
+    }
+
+    private static void act(MenuClient client, int clients, String mode, long deadline, int thinkMillis,
+                            LatencyHistogram latency, AtomicInteger errors) {
+        Random random = ThreadLocalRandom.current();
+        try {
+            while (true) {
+                long think = (long) (-Math.log(1 - random.nextDouble()) * thinkMillis);
+                if (System.nanoTime() + think * 1_000_000 > deadline) return;
+                Thread.sleep(think);
+                long t = System.nanoTime();
+                int pick = random.nextInt(10);
+                if (pick < 3) {
+                    client.command("4", "load test post " + t);
+                } else if (pick < 6) {
+                    client.command("9", "");
+                } else if (pick < 8) {
+                    client.command("10", "");
+                } else {
+                    client.command("1", mode + random.nextInt(clients));
+                }
+                latency.recordNanos(System.nanoTime() - t);
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Pinned events by the innermost frame outside the JDK, i.e. the server code holding the monitor or native frame. */
+    private static Map<String, Integer> pinnedEvents(Path recording) throws IOException {
+        Map<String, Integer> byFrame = new TreeMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+            if (!event.getEventType().getName().equals("jdk.VirtualThreadPinned")) continue;
+            String where = "(no stack trace)";
+            if (event.getStackTrace() != null) {
+                for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                    String type = frame.getMethod().getType().getName();
+                    if (type.startsWith("java.") || type.startsWith("jdk.") || type.startsWith("sun.")) continue;
+                    where = type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+                    break;
+                }
+            }
+            byFrame.merge(where, 1, Integer::sum);
+        }
+        return byFrame;
+    }
+}
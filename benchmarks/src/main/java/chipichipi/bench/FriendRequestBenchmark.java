@@ -0,0 +1,49 @@
+package chipichipi.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send-and-accept of a friend request, including the user log appends and
+ * the periodic snapshot compaction they trigger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FriendRequestBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int users;
+
+    private ServerOps ops;
+    private Path dir;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ops = ServerOps.create();
+        dir = DataDir.create();
+        ops.writeUsers(dir, users, 20);
+        ops.writePosts(dir, 1000, users);
+        ops.loadUsers(dir);
+        ops.openPosts(dir, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ops.close();
+        DataDir.delete(dir);
+    }
+
+    @Benchmark
+    public String requestAndAccept() throws IOException {
+        next = (next + 1) % users;
+        // half the ring away, so the pair is never already friends
+        return ops.requestAndAccept("user" + next, "user" + ((next + users / 2) % users));
+    }
+}
@@ -0,0 +1,86 @@
+package chipichipi.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latest page of posts.txt at 1 MB, 100 MB and 2 GB, read the way
+ * viewPosts used to (a BufferedReader over the whole file), through
+ * PostStore's positional channel reads, and through its --mmap MappedLog.
+ * appendThenLatestPage adds a post before each read, as a busy server does.
+ *
+ * The BufferedReader path keeps only the last page of lines: the old
+ * ArrayList of every line does not fit a 2 GB log in this fork's heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LogReadBenchmark {
+    private static final int PAGE = 20;
+    private static final int AUTHORS = 10_000;
+    private static final int BYTES_PER_POST = 110; // what ServerOps.writePosts writes, roughly
+
+    @Param({"1", "100", "2048"})
+    int megabytes;
+
+    @Param({"bufferedReader", "channel", "mmap"})
+    String reader;
+
+    private ServerOps ops;
+    private Path dir;
+    private Path posts;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ops = ServerOps.create();
+        dir = DataDir.create();
+        posts = dir.resolve("posts.txt");
+        ops.writeUsers(dir, AUTHORS, 2);
+        ops.writePosts(dir, (int) (megabytes * 1_048_576L / BYTES_PER_POST), AUTHORS);
+        ops.loadUsers(dir);
+        if (!reader.equals("bufferedReader")) ops.openPosts(dir, reader.equals("mmap"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ops.close();
+        DataDir.delete(dir);
+    }
+
+    @Benchmark
+    public int latestPage() throws IOException {
+        return reader.equals("bufferedReader") ? tailLines() : ops.postPage(ops.postCount());
+    }
+
+    @Benchmark
+    public int appendThenLatestPage() throws IOException {
+        String text = "appended post " + next++;
+        if (reader.equals("bufferedReader")) {
+            Files.writeString(posts, "user1;2025-08-17 04:05;" + text + "\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            return tailLines();
+        }
+        ops.appendPost("user1", text);
+        return ops.postPage(ops.postCount());
+    }
+
+    private int tailLines() throws IOException {
+        ArrayDeque<String> last = new ArrayDeque<>(PAGE + 1);
+        try (BufferedReader br = new BufferedReader(new FileReader(posts.toFile(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                last.addLast(line);
+                if (last.size() > PAGE) last.removeFirst();
+            }
+        }
+        return last.size();
+    }
+}
@@ -0,0 +1,57 @@
+package chipichipi.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** "View Posts" over the whole feed and the per-author lookup, with and without --mmap. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PostBenchmark {
+    @Param({"1000000"})
+    int posts;
+
+    @Param({"10000"})
+    int authors;
+
+    @Param({"false", "true"})
+    boolean mapped;
+
+    private ServerOps ops;
+    private Path dir;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ops = ServerOps.create();
+        dir = DataDir.create();
+        ops.writeUsers(dir, authors, 20);
+        ops.writePosts(dir, posts, authors);
+        ops.loadUsers(dir);
+        ops.openPosts(dir, mapped);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ops.close();
+        DataDir.delete(dir);
+    }
+
+    @Benchmark
+    public void viewPosts() {
+        ops.viewPosts();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int getPostsByUser() {
+        next = (next + 1) % authors;
+        return ops.postsByUser("user" + next);
+    }
+}
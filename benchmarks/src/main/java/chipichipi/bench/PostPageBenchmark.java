@@ -0,0 +1,59 @@
+package chipichipi.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Browse Posts" pages as the feed grows to 10M posts (about 1.1 GB of
+ * posts.txt): the latest page, and a page below a random cursor. Both should
+ * cost the same at every size, since a page is one read through the offset index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PostPageBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    int posts;
+
+    @Param({"10000"})
+    int authors;
+
+    @Param({"false", "true"})
+    boolean mapped;
+
+    private ServerOps ops;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ops = ServerOps.create();
+        dir = DataDir.create();
+        ops.writeUsers(dir, authors, 20);
+        ops.writePosts(dir, posts, authors);
+        ops.loadUsers(dir);
+        ops.openPosts(dir, mapped);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ops.close();
+        DataDir.delete(dir);
+    }
+
+    @Benchmark
+    public int latestPage() throws IOException {
+        return ops.postPage(ops.postCount());
+    }
+
+    @Benchmark
+    public int pageAtRandomCursor() throws IOException {
+        return ops.postPage(1 + ThreadLocalRandom.current().nextInt(ops.postCount()));
+    }
+}
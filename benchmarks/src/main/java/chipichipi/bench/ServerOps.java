@@ -0,0 +1,62 @@
+package chipichipi.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The server operations the benchmarks drive.
+ *
+ * The server classes live in the unnamed package, which named packages cannot
+ * import, and JMH refuses benchmarks in the unnamed package. ServerFixture
+ * (unnamed package, same module) implements this interface and is looked up
+ * once per trial, so the measured calls are plain interface calls.
+ */
+public interface ServerOps {
+    static ServerOps create() {
+        try {
+            return (ServerOps) Class.forName("ServerFixture").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ServerFixture not on the classpath", e);
+        }
+    }
+
+    /** Writes users.txt with {@code users} users, each with about {@code friendsPerUser} friends. */
+    void writeUsers(Path dir, int users, int friendsPerUser) throws IOException;
+
+    /** Writes posts.txt with {@code posts} posts spread over {@code authors} users. */
+    void writePosts(Path dir, int posts, int authors) throws IOException;
+
+    /** Startup user loading (snapshot parse plus log replay) into a fresh table; returns the user count. */
+    int loadUsers(Path dir) throws IOException;
+
+    /** Writes the loaded user table as a new users.txt snapshot. */
+    void saveUsers();
+
+    /** Opens posts.txt and the home timeline on top of the loaded users. */
+    void openPosts(Path dir, boolean mapped) throws IOException;
+
+    /** Renders "View Posts" (every post) into a discarding writer. */
+    void viewPosts();
+
+    /** How many posts the opened posts.txt holds. */
+    int postCount();
+
+    /** "Browse Posts": one newest-first page of posts below {@code beforeId}; returns its size. */
+    int postPage(int beforeId) throws IOException;
+
+    /** Appends a post to the opened posts.txt and indexes it, without fanning it out; returns its id. */
+    int appendPost(String author, String text) throws IOException;
+
+    /** Contents of every post by one user; returns how many there were. */
+    int postsByUser(String username);
+
+    /**
+     * One friend request from {@code from} to {@code to} followed by its
+     * acceptance, then the friendship is dropped again in memory so the pair
+     * can be reused.
+     */
+    String requestAndAccept(String from, String to) throws IOException;
+
+    /** Closes whatever loadUsers opened. */
+    void close() throws IOException;
+}
@@ -0,0 +1,49 @@
+package chipichipi.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Startup parsing of users.txt and writing it back out as a snapshot. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UserStoreBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int users;
+
+    @Param({"20"})
+    int friendsPerUser;
+
+    private ServerOps ops;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ops = ServerOps.create();
+        dir = DataDir.create();
+        ops.writeUsers(dir, users, friendsPerUser);
+        ops.loadUsers(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ops.close();
+        DataDir.delete(dir);
+    }
+
+    @Benchmark
+    public int loadUsers() throws IOException {
+        return ops.loadUsers(dir);
+    }
+
+    @Benchmark
+    public void saveUsers() {
+        ops.saveUsers();
+    }
+}
@@ -0,0 +1,281 @@
+// BinaryUserSnapshot.java
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The user table as a versioned, length-prefixed binary file (users.bin),
+ * used instead of users.txt when the server runs with --binary-users.
+ *
+ * Layout, all integers big-endian, strings as int byte length + UTF-8:
+ *
+ *   int    MAGIC ("CHPU")
+ *   int    VERSION
+ *   int    nameCount
+ *   int    userCount
+ *   string name                 x nameCount; the first userCount are the users,
+ *                               the rest names that appear only in friend or request lists
+ *   record                      x userCount, in the same order as the names:
+ *     int    length of the rest of the record
+ *     string password
+ *     int    age
+ *     string gender
+ *     string country
+ *     int    friendCount,  int nameId x friendCount
+ *     int    requestCount, int nameId x requestCount
+ *
+ * Every name is written once, and friend and request lists are ids into the
+ * name table, so ';' or ',' inside any field is harmless and nothing is
+ * split or searched when loading. A reader skips whatever a record holds
+ * past the fields it knows, so later versions can append fields.
+ *
+ * Both directions stream through one BUFFER_BYTES NIO buffer.
+ *
+ * Converts a legacy snapshot from the command line:
+ *
+ *   java BinaryUserSnapshot users.txt users.bin
+ */
+public class BinaryUserSnapshot {
+    static final int MAGIC = 0x43485055; // "CHPU"
+    static final int VERSION = 1;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java BinaryUserSnapshot users.txt users.bin");
+            return;
+        }
+        long start = System.nanoTime();
+        int users = convert(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.printf("Wrote %d users to %s in %d ms%n", users, args[1], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /** Reads a users.txt snapshot and writes it as {@code binary}; returns the number of users. */
+    static int convert(Path text, Path binary) throws IOException {
+        Map<String, ChipiChipiServer.User> users = new ConcurrentHashMap<>();
+        long skipped = UserSnapshotReader.read(text, users);
+        if (skipped > 0) System.out.println("Skipped " + skipped + " malformed rows in " + text);
+        Path tmp = binary.resolveSibling(binary.getFileName() + ".tmp");
+        write(tmp, users.values());
+        Files.move(tmp, binary, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return users.size();
+    }
+
+    /** Writes {@code users} to {@code file}, replacing it, and forces it to disk. */
+    static void write(Path file, Collection<ChipiChipiServer.User> users) throws IOException {
+        List<ChipiChipiServer.User> list = new ArrayList<>(users);
+        Map<String, Integer> ids = new HashMap<>(list.size() * 2);
+        List<String> names = new ArrayList<>(list.size());
+        for (ChipiChipiServer.User user : list) {
+            ids.put(user.username, names.size());
+            names.add(user.username);
+        }
+
+        // ids are resolved before anything is written, so names only seen in lists join the table first
+        int[][] friendIds = new int[list.size()][];
+        int[][] requestIds = new int[list.size()][];
+        for (int i = 0; i < list.size(); i++) {
+            friendIds[i] = idsOf(list.get(i).friends, ids, names);
+            requestIds[i] = idsOf(list.get(i).friendRequests, ids, names);
+        }
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Out out = new Out(ch);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(names.size());
+            out.putInt(list.size());
+            for (String name : names) out.putString(name);
+            ByteBuffer record = ByteBuffer.allocate(256);
+            for (int i = 0; i < list.size(); i++) {
+                ChipiChipiServer.User user = list.get(i);
+                record.clear();
+                record = putString(record, user.password);
+                record = ensure(record, 4);
+                record.putInt(user.age);
+                record = putString(record, user.gender);
+                record = putString(record, user.country);
+                record = putIds(record, friendIds[i]);
+                record = putIds(record, requestIds[i]);
+                record.flip();
+                out.putInt(record.remaining());
+                out.put(record);
+            }
+            out.flush();
+            ch.force(true);
+        }
+    }
+
+    /** Adds every user in {@code file} to {@code users}. */
+    static void read(Path file, Map<String, ChipiChipiServer.User> users) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            In in = new In(ch);
+            int magic = in.getInt();
+            if (magic != MAGIC) throw new IOException(file + " is not a binary user snapshot");
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) throw new IOException(file + " has unsupported version " + version);
+            int nameCount = in.getInt();
+            int userCount = in.getInt();
+            if (userCount < 0 || nameCount < userCount) throw new IOException(file + " has a corrupt header");
+            String[] names = new String[nameCount];
+            for (int i = 0; i < nameCount; i++) names[i] = in.getString();
+
+            for (int i = 0; i < userCount; i++) {
+                int length = in.getInt();
+                ByteBuffer record = in.slice(length);
+                String password = getString(record);
+                int age = record.getInt();
+                String gender = getString(record);
+                String country = getString(record);
+                List<String> friends = getNames(record, names);
+                ChipiChipiServer.User user = new ChipiChipiServer.User(names[i], password, age, gender, country, friends.size());
+                user.friends.addAll(friends);
+                user.friendRequests.addAll(getNames(record, names));
+                users.put(user.username, user);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+
+    private static int[] idsOf(Set<String> names, Map<String, Integer> ids, List<String> table) {
+        int[] result = new int[names.size()];
+        int n = 0;
+        for (String name : names) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = table.size();
+                ids.put(name, id);
+                table.add(name);
+            }
+            // the set may have grown since size() was read
+            if (n == result.length) result = Arrays.copyOf(result, n * 2 + 1);
+            result[n++] = id;
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    private static List<String> getNames(ByteBuffer record, String[] names) {
+        int count = record.getInt();
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) result.add(names[record.getInt()]);
+        return result;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    private static ByteBuffer putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf = ensure(buf, 4 + bytes.length);
+        return buf.putInt(bytes.length).put(bytes);
+    }
+
+    private static ByteBuffer putIds(ByteBuffer buf, int[] ids) {
+        buf = ensure(buf, 4 + 4 * ids.length);
+        buf.putInt(ids.length);
+        for (int id : ids) buf.putInt(id);
+        return buf;
+    }
+
+    /** {@code buf}, or a larger copy of it, with room for {@code bytes} more. */
+    private static ByteBuffer ensure(ByteBuffer buf, int bytes) {
+        if (buf.remaining() >= bytes) return buf;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+        buf.flip();
+        return bigger.put(buf);
+    }
+
+    /** Buffered writes to a channel. */
+    private static final class Out {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+
+        Out(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        void putInt(int value) throws IOException {
+            if (buf.remaining() < 4) flush();
+            buf.putInt(value);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            put(ByteBuffer.wrap(bytes));
+        }
+
+        void put(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (!buf.hasRemaining()) flush();
+                int n = Math.min(buf.remaining(), src.remaining());
+                buf.put(buf.position(), src, src.position(), n);
+                buf.position(buf.position() + n);
+                src.position(src.position() + n);
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+    }
+
+    /** Buffered reads from a channel; a record is handed out as a slice of the buffer. */
+    private static final class In {
+        private final FileChannel ch;
+        private ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES).flip();
+
+        In(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        int getInt() throws IOException {
+            fill(4);
+            return buf.getInt();
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            ByteBuffer bytes = slice(length);
+            return new String(bytes.array(), bytes.arrayOffset(), length, StandardCharsets.UTF_8);
+        }
+
+        /** The next {@code length} bytes; valid until the next call. */
+        ByteBuffer slice(int length) throws IOException {
+            if (length < 0) throw new IOException("negative length");
+            fill(length);
+            ByteBuffer slice = buf.slice(buf.position(), length);
+            buf.position(buf.position() + length);
+            return slice;
+        }
+
+        private void fill(int bytes) throws IOException {
+            if (buf.remaining() >= bytes) return;
+            if (bytes > buf.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(bytes);
+                bigger.put(buf);
+                buf = bigger;
+            } else {
+                buf.compact();
+            }
+            while (buf.position() < bytes) {
+                if (ch.read(buf) < 0) throw new EOFException();
+            }
+            buf.flip();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+// ChatCache.java
+
+import java.util.*;
+
+/**
+ * The Swing client's copy of recently opened friend chats, so switching back
+ * to one shows it at once and fetches only what is newer than the copy.
+ *
+ * Each conversation keeps its newest ChatView.MAX_LOADED messages by id,
+ * and pushed DMs and sent messages are added as they happen, so a chat that
+ * stayed cached while it was not shown usually needs nothing from the server
+ * when it is opened again. At most MAX_CONVERSATIONS are kept; opening
+ * another drops the least recently used one.
+ *
+ * Used on the Swing event thread only. Counts how often a chat was opened
+ * (switched to, or reloaded after scrolling far up), how many of those found
+ * a cached copy, and the bytes of MESSAGES replies they read.
+ */
+class ChatCache {
+    static final int MAX_CONVERSATIONS = 20;
+
+    static final class Conversation {
+        private final TreeMap<Long, ChatView.Line> lines = new TreeMap<>();
+        boolean hasOlder;
+        private boolean fetched = false; // false: only pushes so far, the first page is still on its way
+
+        /** Adds a message; returns whether it went after every message already here. */
+        private boolean add(ChatView.Line line) {
+            boolean last = lines.isEmpty() || line.id() > lines.lastKey();
+            lines.put(line.id(), line);
+            if (lines.size() > ChatView.MAX_LOADED) {
+                lines.pollFirstEntry();
+                hasOlder = true;
+            }
+            return last;
+        }
+
+        long lastId() {
+            return lines.isEmpty() ? -1 : lines.lastKey();
+        }
+
+        /** Oldest first. */
+        List<ChatView.Line> lines() {
+            return new ArrayList<>(lines.values());
+        }
+    }
+
+    private final Map<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+            return size() > MAX_CONVERSATIONS;
+        }
+    };
+    private long opens, hits, bytesRead;
+
+    /** Called when a chat is shown; returns the cached copy, or null if it has to be fetched whole. */
+    Conversation open(String friend) {
+        opens++;
+        Conversation conv = conversations.get(friend);
+        if (conv != null && conv.fetched) {
+            hits++;
+            return conv;
+        }
+        // collects what is pushed until the first page arrives
+        if (conv == null) conversations.put(friend, new Conversation());
+        return null;
+    }
+
+    /**
+     * Applies a MESSAGES reply asked for with afterId = lastId() of what
+     * open() returned (or without one on a miss). Returns the messages that
+     * simply go at the end of what open() returned, oldest first, or null if
+     * the chat has to be shown again from lines(): on a miss, when the reply
+     * was a full page and so may have skipped some, or when a message fell
+     * between ones already shown.
+     */
+    List<ChatView.Line> merge(String friend, List<ChatView.Line> page, int bytes) {
+        bytesRead += bytes;
+        Conversation conv = conversations.get(friend);
+        if (conv == null || !conv.fetched || page.size() >= MessageStore.PAGE_SIZE) {
+            Conversation fresh = new Conversation();
+            fresh.fetched = true;
+            fresh.hasOlder = !page.isEmpty();
+            for (ChatView.Line line : page) fresh.add(line);
+            // pushed while the reply was on its way
+            if (conv != null) conv.lines.tailMap(fresh.lastId(), false).values().forEach(fresh::add);
+            conversations.put(friend, fresh);
+            return null;
+        }
+        List<ChatView.Line> added = new ArrayList<>();
+        boolean inOrder = true;
+        for (ChatView.Line line : page) {
+            if (conv.lines.containsKey(line.id())) continue;
+            if (conv.add(line)) {
+                added.add(line);
+            } else {
+                inOrder = false;
+            }
+        }
+        return inOrder ? added : null;
+    }
+
+    /** Adds a pushed or sent message to the chat's copy, if there is one. */
+    void add(String friend, ChatView.Line line) {
+        Conversation conv = conversations.get(friend);
+        if (conv != null) conv.add(line);
+    }
+
+    Conversation get(String friend) {
+        return conversations.get(friend);
+    }
+
+    void clear() {
+        conversations.clear();
+    }
+
+    String stats() {
+        return "chat opens=" + opens + " cached=" + hits
+                + " bytesRead=" + bytesRead
+                + " avgBytesPerOpen=" + (opens == 0 ? 0 : bytesRead / opens);
+    }
+}
@@ -0,0 +1,180 @@
+// ChatRoom.java
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chat channel that every subscribed, logged-in user receives, such as
+ * GLOBAL.
+ *
+ * post() only numbers a message, keeps it in the room's recent history and
+ * hands it to the room's fan-out thread, so a sender never waits for the
+ * subscribers. The fan-out thread formats and encodes each message once, then
+ * pushes it into every subscriber's Outbox, whose bounded queue is what
+ * separates a slow reader from everybody else: a full queue drops the line
+ * instead of blocking. A subscriber that drops SLOW_CONSUMER_DROPS messages
+ * in a row is unsubscribed and has to join again.
+ *
+ * Every subscriber receives the room's messages in the same order. Messages
+ * are not persisted; joining returns the last HISTORY of them, and the first
+ * pushed message is the one after those.
+ */
+class ChatRoom {
+    static final String GLOBAL = "#Global";
+    static final int HISTORY = 50;
+    static final int QUEUE_CAPACITY = 4096;
+    static final int SLOW_CONSUMER_DROPS = 100;
+
+    record Message(long id, String sender, String text, long sentAt) {
+        String render(String room) {
+            return "[" + room + "] " + sender + ": " + ChipiChipiServer.oneLine(text);
+        }
+    }
+
+    final String name;
+    private final Map<String, Subscription> subscribers = new ConcurrentHashMap<>();
+    private final BlockingQueue<Message> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // a lock rather than synchronized, so a virtual thread that holds it never pins its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message> history = new ArrayDeque<>(HISTORY);
+    private long lastId = 0;
+
+    final LongAdder messages = new LongAdder();
+    final LongAdder deliveries = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder evicted = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder fanoutNanos = new LongAdder();
+
+    ChatRoom(String name) {
+        this.name = name;
+        Thread.ofPlatform().daemon().name("chat-" + name).start(this::fanOut);
+    }
+
+    /** Subscribes {@code username} through {@code outbox}, replacing an older subscription; returns recent history, oldest first. */
+    List<Message> join(String username, Outbox outbox) {
+        lock.lock();
+        try {
+            subscribers.put(username, new Subscription(outbox, lastId));
+            return new ArrayList<>(history);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Unsubscribes {@code username} if it is still subscribed through {@code outbox}; returns whether it was. */
+    boolean leave(String username, Outbox outbox) {
+        Subscription sub = subscribers.get(username);
+        return sub != null && sub.outbox == outbox && subscribers.remove(username, sub);
+    }
+
+    boolean isSubscribed(String username, Outbox outbox) {
+        Subscription sub = subscribers.get(username);
+        return sub != null && sub.outbox == outbox;
+    }
+
+    int subscribers() {
+        return subscribers.size();
+    }
+
+    /** Queues a message for every subscriber; returns its id, or -1 if the room is too far behind to take it. */
+    long post(String sender, String text, long sentAt) {
+        lock.lock();
+        try {
+            Message m = new Message(lastId + 1, sender, text, sentAt);
+            if (!pending.offer(m)) {
+                rejected.increment();
+                return -1;
+            }
+            lastId = m.id();
+            if (history.size() == HISTORY) history.removeFirst();
+            history.addLast(m);
+            messages.increment();
+            return m.id();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fanOut() {
+        while (true) {
+            Message m;
+            try {
+                m = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            Broadcast line = new Broadcast(name, m);
+            int delivered = 0;
+            for (Map.Entry<String, Subscription> e : subscribers.entrySet()) {
+                Subscription sub = e.getValue();
+                // joined after this message was posted: it was part of the history they got
+                if (m.id() <= sub.afterId) continue;
+                if (sub.outbox.pushChat(line, m.sentAt())) {
+                    sub.drops = 0;
+                    delivered++;
+                } else {
+                    dropped.increment();
+                    if (++sub.drops >= SLOW_CONSUMER_DROPS && subscribers.remove(e.getKey(), sub)) evicted.increment();
+                }
+            }
+            deliveries.add(delivered);
+            fanoutNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    String stats() {
+        long n = messages.sum();
+        return "chat " + name + " subscribers=" + subscribers.size()
+                + " messages=" + n
+                + " deliveries=" + deliveries.sum()
+                + " dropped=" + dropped.sum()
+                + " evicted=" + evicted.sum()
+                + " rejected=" + rejected.sum()
+                + " avgFanoutMicros=" + (n == 0 ? 0 : fanoutNanos.sum() / n / 1000);
+    }
+
+    private static final class Subscription {
+        final Outbox outbox;
+        final long afterId;
+        int drops; // consecutive; only touched by the fan-out thread
+
+        Subscription(Outbox outbox, long afterId) {
+            this.outbox = outbox;
+            this.afterId = afterId;
+        }
+    }
+
+    /**
+     * One message as pushed to subscribers, in both protocols' formats. Each
+     * format is encoded to bytes at most once, however many NIO connections
+     * it goes to.
+     */
+    static final class Broadcast {
+        private final String menuLine, framedLine;
+        private byte[] menuBytes, framedBytes;
+
+        Broadcast(String room, Message m) {
+            menuLine = m.render(room);
+            framedLine = CommandProtocol.event("CHAT", room, Long.toString(m.id()), m.sender(), m.text());
+        }
+
+        String line(boolean framed) {
+            return framed ? framedLine : menuLine;
+        }
+
+        /** The line plus a line separator, as UTF-8; shared, so callers must not modify it. */
+        byte[] bytes(boolean framed) {
+            if (framed) {
+                if (framedBytes == null) framedBytes = (framedLine + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                return framedBytes;
+            }
+            if (menuBytes == null) menuBytes = (menuLine + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            return menuBytes;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+// ChatView.java
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.*;
+import java.util.List;
+
+/**
+ * The chat area of ChipiChipiGUI_Full: message bubbles in a scrolling list
+ * that costs the same however long the conversation is.
+ *
+ * Messages are rows of a JList painted by one shared renderer, instead of a
+ * panel and text area per message, so only rows inside the viewport are ever
+ * painted. Each row's wrapped lines and height are measured once per list
+ * width and cached.
+ *
+ * At most MAX_LOADED messages are held. Scrolling within a screen of the top
+ * asks the Pager for the page before the oldest row; if that takes the list
+ * over MAX_LOADED, the newest rows are dropped, and scrolling back down to
+ * the bottom asks for the latest page again. Live messages appended at the
+ * bottom drop the oldest rows instead.
+ */
+class ChatView extends JScrollPane {
+    static final int MAX_LOADED = 1000;
+    private static final Color BUBBLE_ME = new Color(0x4C9AFF);
+    private static final Color BUBBLE_OTHER = new Color(0xE4E6EB);
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font NAME_FONT = new Font("Segoe UI", Font.BOLD, 12);
+    private static final int MAX_BUBBLE_WIDTH = 620;
+    private static final int PAD = 10;
+    private static final int MARGIN = 6;
+    private static final int ARC = 18;
+
+    /** One message, with the server's id for it. */
+    record Line(long id, String sender, String text) {}
+
+    /** Fetches more of the shown conversation; answers with prepend() or load() on the event thread. */
+    interface Pager {
+        void older(long beforeId);
+        void latest();
+    }
+
+    private final DefaultListModel<Line> model = new DefaultListModel<>();
+    private final JList<Line> list;
+    private final Map<Line, Layout> layouts = new HashMap<>();
+    private String me = "";
+    private String notice = null;
+    private Pager pager = null;
+    private boolean hasOlder, hasNewer, loading;
+
+    ChatView() {
+        list = new JList<>(model) {
+            @Override public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+
+            @Override protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                if (notice != null && model.isEmpty()) {
+                    g.setColor(Color.GRAY);
+                    g.setFont(NAME_FONT);
+                    g.drawString(notice, MARGIN, MARGIN + g.getFontMetrics().getAscent());
+                }
+            }
+        };
+        list.setCellRenderer(new BubbleRenderer());
+        list.setOpaque(false);
+        list.setFocusable(false);
+        setViewportView(list);
+        getViewport().setOpaque(false);
+        setOpaque(false);
+        setBorder(null);
+        getVerticalScrollBar().setUnitIncrement(16);
+        getVerticalScrollBar().addAdjustmentListener(e -> onScroll());
+        list.addComponentListener(new ComponentAdapter() {
+            @Override public void componentResized(ComponentEvent e) {
+                // cached heights were measured for the old width; make the list ask for them again
+                list.setFixedCellHeight(1);
+                list.setFixedCellHeight(-1);
+            }
+        });
+    }
+
+    /** Replaces the content with {@code lines}, oldest first, and scrolls to the newest. */
+    void load(String me, List<Line> lines, boolean hasOlder, Pager pager) {
+        this.me = me;
+        this.pager = pager;
+        this.hasOlder = hasOlder;
+        hasNewer = false;
+        notice = null;
+        loading = true;
+        model.clear();
+        layouts.clear();
+        model.addAll(lines.subList(Math.max(0, lines.size() - MAX_LOADED), lines.size()));
+        scrollToBottom();
+        loading = false;
+        // a short page may not fill the viewport, and then no scrolling will ask for more
+        SwingUtilities.invokeLater(this::onScroll);
+    }
+
+    /** Empties the view and shows {@code text} in its place. */
+    void showNotice(String text) {
+        pager = null;
+        notice = text;
+        loading = false;
+        model.clear();
+        layouts.clear();
+        list.repaint();
+    }
+
+    /** Adds {@code older}, oldest first, above the current rows without moving what is on screen. */
+    void prepend(List<Line> older, boolean hasOlder) {
+        loading = false;
+        this.hasOlder = hasOlder;
+        if (older.isEmpty()) return;
+        int excess = model.size() + older.size() - MAX_LOADED;
+        if (excess > 0) {
+            forget(model.size() - excess, model.size());
+            hasNewer = true;
+        }
+        JScrollBar bar = getVerticalScrollBar();
+        int value = bar.getValue();
+        model.addAll(0, older);
+        validate();
+        bar.setValue(value + list.getCellBounds(older.size(), older.size()).y);
+        SwingUtilities.invokeLater(this::onScroll);
+    }
+
+    /** Adds a live message at the bottom, following it if the view was scrolled to the bottom. */
+    void append(Line line) {
+        // the newest rows were dropped for older ones; latest() brings this back along with them
+        if (hasNewer) return;
+        boolean following = isAtBottom();
+        model.addElement(line);
+        int excess = model.size() - MAX_LOADED;
+        if (excess > 0) {
+            JScrollBar bar = getVerticalScrollBar();
+            int removed = list.getCellBounds(excess, excess).y;
+            forget(0, excess);
+            if (pager != null) hasOlder = true;
+            if (!following) {
+                validate();
+                bar.setValue(bar.getValue() - removed);
+            }
+        }
+        if (following) scrollToBottom();
+    }
+
+    int loaded() {
+        return model.size();
+    }
+
+    private void forget(int from, int to) {
+        for (int i = from; i < to; i++) layouts.remove(model.get(i));
+        model.removeRange(from, to - 1);
+    }
+
+    private boolean isAtBottom() {
+        BoundedRangeModel bar = getVerticalScrollBar().getModel();
+        return bar.getValue() + bar.getExtent() >= bar.getMaximum() - MARGIN;
+    }
+
+    private void scrollToBottom() {
+        validate();
+        JScrollBar bar = getVerticalScrollBar();
+        bar.setValue(bar.getMaximum());
+    }
+
+    private void onScroll() {
+        if (pager == null || loading || model.isEmpty()) return;
+        BoundedRangeModel bar = getVerticalScrollBar().getModel();
+        int screen = Math.max(1, bar.getExtent());
+        if (hasOlder && bar.getValue() < screen) {
+            loading = true;
+            pager.older(model.firstElement().id());
+        } else if (hasNewer && bar.getValue() + bar.getExtent() >= bar.getMaximum() - screen) {
+            loading = true;
+            pager.latest();
+        }
+    }
+
+    /** A row's wrapped text and size at one list width. */
+    private record Layout(int width, String[] lines, int bubbleWidth, int height) {}
+
+    private Layout measure(Line line, boolean mine) {
+        int width = list.getWidth();
+        Layout cached = layouts.get(line);
+        if (cached != null && cached.width == width) return cached;
+        FontMetrics fm = list.getFontMetrics(TEXT_FONT);
+        int maxText = Math.max(40, Math.min(MAX_BUBBLE_WIDTH, width - 2 * MARGIN) - 2 * PAD);
+        List<String> lines = wrap(line.text(), fm, maxText);
+        int textWidth = 0;
+        for (String l : lines) textWidth = Math.max(textWidth, fm.stringWidth(l));
+        int height = 2 * MARGIN + 2 * PAD + lines.size() * fm.getHeight();
+        if (!mine) height += list.getFontMetrics(NAME_FONT).getHeight();
+        Layout layout = new Layout(width, lines.toArray(new String[0]), textWidth + 2 * PAD, height);
+        layouts.put(line, layout);
+        return layout;
+    }
+
+    /** Breaks {@code text} into lines no wider than {@code max}, at spaces where possible. */
+    private static List<String> wrap(String text, FontMetrics fm, int max) {
+        List<String> lines = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            StringBuilder current = new StringBuilder();
+            for (String word : paragraph.split(" ", -1)) {
+                String candidate = current.isEmpty() ? word : current + " " + word;
+                if (fm.stringWidth(candidate) <= max) {
+                    current.setLength(0);
+                    current.append(candidate);
+                    continue;
+                }
+                if (!current.isEmpty()) lines.add(current.toString());
+                current.setLength(0);
+                // a word wider than a line is split wherever it has to be
+                while (fm.stringWidth(word) > max) {
+                    int cut = 1;
+                    while (cut < word.length() && fm.stringWidth(word.substring(0, cut + 1)) <= max) cut++;
+                    lines.add(word.substring(0, cut));
+                    word = word.substring(cut);
+                }
+                current.append(word);
+            }
+            lines.add(current.toString());
+        }
+        return lines;
+    }
+
+    /** Paints one bubble; the same instance is reused for every row. */
+    private final class BubbleRenderer extends JComponent implements ListCellRenderer<Line> {
+        private Line line;
+        private Layout layout;
+        private boolean mine;
+
+        @Override public Component getListCellRendererComponent(JList<? extends Line> l, Line value, int index, boolean isSelected, boolean cellHasFocus) {
+            line = value;
+            mine = value.sender().equals(me);
+            layout = measure(value, mine);
+            return this;
+        }
+
+        @Override public Dimension getPreferredSize() {
+            if (layout == null) return new Dimension();
+            return new Dimension(layout.bubbleWidth + 2 * MARGIN, layout.height);
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            int x = mine ? getWidth() - MARGIN - layout.bubbleWidth : MARGIN;
+            int y = MARGIN;
+            // show sender name above message for others
+            if (!mine) {
+                g2.setFont(NAME_FONT);
+                g2.setColor(Color.BLACK);
+                g2.drawString(line.sender(), x, y + g2.getFontMetrics().getAscent());
+                y += g2.getFontMetrics().getHeight();
+            }
+            g2.setFont(TEXT_FONT);
+            FontMetrics fm = g2.getFontMetrics();
+            g2.setColor(mine ? BUBBLE_ME : BUBBLE_OTHER);
+            g2.fillRoundRect(x, y, layout.bubbleWidth, layout.lines.length * fm.getHeight() + 2 * PAD, ARC, ARC);
+            g2.setColor(mine ? Color.WHITE : Color.BLACK);
+            for (int i = 0; i < layout.lines.length; i++) {
+                g2.drawString(layout.lines[i], x + PAD, y + PAD + i * fm.getHeight() + fm.getAscent());
+            }
+            g2.dispose();
+        }
+    }
+}
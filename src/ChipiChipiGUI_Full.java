@@ -2,40 +2,37 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.nio.file.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
-import javax.swing.Timer;  // if you want swing timer only
+import java.util.concurrent.CompletableFuture;
 import java.awt.image.BufferedImage;
 
 /**
  * ChipiChipiGUI_Full.java
  *
- * Standalone Swing app implementing the ChipiChipi project features in GUI:
+ * Swing client for ChipiChipiServer implementing the ChipiChipi project features in GUI:
  * - Register / Login
  * - Friend requests (send/receive), manage them
  * - View Friends
  * - Create posts / View posts
- * - Private messaging with per-friend chat tabs and persisted message files
+ * - Private messaging with per-friend chat tabs, and the server's #Global chat room
  *
- * Data persisted to:
- * - users.txt  (username;password;age;gender;country;friendsCSV;requestsCSV)
- * - posts.txt  (username;timestamp;post)
- * - messages saved to files: username_friend_msg.txt (append)
+ * Everything goes through ServerConnection (framed command protocol): actions
+ * send a request and update the UI from its callback on the event thread, so
+ * no click waits on the network. Run as:
+ *   java ChipiChipiGUI_Full [host] [port] [--edt-monitor]
  *
  * Style: rounded message bubbles, modern colors, spacing.
  */
 public class ChipiChipiGUI_Full extends JFrame {
-    // persistence files
-    private static final String USER_FILE = "users.txt";
-    private static final String POST_FILE = "posts.txt";
-    private static final SimpleDateFormat TS_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    // server link; replaced when the connection drops
+    private final String host;
+    private final int port;
+    private CompletableFuture<ServerConnection> connection;
+    private boolean disconnected = false;
 
     // In-memory models
-    private Map<String, User> users = new HashMap<>();
-    private User currentUser = null;
+    private final ClientModel model = new ClientModel(); // user, active chat and friends; views listen for changes
 
     // UI components
     private CardLayout cardLayout = new CardLayout();
@@ -49,37 +46,45 @@ public class ChipiChipiGUI_Full extends JFrame {
     // Main UI components
     private DefaultListModel<String> friendsListModel = new DefaultListModel<>();
     private JList<String> friendsList;
-    private JPanel chatPanel; // where bubbles go
-    private JScrollPane chatScroll;
+    private ChatView chatView; // where bubbles go
     private JTextField messageInput;
     private JLabel userTitleLabel;
-    private String activeChat = "#Global"; // default
-    private Map<String, java.util.List<Message>> chatMessages = new HashMap<>(); // key: friend or #Global
+    private ArrayDeque<ChatView.Line> globalChat = new ArrayDeque<>(); // newest ChatView.MAX_LOADED
+    private ChatCache chatCache = new ChatCache(); // recently opened friend chats
+    private JTextArea sysPreview;
+    private int chatPanelVersion = 0; // bumped on every refresh, so a late reply for an older view is dropped
 
-    // Posts view quick cache
-    private java.util.List<String> postsCache = new ArrayList<>();
+    private static final int POSTS_SHOWN = 100;
 
     // Colors & style
     private static final Color BG = new Color(0xF5F7FA);
     private static final Color SIDEBAR = new Color(0x2F3136);
     private static final Color ACCENT = new Color(0x5865F2);
-    private static final Color BUBBLE_ME = new Color(0x4C9AFF);
-    private static final Color BUBBLE_OTHER = new Color(0xE4E6EB);
 
     public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) if (!arg.startsWith("--")) positional.add(arg);
+        String host = positional.size() > 0 ? positional.get(0) : ServerConnection.DEFAULT_HOST;
+        int port = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : ServerConnection.DEFAULT_PORT;
+        // --edt-monitor: measure how long the event thread is kept busy, printed on exit
+        if (Arrays.asList(args).contains("--edt-monitor")) {
+            EdtStallMonitor monitor = new EdtStallMonitor();
+            monitor.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(monitor.stats())));
+        }
         SwingUtilities.invokeLater(() -> {
-            ChipiChipiGUI_Full app = new ChipiChipiGUI_Full();
+            ChipiChipiGUI_Full app = new ChipiChipiGUI_Full(host, port);
             app.setVisible(true);
         });
     }
 
-    public ChipiChipiGUI_Full() {
+    public ChipiChipiGUI_Full(String host, int port) {
+        this.host = host;
+        this.port = port;
         setTitle("ChipiChipi — GUI");
         setSize(1100, 700);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
-        loadUsers();
-        loadPosts();
 
         cards.add(buildAuthPanel(), "AUTH");
         cards.add(buildMainPanel(), "MAIN");
@@ -87,114 +92,54 @@ public class ChipiChipiGUI_Full extends JFrame {
         add(cards);
         cardLayout.show(cards, "AUTH");
 
-        // Precreate global chat
-        chatMessages.put("#Global", new ArrayList<>());
+        connect();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(chatCache.stats())));
     }
 
-    // ------------------ Data models ------------------
-    private static class User {
-        String username, password, gender, country;
-        int age;
-        Set<String> friends = new LinkedHashSet<>();
-        Set<String> friendRequests = new LinkedHashSet<>();
-
-        User(String u, String p, int age, String g, String c) {
-            username = u; password = p; this.age = age; gender = g; country = c;
-        }
-
-        String serialize() {
-            String f = String.join(",", friends);
-            String r = String.join(",", friendRequests);
-            return username + ";" + password + ";" + age + ";" + gender + ";" + country + ";" + f + ";" + r;
-        }
-
-        static User fromLine(String line) {
-            String[] parts = line.split(";", -1);
-            if (parts.length < 5) return null;
-            String u = parts[0], p = parts[1];
-            int a = 18;
-            try { a = Integer.parseInt(parts[2]); } catch (Exception ignored) {}
-            String g = parts.length>3 ? parts[3] : "N/A";
-            String c = parts.length>4 ? parts[4] : "N/A";
-            User user = new User(u,p,a,g,c);
-            if (parts.length>5 && !parts[5].isEmpty()) {
-                user.friends.addAll(Arrays.asList(parts[5].split(",")));
-            }
-            if (parts.length>6 && !parts[6].isEmpty()) {
-                user.friendRequests.addAll(Arrays.asList(parts[6].split(",")));
-            }
-            return user;
-        }
+    // ------------------ Server ------------------
+    private void connect() {
+        disconnected = false;
+        connection = ServerConnection.connect(host, port, new ServerEvents());
+        ServerConnection.onEdt(connection,
+                c -> sysPreview.setText("Connected to " + host + ":" + port + "."),
+                error -> sysPreview.setText(error + " Will retry on the next action."));
     }
 
-    private static class Message {
-        String sender;
-        String text;
-        String ts;
-        Message(String s, String t){ sender = s; text = t; ts = TS_FORMAT.format(new Date()); }
+    // sends a request once connected; reconnects first if the last connection is gone
+    private CompletableFuture<java.util.List<String>> request(String verb, String... args) {
+        if (disconnected || connection.isCompletedExceptionally()) connect();
+        return connection.thenCompose(c -> c.request(verb, args));
     }
 
-    // ------------------ Persistence ------------------
-    private void loadUsers() {
-        users.clear();
-        File f = new File(USER_FILE);
-        if (!f.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                User u = User.fromLine(line);
-                if (u != null) users.put(u.username, u);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // runs onSuccess on the event thread, or shows the server's error
+    private <T> void whenDone(CompletableFuture<T> future, java.util.function.Consumer<T> onSuccess) {
+        ServerConnection.onEdt(future, onSuccess, error -> JOptionPane.showMessageDialog(this, error));
     }
 
-    private synchronized void saveUsers() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(USER_FILE, false))) {
-            for (User u : users.values()) pw.println(u.serialize());
-        } catch (IOException e) { e.printStackTrace(); }
-    }
-
-    private void loadPosts() {
-        postsCache.clear();
-        File f = new File(POST_FILE);
-        if (!f.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = br.readLine()) != null) postsCache.add(line);
-        } catch (IOException e) { e.printStackTrace(); }
-    }
+    // pushes from the server, delivered on the event thread
+    private class ServerEvents implements ServerConnection.Listener {
+        @Override public void onDirectMessage(String sender, long id, String text) {
+            if (!model.loggedIn()) return;
+            ChatView.Line line = new ChatView.Line(id, sender, text);
+            chatCache.add(sender, line);
+            if (model.activeChat().equals(sender)) chatView.append(line);
+        }
 
-    private synchronized void savePost(String username, String post) {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(POST_FILE, true))) {
-            String timestamp = TS_FORMAT.format(new Date());
-            pw.println(username + ";" + timestamp + ";" + post);
-            postsCache.add("[" + username + "] -> " + post + " (" + timestamp + ")");
-        } catch (IOException e) { e.printStackTrace(); }
-    }
+        @Override public void onChat(String room, long id, String sender, String text) {
+            if (!model.loggedIn() || !room.equals("#Global")) return;
+            ChatView.Line line = new ChatView.Line(id, sender, text);
+            addGlobal(line);
+            if (model.activeChat().equals("#Global")) chatView.append(line);
+        }
 
-    private java.util.List<String> loadMessagesFromFile(String me, String friend) {
-        String fn1 = me + "_" + friend + "_msg.txt";
-        String fn2 = friend + "_" + me + "_msg.txt";
-        java.util.List<String> all = new ArrayList<>();
-        for (String fn : Arrays.asList(fn1, fn2)) {
-            File f = new File(fn);
-            if (f.exists()) {
-                try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-                    String line;
-                    while ((line = br.readLine()) != null) all.add(line);
-                } catch (IOException ignored) {}
+        @Override public void onDisconnect(String reason) {
+            disconnected = true;
+            sysPreview.setText(reason);
+            if (model.loggedIn()) {
+                doLogout();
+                JOptionPane.showMessageDialog(ChipiChipiGUI_Full.this, reason + " Please log in again.");
             }
         }
-        return all;
-    }
-
-    private synchronized void appendMessageToFile(String me, String friend, String msgLine) {
-        String fn = me + "_" + friend + "_msg.txt";
-        try (PrintWriter pw = new PrintWriter(new FileWriter(fn, true))) {
-            pw.println(msgLine);
-        } catch (IOException e) { e.printStackTrace(); }
     }
 
     // ------------------ UI Construction ------------------
@@ -284,9 +229,9 @@ public class ChipiChipiGUI_Full extends JFrame {
         center.add(regPanel);
         p.add(center, BorderLayout.CENTER);
 
-        JTextArea sysPreview = new JTextArea();
+        sysPreview = new JTextArea();
         sysPreview.setEditable(false);
-        sysPreview.setText("Local demo mode. Users are persisted in users.txt. Posts saved in posts.txt.");
+        sysPreview.setText("Connecting to " + host + ":" + port + "...");
         sysPreview.setBackground(BG);
         sysPreview.setBorder(new EmptyBorder(8, 8, 8, 8));
         p.add(sysPreview, BorderLayout.SOUTH);
@@ -320,15 +265,15 @@ public class ChipiChipiGUI_Full extends JFrame {
                 if (e.getClickCount() == 1) {
                     String sel = friendsList.getSelectedValue();
                     if (sel != null) {
-                        activeChat = sel;
+                        model.setActiveChat(sel);
                         refreshChatPanel();
                     }
                 }
                 if (e.getClickCount() == 2) {
                     String sel = friendsList.getSelectedValue();
-                    if (sel != null && !sel.equals(currentUser)) {
+                    if (sel != null && !sel.equals(model.username())) {
                         // open chat same as single-click in this design
-                        activeChat = sel;
+                        model.setActiveChat(sel);
                         refreshChatPanel();
                     }
                 }
@@ -346,7 +291,7 @@ public class ChipiChipiGUI_Full extends JFrame {
         JButton manageBtn = new JButton("Manage Requests");
         manageBtn.addActionListener(e -> showManageRequestsDialog());
         JButton viewFriendsBtn = new JButton("Refresh Friends");
-        viewFriendsBtn.addActionListener(e -> loadFriendsToList());
+        viewFriendsBtn.addActionListener(e -> refreshFriends());
         JButton createPostBtn = new JButton("Create Post");
         createPostBtn.addActionListener(e -> showCreatePostDialog());
         JButton viewPostsBtn = new JButton("View Posts");
@@ -369,19 +314,14 @@ public class ChipiChipiGUI_Full extends JFrame {
         // Top bar (active chat)
         JPanel topBar = new JPanel(new BorderLayout());
         topBar.setBackground(BG);
-        JLabel chatLabel = new JLabel("Chat: " + activeChat);
+        JLabel chatLabel = new JLabel("Chat: " + model.activeChat());
         chatLabel.setFont(new Font("Segoe UI", Font.BOLD, 18));
         topBar.add(chatLabel, BorderLayout.WEST);
         center.add(topBar, BorderLayout.NORTH);
 
         // Chat panel (bubbles)
-        chatPanel = new JPanel();
-        chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
-        chatPanel.setOpaque(false);
-        chatScroll = new JScrollPane(chatPanel);
-        chatScroll.setBorder(null);
-        chatScroll.getVerticalScrollBar().setUnitIncrement(16);
-        center.add(chatScroll, BorderLayout.CENTER);
+        chatView = new ChatView();
+        center.add(chatView, BorderLayout.CENTER);
 
         // Input area
         JPanel inputBar = new JPanel(new BorderLayout(8,8));
@@ -417,16 +357,21 @@ public class ChipiChipiGUI_Full extends JFrame {
         profileArea.setBackground(Color.WHITE);
         right.add(profileArea, BorderLayout.CENTER);
 
-        // Keep profileArea updated when login
         // Also a small notifications list
         main.add(right, BorderLayout.EAST);
 
-        // toggle update chat label whenever activeChat changes
-        Timer t = new Timer(250, e -> {
-            chatLabel.setText("Chat: " + activeChat);
-            if (currentUser != null) profileArea.setText(userProfileText(currentUser.toString()));
+        // each view is updated when, and only when, what it shows changes
+        model.addListener(ClientModel.ACTIVE_CHAT, e -> chatLabel.setText("Chat: " + model.activeChat()));
+        model.addListener(ClientModel.USER, e -> {
+            String name = model.username();
+            userTitleLabel.setText("User: " + (name == null ? "Guest" : name));
+            setTitle(name == null ? "ChipiChipi — GUI" : "ChipiChipi — " + name);
+            profileArea.setText(userProfileText());
+        });
+        model.addListener(ClientModel.FRIENDS, e -> {
+            loadFriendsToList();
+            profileArea.setText(userProfileText());
         });
-        t.start();
 
         return main;
     }
@@ -442,17 +387,12 @@ public class ChipiChipiGUI_Full extends JFrame {
             JOptionPane.showMessageDialog(this, "Please fill username, password, age.");
             return;
         }
-        if (users.containsKey(u)) {
-            JOptionPane.showMessageDialog(this, "Username already exists.");
-            return;
-        }
         int age = 18;
         try { age = Integer.parseInt(ageS); } catch (Exception ignored) {}
-        User nu = new User(u, p, age, g.isEmpty()?"N/A":g, c.isEmpty()?"N/A":c);
-        users.put(u, nu);
-        saveUsers();
-        JOptionPane.showMessageDialog(this, "Registration successful. You can login now.");
-        clearRegisterFields();
+        whenDone(request("REGISTER", u, p, Integer.toString(age), g.isEmpty()?"N/A":g, c.isEmpty()?"N/A":c), ok -> {
+            JOptionPane.showMessageDialog(this, "Registration successful. You can login now.");
+            clearRegisterFields();
+        });
     }
 
     private void attemptLogin() {
@@ -462,19 +402,22 @@ public class ChipiChipiGUI_Full extends JFrame {
             JOptionPane.showMessageDialog(this, "Enter username & password.");
             return;
         }
-        User found = users.get(u);
-        if (found == null || !found.password.equals(p)) {
-            JOptionPane.showMessageDialog(this, "Invalid username or password.");
-            return;
-        }
-        currentUser = found;
-        // build friend list
-        loadFriendsToList();
-        userTitleLabel.setText("User: " + currentUser.username);
-        cardLayout.show(cards, "MAIN");
-        setTitle("ChipiChipi — " + currentUser.username);
-        // load messages for each friend (lazy load when opening chat) but ensure global posts loaded
-        loadPosts();
+        // pipelined: the server answers them in order, one round trip in all
+        CompletableFuture<java.util.List<String>> login = request("LOGIN", u, p);
+        CompletableFuture<java.util.List<String>> profile = request("PROFILE");
+        CompletableFuture<java.util.List<String>> friends = request("FRIENDS");
+        CompletableFuture<java.util.List<String>> requests = request("REQUESTS");
+        CompletableFuture<java.util.List<String>> global = request("JOIN", "#Global");
+        whenDone(login.thenCompose(ok -> CompletableFuture.allOf(profile, friends, requests, global)), ok -> {
+            java.util.List<String> f = profile.join();
+            model.setUser(new ClientModel.User(f.get(0), Integer.parseInt(f.get(1)), f.get(2), f.get(3)));
+            model.setFriends(new ClientModel.Friends(friends.join(), requests.join()));
+            globalChat.clear();
+            for (ChatView.Line line : lines(global.join())) addGlobal(line);
+            cardLayout.show(cards, "MAIN");
+            model.setActiveChat("#Global");
+            refreshChatPanel();
+        });
     }
 
     private void clearRegisterFields() {
@@ -485,55 +428,63 @@ public class ChipiChipiGUI_Full extends JFrame {
         regCountryField.setText("");
     }
 
+    // fetches friends and requests again; the list is rebuilt only if they changed
+    private void refreshFriends() {
+        if (!model.loggedIn()) return;
+        CompletableFuture<java.util.List<String>> friends = request("FRIENDS");
+        CompletableFuture<java.util.List<String>> requests = request("REQUESTS");
+        whenDone(CompletableFuture.allOf(friends, requests), ok -> {
+            if (model.loggedIn()) model.setFriends(new ClientModel.Friends(friends.join(), requests.join()));
+        });
+    }
+
     private void loadFriendsToList() {
         friendsListModel.clear();
         // first entry: Global timeline
         friendsListModel.addElement("#Global");
-        if (currentUser == null) return;
+        ClientModel.Friends friends = model.friends();
         // user's friends
-        for (String f : currentUser.friends) friendsListModel.addElement(f);
+        for (String f : friends.friends()) friendsListModel.addElement(f);
         // show friend requests as special item (if any)
-        if (!currentUser.friendRequests.isEmpty()) {
-            friendsListModel.addElement("⟡ Friend Requests (" + currentUser.friendRequests.size() + ")");
+        if (!friends.requests().isEmpty()) {
+            friendsListModel.addElement("⟡ Friend Requests (" + friends.requests().size() + ")");
         }
     }
 
     private void showAddFriendDialog() {
-        if (currentUser == null) { JOptionPane.showMessageDialog(this, "Login first"); return; }
+        if (!model.loggedIn()) { JOptionPane.showMessageDialog(this, "Login first"); return; }
         String target = JOptionPane.showInputDialog(this, "Enter username to send friend request to:");
         if (target == null || target.trim().isEmpty()) return;
-        target = target.trim();
-        if (!users.containsKey(target)) {
-            JOptionPane.showMessageDialog(this, "User not found.");
-            return;
-        }
-        if (currentUser.friends.contains(target)) {
+        String name = target.trim();
+        if (model.friends().friends().contains(name)) {
             JOptionPane.showMessageDialog(this, "Already friends.");
             return;
         }
-        User targetUser = users.get(target);
-        if (targetUser.friendRequests.contains(currentUser.username)) {
-            JOptionPane.showMessageDialog(this, "Friend request already sent.");
-            return;
-        }
-        targetUser.friendRequests.add(currentUser.username);
-        saveUsers();
-        JOptionPane.showMessageDialog(this, "Friend request sent to " + target);
+        // the server's refusal says why, with close spellings for unknown names
+        whenDone(request("FRIEND", name), ok -> JOptionPane.showMessageDialog(this, "Friend request sent to " + name));
     }
 
     private void showManageRequestsDialog() {
-        if (currentUser == null) { JOptionPane.showMessageDialog(this, "Login first"); return; }
-        if (currentUser.friendRequests.isEmpty()) {
-            JOptionPane.showMessageDialog(this, "No friend requests.");
-            return;
-        }
+        if (!model.loggedIn()) { JOptionPane.showMessageDialog(this, "Login first"); return; }
+        whenDone(request("REQUESTS"), pending -> {
+            if (!model.loggedIn()) return;
+            model.setFriends(new ClientModel.Friends(model.friends().friends(), pending));
+            if (pending.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No friend requests.");
+                return;
+            }
+            showRequests(pending);
+        });
+    }
+
+    private void showRequests(java.util.List<String> pending) {
         // create a dialog with list and accept/reject buttons
         JDialog d = new JDialog(this, "Manage Friend Requests", true);
         d.setSize(400, 300);
         d.setLocationRelativeTo(this);
 
         DefaultListModel<String> reqModel = new DefaultListModel<>();
-        for (String r : currentUser.friendRequests) reqModel.addElement(r);
+        for (String r : pending) reqModel.addElement(r);
         JList<String> reqList = new JList<>(reqModel);
         reqList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 
@@ -542,20 +493,18 @@ public class ChipiChipiGUI_Full extends JFrame {
         accept.addActionListener(e -> {
             String sel = reqList.getSelectedValue();
             if (sel == null) return;
-            currentUser.friends.add(sel);
-            users.get(sel).friends.add(currentUser.username);
-            currentUser.friendRequests.remove(sel);
-            saveUsers();
-            reqModel.removeElement(sel);
-            loadFriendsToList();
+            whenDone(request("ACCEPT", sel), ok -> {
+                reqModel.removeElement(sel);
+                if (model.loggedIn()) model.acceptRequest(sel);
+            });
         });
         reject.addActionListener(e -> {
             String sel = reqList.getSelectedValue();
             if (sel == null) return;
-            currentUser.friendRequests.remove(sel);
-            saveUsers();
-            reqModel.removeElement(sel);
-            loadFriendsToList();
+            whenDone(request("REJECT", sel), ok -> {
+                reqModel.removeElement(sel);
+                if (model.loggedIn()) model.removeRequest(sel);
+            });
         });
 
         JPanel btns = new JPanel(new GridLayout(1,2,6,6));
@@ -567,149 +516,155 @@ public class ChipiChipiGUI_Full extends JFrame {
     }
 
     private void showCreatePostDialog() {
-        if (currentUser == null) { JOptionPane.showMessageDialog(this, "Login first"); return; }
+        if (!model.loggedIn()) { JOptionPane.showMessageDialog(this, "Login first"); return; }
         JTextArea area = new JTextArea(6,30);
         int res = JOptionPane.showConfirmDialog(this, new JScrollPane(area), "Create Post", JOptionPane.OK_CANCEL_OPTION);
         if (res == JOptionPane.OK_OPTION) {
             String post = area.getText().trim();
             if (post.isEmpty()) return;
-            savePost(currentUser.username, post);
-            JOptionPane.showMessageDialog(this, "Posted.");
+            whenDone(request("POST", post), ok -> JOptionPane.showMessageDialog(this, "Posted."));
         }
     }
 
     private void showPostsDialog() {
-        loadPosts();
-        if (postsCache.isEmpty()) {
-            JOptionPane.showMessageDialog(this, "No posts available.");
-            return;
-        }
-        JTextArea ta = new JTextArea();
-        ta.setEditable(false);
-        for (String p : postsCache) ta.append(p + "\n");
-        JScrollPane sp = new JScrollPane(ta);
-        sp.setPreferredSize(new Dimension(700, 400));
-        JOptionPane.showMessageDialog(this, sp, "All Posts", JOptionPane.PLAIN_MESSAGE);
+        whenDone(latestPosts(new ArrayList<>(), ""), latest -> {
+            if (latest.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No posts available.");
+                return;
+            }
+            JTextArea ta = new JTextArea();
+            ta.setEditable(false);
+            for (PostStore.Post p : latest) ta.append(p.render() + "\n");
+            ta.setCaretPosition(0);
+            JScrollPane sp = new JScrollPane(ta);
+            sp.setPreferredSize(new Dimension(700, 400));
+            JOptionPane.showMessageDialog(this, sp, "Latest Posts", JOptionPane.PLAIN_MESSAGE);
+        });
+    }
+
+    // newest first: follows POSTS pages from the server until POSTS_SHOWN are collected or they run out
+    private CompletableFuture<java.util.List<PostStore.Post>> latestPosts(java.util.List<PostStore.Post> into, String beforeId) {
+        return request("POSTS", beforeId).thenCompose(f -> {
+            for (int i = 0; i + 3 < f.size() && into.size() < POSTS_SHOWN; i += 4) {
+                into.add(new PostStore.Post(Integer.parseInt(f.get(i)), f.get(i + 1), f.get(i + 2), f.get(i + 3)));
+            }
+            if (f.isEmpty() || into.size() >= POSTS_SHOWN) return CompletableFuture.completedFuture(into);
+            return latestPosts(into, Integer.toString(into.get(into.size() - 1).id()));
+        });
     }
 
     private void doLogout() {
-        currentUser = null;
-        chatMessages.clear();
-        activeChat = "#Global";
-        setTitle("ChipiChipi — GUI");
+        if (model.loggedIn() && !disconnected) request("LOGOUT");
+        model.setUser(null);
+        model.setFriends(ClientModel.Friends.NONE);
+        globalChat.clear();
+        chatCache.clear();
+        model.setActiveChat("#Global");
         cardLayout.show(cards, "AUTH");
     }
 
     private void doSendMessage() {
-        if (currentUser == null) { JOptionPane.showMessageDialog(this, "Login first"); return; }
+        if (!model.loggedIn()) { JOptionPane.showMessageDialog(this, "Login first"); return; }
         String text = messageInput.getText().trim();
         if (text.isEmpty()) return;
-        String ts = TS_FORMAT.format(new Date());
-
-        if (activeChat.equals("#Global")) {
-            // global post-like message (we'll store as a post-less global chat)
-            Message m = new Message(currentUser.username, text);
-            chatMessages.get("#Global").add(m);
-            appendBubble(currentUser.username, text, true);
-            // also optionally save to posts as "post" or skip; to keep parity we'll not save as post.
+
+        if (model.activeChat().equals("#Global")) {
+            // the room pushes it back to every member, us included, in room order
+            whenDone(request("SAY", "#Global", text), ok -> {});
+        } else if (model.activeChat().startsWith("⟡")) {
+            return;
         } else {
-            // private message to friend
-            String friend = activeChat;
-            if (!users.containsKey(friend)) {
-                JOptionPane.showMessageDialog(this, "Friend not found.");
-                return;
-            }
-            // add to in-memory chat
-            chatMessages.computeIfAbsent(friend, k -> new ArrayList<>());
-            Message me = new Message(currentUser.username, text);
-            chatMessages.get(friend).add(me);
-            appendBubble(currentUser.username, text, true);
-            // persist to file as "sender: text (timestamp)"
-            String line = currentUser.username + ": " + text + " (" + ts + ")";
-            appendMessageToFile(currentUser.username, friend, line);
-            // also append to friend's file view so they can read when they login (mock)
+            // private message to friend; shown once the server has stored it
+            String friend = model.activeChat();
+            whenDone(request("SEND", friend, text), ok -> {
+                if (!model.loggedIn()) return;
+                ChatView.Line line = new ChatView.Line(Long.parseLong(ok.get(0)), model.username(), text);
+                chatCache.add(friend, line);
+                if (model.activeChat().equals(friend)) chatView.append(line);
+            });
         }
         messageInput.setText("");
-        SwingUtilities.invokeLater(() -> chatScroll.getVerticalScrollBar().setValue(chatScroll.getVerticalScrollBar().getMaximum()));
     }
 
-    // Refresh chatPanel content according to activeChat
+    // Refresh chatView content according to activeChat
     private void refreshChatPanel() {
-        chatPanel.removeAll();
-        chatPanel.revalidate();
-        chatPanel.repaint();
-
-        if (activeChat.equals("#Global")) {
+        int version = ++chatPanelVersion;
+        if (model.activeChat().equals("#Global")) {
             // show global chat messages
-            java.util.List<Message> msgs = chatMessages.getOrDefault("#Global", new ArrayList<>());
-            for (Message m : msgs) appendBubble(m.sender, m.text, m.sender.equals(currentUser.username));
-        } else if (activeChat.startsWith("⟡")) {
+            chatView.load(model.username(), new ArrayList<>(globalChat), false, null);
+        } else if (model.activeChat().startsWith("⟡")) {
             // friend requests placeholder; ignore
-            JLabel lbl = new JLabel("Click 'Manage Requests' to respond to requests.");
-            chatPanel.add(Box.createVerticalStrut(12));
-            chatPanel.add(lbl);
+            chatView.showNotice("Click 'Manage Requests' to respond to requests.");
         } else {
-            // private chat: load from files and memory
-            java.util.List<Message> msgs = chatMessages.computeIfAbsent(activeChat, k -> new ArrayList<>());
-            // load persisted messages
-            java.util.List<String> persisted = loadMessagesFromFile(currentUser.username, activeChat);
-            for (String line : persisted) {
-                // format: Sender: message (timestamp)
-                int idx = line.indexOf(":");
-                if (idx > 0) {
-                    String s = line.substring(0, idx).trim();
-                    String rest = line.substring(idx + 1).trim();
-                    boolean mine = s.equals(currentUser.username);
-                    appendBubble(s, rest, mine);
-                } else {
-                    appendBubble("?", line, false);
-                }
-            }
-            // then append in-memory messages (new ones)
-            for (Message m : msgs) appendBubble(m.sender, m.text, m.sender.equals(currentUser.username));
+            // private chat: newest messages first, older pages as the user scrolls up
+            messagePager(model.activeChat(), version).latest();
         }
-
-        chatPanel.add(Box.createVerticalStrut(12));
-        chatPanel.revalidate();
-        SwingUtilities.invokeLater(() -> chatScroll.getVerticalScrollBar().setValue(chatScroll.getVerticalScrollBar().getMaximum()));
     }
 
-    // append bubble to panel (thread-safe)
-    private void appendBubble(String sender, String text, boolean isMe) {
-        JPanel bubbleWrap = new JPanel(new BorderLayout());
-        bubbleWrap.setOpaque(false);
-        JPanel bubble = new BubblePanel(text, isMe ? BUBBLE_ME : BUBBLE_OTHER, isMe ? Color.WHITE : Color.BLACK);
-
-        // show sender name above message for others
-        if (!isMe) {
-            JLabel name = new JLabel(sender);
-            name.setFont(new Font("Segoe UI", Font.BOLD, 12));
-            bubbleWrap.add(name, BorderLayout.NORTH);
-        }
-
-        if (isMe) {
-            bubbleWrap.add(bubble, BorderLayout.EAST);
+    // shows a friend chat from the cache at once, then adds only what the server has that is newer
+    private void openFriendChat(String friend, int version, ChatView.Pager pager) {
+        ChatCache.Conversation cached = chatCache.open(friend);
+        String afterId = "";
+        if (cached != null) {
+            chatView.load(model.username(), cached.lines(), cached.hasOlder, pager);
+            afterId = Long.toString(cached.lastId());
         } else {
-            bubbleWrap.add(bubble, BorderLayout.WEST);
+            chatView.showNotice("Loading...");
         }
-        bubbleWrap.setBorder(new EmptyBorder(6,6,6,6));
-        chatPanel.add(bubbleWrap);
-        chatPanel.add(Box.createVerticalStrut(6));
-        chatPanel.revalidate();
-        chatPanel.repaint();
+        whenDone(request("MESSAGES", friend, "", afterId), f -> {
+            if (!model.loggedIn()) return;
+            java.util.List<ChatView.Line> added = chatCache.merge(friend, lines(f), ServerConnection.wireSize(f));
+            if (version != chatPanelVersion) return;
+            if (added == null) {
+                ChatCache.Conversation conv = chatCache.get(friend);
+                chatView.load(model.username(), conv.lines(), conv.hasOlder, pager);
+            } else {
+                for (ChatView.Line line : added) chatView.append(line);
+            }
+        });
+    }
+
+    // pages of an open friend chat; replies arriving after another chat was opened are dropped
+    private ChatView.Pager messagePager(String friend, int version) {
+        return new ChatView.Pager() {
+            @Override public void older(long beforeId) {
+                ServerConnection.onEdt(request("MESSAGES", friend, Long.toString(beforeId)), f -> {
+                    if (version == chatPanelVersion) chatView.prepend(lines(f), !f.isEmpty());
+                }, error -> {
+                    sysPreview.setText(error);
+                    if (version == chatPanelVersion) chatView.prepend(java.util.List.of(), false);
+                });
+            }
+
+            @Override public void latest() {
+                openFriendChat(friend, version, this);
+            }
+        };
+    }
+
+    // id sender text triples, as MESSAGES and JOIN return them
+    private static java.util.List<ChatView.Line> lines(java.util.List<String> f) {
+        java.util.List<ChatView.Line> lines = new ArrayList<>(f.size() / 3);
+        for (int i = 0; i + 2 < f.size(); i += 3) lines.add(new ChatView.Line(Long.parseLong(f.get(i)), f.get(i + 1), f.get(i + 2)));
+        return lines;
     }
 
-    private String userProfileText(String username) {
-        if (username == null) return "No user.";
-        User u = users.get(username);
-        if (u == null) return "No user.";
+    private void addGlobal(ChatView.Line line) {
+        globalChat.addLast(line);
+        if (globalChat.size() > ChatView.MAX_LOADED) globalChat.removeFirst();
+    }
+
+    private String userProfileText() {
+        ClientModel.User u = model.user();
+        if (u == null) return "No user logged in";
+        ClientModel.Friends friends = model.friends();
         StringBuilder sb = new StringBuilder();
-        sb.append("Username: ").append(u.username).append("\n");
-        sb.append("Age: ").append(u.age).append("\n");
-        sb.append("Gender: ").append(u.gender).append("\n");
-        sb.append("Country: ").append(u.country).append("\n");
-        sb.append("Friends: ").append(u.friends.size()).append("\n");
-        sb.append("Requests: ").append(u.friendRequests.size()).append("\n");
+        sb.append("Username: ").append(u.username()).append("\n");
+        sb.append("Age: ").append(u.age()).append("\n");
+        sb.append("Gender: ").append(u.gender()).append("\n");
+        sb.append("Country: ").append(u.country()).append("\n");
+        sb.append("Friends: ").append(friends.friends().size()).append("\n");
+        sb.append("Requests: ").append(friends.requests().size()).append("\n");
         return sb.toString();
     }
 
@@ -746,45 +701,4 @@ public class ChipiChipiGUI_Full extends JFrame {
             return new ImageIcon(img);
         }
     }
-
-    // Rounded bubble panel
-    private static class BubblePanel extends JPanel {
-        private String text;
-        private Color bg;
-        private Color fg;
-        private static final int ARC = 18;
-        BubblePanel(String text, Color bg, Color fg) {
-            this.text = text;
-            this.bg = bg;
-            this.fg = fg;
-            setOpaque(false);
-            setLayout(new BorderLayout());
-            JTextArea ta = new JTextArea(text);
-            ta.setEditable(false);
-            ta.setLineWrap(true);
-            ta.setWrapStyleWord(true);
-            ta.setOpaque(false);
-            ta.setForeground(fg);
-            ta.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-            ta.setBorder(new EmptyBorder(10,10,10,10));
-            add(ta, BorderLayout.CENTER);
-            setMaximumSize(new Dimension(620, Integer.MAX_VALUE));
-        }
-
-        @Override protected void paintComponent(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g.create();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2.setColor(bg);
-            int w = getWidth();
-            int h = getHeight();
-            g2.fillRoundRect(0,0,w,h, ARC, ARC);
-            g2.dispose();
-            super.paintComponent(g);
-        }
-    }
-
-    // ------------------ utilities ------------------
-    private void loadUsersToMemoryIfNeeded() {
-        if (users.isEmpty()) loadUsers();
-    }
 }
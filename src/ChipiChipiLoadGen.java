@@ -0,0 +1,488 @@
+// ChipiChipiLoadGen.java
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for ChipiChipiServer.
+ *
+ * Runs many scripted sessions at once, one virtual thread each, through the
+ * same text menus a person would use: every session registers and logs in
+ * as its own user, then keeps picking a menu action by weight, sleeping an
+ * exponentially distributed think time between actions. At the end it
+ * prints throughput and a latency histogram per action.
+ *
+ *   java ChipiChipiLoadGen --sessions=2000 --duration=60 --think-ms=500
+ *       --mix=post:20,viewPosts:2,browse:18,friend:10,accept:10,message:25,viewMessages:15
+ *
+ * Options: --host=, --port=, --sessions=, --duration= (seconds), --think-ms=
+ * (mean), --ramp= (seconds over which sessions start), --mix= (weights per
+ * action; actions left out are never picked) and --protocol=menu|framed.
+ *
+ * With --protocol=framed the same actions are sent as CommandProtocol
+ * commands, pipelined where the action allows it. Round trips and bytes per
+ * action are reported for both, so the two modes can be compared directly.
+ */
+public class ChipiChipiLoadGen {
+    private static final String MAIN_PROMPT = "Choose option (1-3):";
+    private static final String USER_PROMPT = "Choose option:";
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+
+    private static final String DEFAULT_MIX = "post:20,viewPosts:2,browse:18,friend:10,accept:10,message:25,viewMessages:15";
+
+    enum Action {
+        REGISTER("register"), LOGIN("login"), POST("post"), VIEW_POSTS("viewPosts"), BROWSE("browse"),
+        FRIEND("friend"), ACCEPT("accept"), MESSAGE("message"), VIEW_MESSAGES("viewMessages");
+
+        final String key;
+
+        Action(String key) {
+            this.key = key;
+        }
+
+        static Action of(String key) {
+            for (Action a : values()) {
+                if (a.key.equals(key)) return a;
+            }
+            throw new IllegalArgumentException("Unknown action: " + key);
+        }
+    }
+
+    private static final Map<Action, LatencyHistogram> latencies = new EnumMap<>(Action.class);
+    private static final Map<Action, LongAdder> errors = new EnumMap<>(Action.class);
+    private static final Map<Action, LongAdder> roundTrips = new EnumMap<>(Action.class);
+    private static final Map<Action, LongAdder> bytes = new EnumMap<>(Action.class);
+    private static final LongAdder failedConnects = new LongAdder();
+
+    static {
+        for (Action a : Action.values()) {
+            latencies.put(a, new LatencyHistogram());
+            errors.put(a, new LongAdder());
+            roundTrips.put(a, new LongAdder());
+            bytes.put(a, new LongAdder());
+        }
+    }
+
+    private static String host;
+    private static int port;
+    private static int sessions;
+    private static long thinkMillis;
+    private static boolean framed;
+    private static String runId;
+    private static Action[] weighted;
+    private static volatile long deadline;
+
+    public static void main(String[] args) throws InterruptedException {
+        host = option(args, "--host=", "localhost");
+        port = Integer.parseInt(option(args, "--port=", "12345"));
+        sessions = Integer.parseInt(option(args, "--sessions=", "100"));
+        int durationSeconds = Integer.parseInt(option(args, "--duration=", "30"));
+        int rampSeconds = Integer.parseInt(option(args, "--ramp=", "5"));
+        thinkMillis = Long.parseLong(option(args, "--think-ms=", "500"));
+        weighted = parseMix(option(args, "--mix=", DEFAULT_MIX));
+        framed = option(args, "--protocol=", "menu").equals("framed");
+        runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+
+        System.out.println("Running " + sessions + " sessions against " + host + ":" + port
+                + " for " + durationSeconds + "s using the " + (framed ? "framed" : "menu") + " protocol (run " + runId + ")");
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sessions; i++) {
+                int id = i;
+                long delay = sessions == 1 ? 0 : TimeUnit.SECONDS.toMillis(rampSeconds) * i / (sessions - 1);
+                executor.submit(() -> runSession(id, delay));
+            }
+        }
+        report(System.nanoTime() - start);
+    }
+
+    private static void runSession(int id, long startDelayMillis) {
+        Random random = ThreadLocalRandom.current();
+        try {
+            Thread.sleep(startDelayMillis);
+        } catch (InterruptedException e) {
+            return;
+        }
+        Session session;
+        try {
+            session = framed ? new FramedSession(host, port) : new MenuSession(host, port);
+        } catch (IOException e) {
+            failedConnects.increment();
+            return;
+        }
+        try (Session s = session) {
+            String username = userName(id);
+            s.start();
+            if (!s.timed(Action.REGISTER, () -> s.register(username))) return;
+            if (!s.timed(Action.LOGIN, () -> s.login(username))) return;
+
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(thinkTime(random));
+                Action action = weighted[random.nextInt(weighted.length)];
+                String other = userName(random.nextInt(sessions));
+                boolean ok = s.timed(action, () -> {
+                    switch (action) {
+                        case POST -> s.post("load test post from " + username);
+                        case VIEW_POSTS -> s.viewPosts();
+                        case BROWSE -> s.browse();
+                        case FRIEND -> s.friend(other);
+                        case ACCEPT -> s.acceptAll();
+                        case MESSAGE -> s.message(other, "hello from " + username);
+                        case VIEW_MESSAGES -> s.viewMessages(other);
+                        default -> throw new IllegalStateException(action.key);
+                    }
+                });
+                if (!ok) return;
+            }
+            s.quit();
+        } catch (IOException | InterruptedException e) {
+            // a lost greeting or logout ends the session; action errors are already counted
+        }
+    }
+
+    private static String userName(int id) {
+        return "lg" + runId + "_" + id;
+    }
+
+    private static long thinkTime(Random random) {
+        if (thinkMillis <= 0) return 0;
+        return (long) (-Math.log(1 - random.nextDouble()) * thinkMillis);
+    }
+
+    private static void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.println();
+        System.out.printf("%-13s %9s %9s %7s %9s %9s %9s %9s %9s %6s %7s%n", "action", "count", "ops/s", "errors",
+                "p50(us)", "p90(us)", "p99(us)", "p999(us)", "max(us)", "rt/op", "B/op");
+        for (Action a : Action.values()) {
+            LatencyHistogram h = latencies.get(a);
+            total += h.count();
+            long n = Math.max(1, h.count());
+            System.out.printf("%-13s %9d %9.1f %7d %9d %9d %9d %9d %9d %6.1f %7d%n",
+                    a.key, h.count(), h.count() / seconds, errors.get(a).sum(),
+                    h.percentileMicros(50), h.percentileMicros(90), h.percentileMicros(99),
+                    h.percentileMicros(99.9), h.maxMicros(),
+                    (double) roundTrips.get(a).sum() / n, bytes.get(a).sum() / n);
+        }
+        System.out.printf("total %d actions in %.1fs, %.1f ops/s, %d sessions failed to connect%n",
+                total, seconds, total / seconds, failedConnects.sum());
+    }
+
+    private static Action[] parseMix(String mix) {
+        List<Action> weighted = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            Action action = Action.of(parts[0]);
+            if (action == Action.REGISTER || action == Action.LOGIN) {
+                throw new IllegalArgumentException(action.key + " runs once per session and cannot be mixed");
+            }
+            int weight = Integer.parseInt(parts[1]);
+            for (int i = 0; i < weight; i++) weighted.add(action);
+        }
+        if (weighted.isEmpty()) throw new IllegalArgumentException("Empty mix: " + mix);
+        return weighted.toArray(new Action[0]);
+    }
+
+    private static String option(String[] args, String prefix, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+
+    interface Step {
+        void run() throws IOException;
+    }
+
+    /**
+     * One scripted client connection. Counts the bytes it moves and the
+     * number of times it has to wait for the server (round trips).
+     */
+    private abstract static class Session implements Closeable {
+        private final Socket socket;
+        private final CountingInputStream counted;
+        final BufferedReader in;
+        final PrintWriter out;
+        private long sent = 0;
+        private long trips = 0;
+
+        Session(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            counted = new CountingInputStream(socket.getInputStream());
+            in = new BufferedReader(new InputStreamReader(counted, StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        abstract void start() throws IOException;
+        abstract void register(String username) throws IOException;
+        abstract void login(String username) throws IOException;
+        abstract void post(String text) throws IOException;
+        abstract void viewPosts() throws IOException;
+        abstract void browse() throws IOException;
+        abstract void friend(String target) throws IOException;
+        abstract void acceptAll() throws IOException;
+        abstract void message(String target, String text) throws IOException;
+        abstract void viewMessages(String target) throws IOException;
+        abstract void quit() throws IOException;
+
+        /** Runs a step, recording its latency, or counting an error and returning false if it failed. */
+        boolean timed(Action action, Step step) {
+            long start = System.nanoTime();
+            long bytesBefore = sent + counted.count;
+            long tripsBefore = trips;
+            try {
+                step.run();
+                latencies.get(action).recordNanos(System.nanoTime() - start);
+                roundTrips.get(action).add(trips - tripsBefore);
+                bytes.get(action).add(sent + counted.count - bytesBefore);
+                return true;
+            } catch (IOException e) {
+                errors.get(action).increment();
+                return false;
+            }
+        }
+
+        /** Queues a line; it goes out with the next flush(). */
+        void send(String line) {
+            String terminated = line + "\n";
+            sent += terminated.getBytes(StandardCharsets.UTF_8).length;
+            out.print(terminated);
+        }
+
+        /** Sends everything queued; the next read waits for the server, so it counts as one round trip. */
+        void flush() {
+            out.flush();
+            trips++;
+        }
+
+        String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new EOFException("Server closed the connection");
+            return line;
+        }
+
+        @Override public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** Drives the legacy menus: one line out, then wait for the next prompt. */
+    private static final class MenuSession extends Session {
+        MenuSession(String host, int port) throws IOException {
+            super(host, port);
+        }
+
+        @Override void start() throws IOException {
+            await(MAIN_PROMPT);
+        }
+
+        @Override void register(String username) throws IOException {
+            command(MAIN_PROMPT, "1", "Enter username:", username, "Enter password:", "pw",
+                    "Enter age:", "30", "Enter gender:", "Other", "Enter country:", "BD");
+        }
+
+        @Override void login(String username) throws IOException {
+            if (!command(MAIN_PROMPT, "2", "Enter username:", username, "Enter password:", "pw").equals(USER_PROMPT)) {
+                throw new IOException("Login rejected");
+            }
+        }
+
+        @Override void post(String text) throws IOException {
+            command(USER_PROMPT, "4", "Enter post:", text);
+        }
+
+        @Override void viewPosts() throws IOException {
+            command(USER_PROMPT, "5");
+        }
+
+        @Override void browse() throws IOException {
+            command(USER_PROMPT, "9", "Show posts before id (blank for latest):", "");
+        }
+
+        @Override void friend(String target) throws IOException {
+            command(USER_PROMPT, "1", "Username to request:", target);
+        }
+
+        /** Accepts every pending friend request, one prompt each. */
+        @Override void acceptAll() throws IOException {
+            sendAndFlush("2");
+            while (await(USER_PROMPT, "(A)ccept / (R)eject?").endsWith("(R)eject?")) {
+                sendAndFlush("A");
+            }
+        }
+
+        /** Sends a DM; the server answers "Not your friend." right away if they are not friends. */
+        @Override void message(String target, String text) throws IOException {
+            sendAndFlush("6");
+            await("Send message to:");
+            sendAndFlush(target);
+            if (await(USER_PROMPT, "Enter message:").equals("Enter message:")) {
+                sendAndFlush(text);
+                await(USER_PROMPT);
+            }
+        }
+
+        @Override void viewMessages(String target) throws IOException {
+            command(USER_PROMPT, "7", "With whom:", target);
+        }
+
+        @Override void quit() throws IOException {
+            sendAndFlush("8");
+            await(MAIN_PROMPT);
+            sendAndFlush("3");
+        }
+
+        /**
+         * Sends the first line, then alternates: wait for a prompt, send the
+         * next line. Ends waiting for {@code finalPrompt} (or the user menu)
+         * and returns the prompt that ended it.
+         */
+        private String command(String finalPrompt, String... script) throws IOException {
+            sendAndFlush(script[0]);
+            for (int i = 1; i < script.length; i += 2) {
+                await(script[i]);
+                sendAndFlush(script[i + 1]);
+            }
+            return await(finalPrompt, USER_PROMPT);
+        }
+
+        private void sendAndFlush(String line) {
+            send(line);
+            flush();
+        }
+
+        /** Reads lines until one ends with any of the prompts and returns that prompt. */
+        private String await(String... prompts) throws IOException {
+            while (true) {
+                String line = readLine();
+                for (String prompt : prompts) {
+                    if (line.endsWith(prompt)) return prompt;
+                }
+            }
+        }
+    }
+
+    /** Drives CommandProtocol: commands carry ids, so independent ones are pipelined. */
+    private static final class FramedSession extends Session {
+        private int nextId = 1;
+
+        FramedSession(String host, int port) throws IOException {
+            super(host, port);
+        }
+
+        @Override void start() throws IOException {
+            while (!readLine().endsWith(MAIN_PROMPT)) {}
+            send(CommandProtocol.HELLO);
+            flush();
+            while (!readLine().equals(CommandProtocol.HELLO + "\tOK")) {}
+        }
+
+        @Override void register(String username) throws IOException {
+            call("REGISTER", username, "pw", "30", "Other", "BD");
+        }
+
+        @Override void login(String username) throws IOException {
+            if (call("LOGIN", username, "pw")[1].equals("ERR")) throw new IOException("Login rejected");
+        }
+
+        @Override void post(String text) throws IOException {
+            call("POST", text);
+        }
+
+        /** There is no unpaged "all posts" command; the latest page stands in for View Posts. */
+        @Override void viewPosts() throws IOException {
+            call("POSTS");
+        }
+
+        @Override void browse() throws IOException {
+            call("POSTS", "");
+        }
+
+        @Override void friend(String target) throws IOException {
+            call("FRIEND", target);
+        }
+
+        /** Lists the pending requests, then accepts all of them in one pipelined burst. */
+        @Override void acceptAll() throws IOException {
+            String[] requests = call("REQUESTS");
+            if (requests.length <= 2) return;
+            int first = nextId;
+            for (int i = 2; i < requests.length; i++) {
+                queue("ACCEPT", requests[i]);
+            }
+            flush();
+            for (int id = first; id < nextId; id++) {
+                awaitResponse(id);
+            }
+        }
+
+        @Override void message(String target, String text) throws IOException {
+            call("SEND", target, text);
+        }
+
+        @Override void viewMessages(String target) throws IOException {
+            call("MESSAGES", target);
+        }
+
+        @Override void quit() throws IOException {
+            queue("LOGOUT");
+            queue("QUIT");
+            flush();
+        }
+
+        private String[] call(String verb, String... args) throws IOException {
+            int id = queue(verb, args);
+            flush();
+            return awaitResponse(id);
+        }
+
+        private int queue(String verb, String... args) {
+            int id = nextId++;
+            StringBuilder sb = new StringBuilder().append(id).append('\t').append(verb);
+            for (String arg : args) {
+                sb.append('\t');
+                CommandProtocol.escape(sb, arg);
+            }
+            send(sb.toString());
+            return id;
+        }
+
+        /** Reads until the response to {@code id}, skipping pushed events. */
+        private String[] awaitResponse(int id) throws IOException {
+            String prefix = id + "\t";
+            while (true) {
+                String line = readLine();
+                if (line.startsWith(prefix)) return CommandProtocol.split(line);
+            }
+        }
+    }
+
+    /** Counts bytes read from the server. */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
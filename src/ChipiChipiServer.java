@@ -2,93 +2,264 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 
 public class ChipiChipiServer {
     private static final int PORT = 12345;
-    private static Map<String, User> users = new ConcurrentHashMap<>();
-    private static Map<String, PrintWriter> loggedInUsers = new ConcurrentHashMap<>();
+    static Map<String, User> users = new ConcurrentHashMap<>();
+    static Map<String, Outbox> loggedInUsers = new ConcurrentHashMap<>();
     private static final String USER_FILE = "users.txt";
+    private static final String BINARY_USER_FILE = "users.bin";
+    private static final String USER_LOG_FILE = "users.log";
     private static final String POST_FILE = "posts.txt";
+    private static final String MESSAGE_DIR = "messages";
+    private static final int SHUTDOWN_GRACE_SECONDS = 10;
+
+    static UserStore userStore;
+    static SocialGraph socialGraph;
+    static CompactGraph compactGraph;
+    static PostStore postStore;
+    static HomeTimeline homeTimeline;
+    static PostSearch postSearch;
+    static FriendSuggestions friendSuggestions;
+    static UserSearch userSearch;
+    static MessageStore messageStore;
+    static final Map<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
+
+    static final String NO_LONGER_PENDING = "Request no longer pending.";
+    static final String NOT_SAVED = "Could not save the change, try again.";
+    static final String MAIN_MENU = "1. Register\n2. Login\n3. Exit\nChoose option (1-3):";
+    static final String USER_MENU = "\n1. Send Friend Request\n2. Manage Requests\n3. View Friends\n4. Post\n5. View Posts\n6. Send Message\n7. View Messages\n8. Logout\n9. Browse Posts\n10. Home Timeline\n11. Older Messages\n12. People You May Know\n13. Search Users\n14. Search Posts\n15. Global Chat\n16. Leave Global Chat\nChoose option:";
 
     public static void main(String[] args) throws IOException {
+        // --binary-users: keep the user snapshot in users.bin, converting users.txt on first start
+        String userFile = USER_FILE;
+        if (Arrays.asList(args).contains("--binary-users")) {
+            userFile = BINARY_USER_FILE;
+            convertUsers();
+        }
+        // --no-fsync: leave user log appends in the OS page cache instead of forcing each one to disk
+        userStore = new UserStore(userFile, USER_LOG_FILE, !Arrays.asList(args).contains("--no-fsync"));
+        friendSuggestions = new FriendSuggestions(users);
+        socialGraph = new SocialGraph(users, userStore, friendSuggestions);
+        // --compact-graph: keep friend lists as sorted int arrays of interned user ids instead of string sets
+        if (Arrays.asList(args).contains("--compact-graph")) compactGraph = new CompactGraph();
+        // --mmap: index and read the post and message logs through memory mappings
+        boolean mmap = Arrays.asList(args).contains("--mmap");
+        // --fsync-logs: force each group-committed batch of posts/messages to disk before acknowledging it
+        boolean fsyncLogs = Arrays.asList(args).contains("--fsync-logs");
+        // --batch-linger-ms=N: let the log writers wait up to N ms for more appends to join a batch
+        int linger = intOption(args, "--batch-linger-ms=", 0);
+        postStore = new PostStore(POST_FILE, mmap, fsyncLogs, linger);
+        homeTimeline = new HomeTimeline(postStore, users);
+        postSearch = new PostSearch(postStore);
+        messageStore = new MessageStore(MESSAGE_DIR, mmap, fsyncLogs, linger);
         loadUsers();
+        // built in the background: with a million users it would hold up startup for seconds
+        userSearch = UserSearch.building(users.keySet());
+        loadPosts();
+        indexPosts();
+        loadMessages();
+        chatRooms.put(ChatRoom.GLOBAL, new ChatRoom(ChatRoom.GLOBAL));
+        // --metrics-port=N: serve plain-text metrics on 127.0.0.1:N/metrics (JMX beans are always registered)
+        Metrics.gauge("users.loggedIn", loggedInUsers::size);
+        Metrics.gauge("users.registered", users::size);
+        Metrics.start(intOption(args, "--metrics-port=", 0));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(homeTimeline.stats());
+            System.out.println(friendSuggestions.stats());
+            System.out.println(Outbox.stats());
+            chatRooms.values().forEach(room -> System.out.println(room.stats()));
+            System.out.println(postStore.commitStats());
+            System.out.println(messageStore.commitStats());
+        }));
+
+        // --nio: serve every connection from one selector thread instead of a thread per socket
+        if (Arrays.asList(args).contains("--nio")) {
+            new NioServer(PORT).run();
+            return;
+        }
 
         ServerSocket serverSocket = new ServerSocket(PORT);
         System.out.println("ChipiChipi Server started on port " + PORT);
 
+        // --virtual-threads [--max-sessions=N]: one virtual thread per session, capped and drained on shutdown
+        if (Arrays.asList(args).contains("--virtual-threads")) {
+            runVirtualThreadSessions(serverSocket, intOption(args, "--max-sessions=", Integer.MAX_VALUE));
+            return;
+        }
+
         while (true) {
             Socket clientSocket = serverSocket.accept();
             new Thread(new ClientHandler(clientSocket)).start();
         }
     }
 
-    private static void loadUsers() {
-        File file = new File("users.txt");
-        if (!file.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(";");
-                if (parts.length >= 5) {
-                    String username = parts[0];
-                    String password = parts[1];
-                    int age = Integer.parseInt(parts[2]);
-                    String gender = parts[3];
-                    String country = parts[4];
-
-                    User user = new User(username, password, age, gender, country);
-
-                    if (parts.length > 5 && !parts[5].isEmpty()) {
-                        user.friends.addAll(Arrays.asList(parts[5].split(",")));
-                    }
-                    if (parts.length > 6 && !parts[6].isEmpty()) {
-                        user.friendRequests.addAll(Arrays.asList(parts[6].split(",")));
+    private static int intOption(String[] args, String prefix, int defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return Integer.parseInt(arg.substring(prefix.length()));
+            }
+        }
+        return defaultValue;
+    }
+
+    private static void runVirtualThreadSessions(ServerSocket serverSocket, int maxSessions) throws IOException {
+        ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+        Semaphore slots = new Semaphore(maxSessions);
+        Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down, waiting for " + openSockets.size() + " sessions...");
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {}
+            sessions.shutdown();
+            try {
+                if (!sessions.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                    // sessions idle in readLine() only return once their socket is closed
+                    for (Socket s : openSockets) {
+                        try {
+                            s.close();
+                        } catch (IOException ignored) {}
                     }
+                    sessions.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
 
-                    users.put(username, user);
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (SocketException e) {
+                break; // closed by the shutdown hook
+            }
+            if (!slots.tryAcquire()) {
+                try (PrintWriter pw = new PrintWriter(clientSocket.getOutputStream(), true)) {
+                    pw.println("Server is full. Try again later.");
+                } finally {
+                    clientSocket.close();
                 }
+                continue;
             }
+            openSockets.add(clientSocket);
+            try {
+                sessions.execute(() -> {
+                    try {
+                        new ClientHandler(clientSocket).run();
+                    } finally {
+                        openSockets.remove(clientSocket);
+                        slots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                openSockets.remove(clientSocket);
+                slots.release();
+                clientSocket.close();
+            }
+        }
+    }
+
+    /** Writes users.bin from users.txt if only the text snapshot exists; users.txt is left as it was. */
+    private static void convertUsers() {
+        Path binary = Paths.get(BINARY_USER_FILE);
+        Path text = Paths.get(USER_FILE);
+        if (Files.exists(binary) || !Files.exists(text)) return;
+        try {
+            int converted = BinaryUserSnapshot.convert(text, binary);
+            System.out.println("Converted " + converted + " users from " + USER_FILE + " to " + BINARY_USER_FILE);
+        } catch (IOException e) {
+            System.out.println("Error converting users: " + e.getMessage());
+        }
+    }
+
+    private static void loadUsers() {
+        try {
+            userStore.load(users);
         } catch (IOException e) {
             System.out.println("Error loading users: " + e.getMessage());
         }
     }
 
 
-    private static synchronized void saveUsers() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter("users.txt", false))) {
-            for (User user : users.values()) {
-                String friendStr = String.join(",", user.friends);
-                String requestStr = String.join(",", user.friendRequests);
-                pw.println(user.username + ";" + user.password + ";" + user.age + ";" + user.gender + ";" + user.country + ";" + friendStr + ";" + requestStr);
-            }
+    private static void loadPosts() {
+        try {
+            postStore.open();
+        } catch (IOException e) {
+            System.out.println("Error loading posts: " + e.getMessage());
+        }
+    }
+
+
+    private static void indexPosts() {
+        try {
+            postSearch.build();
         } catch (IOException e) {
-            System.out.println("Error saving users: " + e.getMessage());
+            System.out.println("Error indexing posts: " + e.getMessage());
         }
     }
 
 
-    private static synchronized void savePost(String username, String post) {
-        try (PrintWriter pw = new PrintWriter(new FileWriter("posts.txt", true))) {
-            String timestamp = new Date().toString();
-            pw.println(username + ";" + timestamp + ";" + post);
+    private static void loadMessages() {
+        try {
+            messageStore.open(users.keySet());
+        } catch (IOException e) {
+            System.out.println("Error loading messages: " + e.getMessage());
+        }
+    }
+
+
+    /** Stores a post and returns its id, or -1 if it could not be written. */
+    static int savePost(String username, String post) {
+        long start = System.nanoTime();
+        return postSaved(username, post, start, postStore.appendAsync(username, new Date().toString(), post));
+    }
+
+    /**
+     * savePost for the NIO selector thread, which must not wait for the group
+     * commit: the post is fanned out and indexed on {@code executor} once it
+     * is written, and the future then holds its id, or -1.
+     */
+    static CompletableFuture<Integer> savePostAsync(String username, String post, Executor executor) {
+        long start = System.nanoTime();
+        CompletableFuture<Integer> stored = postStore.appendAsync(username, new Date().toString(), post);
+        return stored.handleAsync((id, e) -> postSaved(username, post, start, stored), executor);
+    }
+
+    private static int postSaved(String username, String post, long start, CompletableFuture<Integer> stored) {
+        try {
+            int id = GroupCommitLog.join(stored);
+            homeTimeline.onPost(username, id);
+            indexPost(id, username, post);
+            Metrics.POST.record(start);
+            return id;
         } catch (IOException e) {
             System.out.println("Error saving post: " + e.getMessage());
+            Metrics.POST.recordError(start);
+            return -1;
+        }
+    }
+
+    /** The post is stored either way; if indexing fails, the next post's catch-up retries it. */
+    private static void indexPost(int id, String username, String post) {
+        try {
+            postSearch.onPost(id, username, post);
+        } catch (IOException e) {
+            System.out.println("Error indexing post: " + e.getMessage());
         }
     }
 
 
-    private static List<String> getPostsByUser(String username) {
+    static List<String> getPostsByUser(String username) {
         List<String> posts = new ArrayList<>();
-        File file = new File(POST_FILE);
-        if (!file.exists()) return posts;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.startsWith(username + ":")) {
-                    posts.add(line.substring(username.length() + 1));
-                }
+        try {
+            for (PostStore.Post post : postStore.byAuthor(username)) {
+                posts.add(post.content());
             }
         } catch (IOException e) {
             System.out.println("Error reading posts: " + e.getMessage());
@@ -96,18 +267,429 @@ public class ChipiChipiServer {
         return posts;
     }
 
-    private static class User {
+    /** The outcome of registerUser, with the reply the client is shown. */
+    enum Registration {
+        REGISTERED("Registration successful!"),
+        TAKEN("Username already exists."),
+        INVALID("Fields may not contain ';' or line breaks, and usernames not ','."),
+        FAILED(NOT_SAVED);
+
+        final String reply;
+
+        Registration(String reply) {
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * Adds a newly registered user: REGISTERED once it is logged to users.log
+     * and visible, TAKEN if the name is already in use, INVALID if a field
+     * could break a users.log or users.txt record, and FAILED if the log
+     * append failed, leaving nothing registered.
+     */
+    static Registration registerUser(User user) {
+        long start = System.nanoTime();
+        if (!isValidRegistration(user)) {
+            Metrics.REGISTER.record(start);
+            return Registration.INVALID;
+        }
+        try {
+            if (!socialGraph.register(user)) {
+                Metrics.REGISTER.record(start);
+                return Registration.TAKEN;
+            }
+        } catch (IOException e) {
+            Metrics.REGISTER.recordError(start);
+            return Registration.FAILED;
+        }
+        userSearch.add(user.username);
+        Metrics.REGISTER.record(start);
+        return Registration.REGISTERED;
+    }
+
+    /**
+     * users.log and users.txt separate fields with ';' and records with line
+     * breaks, and users.txt lists friends comma-separated, so none of those
+     * may appear where a client could write a record of its own.
+     */
+    static boolean isValidRegistration(User user) {
+        return isValidField(user.username) && user.username.indexOf(',') < 0 && !user.username.isEmpty()
+                && isValidField(user.password) && isValidField(user.gender) && isValidField(user.country);
+    }
+
+    private static boolean isValidField(String field) {
+        return field != null && field.indexOf(';') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0;
+    }
+
+    /**
+     * {@code text} with CR and LF shown as \r and \n. Framed clients may send
+     * them inside a post, message or chat line, and a menu client would take
+     * each as the start of a line of the server's own.
+     */
+    static String oneLine(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+        return text.replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    /** The user with these credentials, or null. */
+    static User authenticate(String username, String password) {
+        long start = System.nanoTime();
+        User user = users.get(username);
+        if (user == null || !user.password.equals(password)) {
+            Metrics.LOGIN.recordError(start);
+            return null;
+        }
+        Metrics.LOGIN.record(start);
+        return user;
+    }
+
+    /** Records a friend request from {@code from} to {@code target} and returns the reply for the client. */
+    static String sendFriendRequest(User from, String target) {
+        long start = System.nanoTime();
+        SocialGraph.RequestResult result;
+        try {
+            result = socialGraph.request(from.username, target);
+        } catch (IOException e) {
+            Metrics.FRIEND_REQUEST.recordError(start);
+            return NOT_SAVED;
+        }
+        Metrics.FRIEND_REQUEST.record(start);
+        if (result == SocialGraph.RequestResult.NO_SUCH_USER && target != null) {
+            List<String> close = searchUsers(target, 3);
+            if (!close.isEmpty()) return result.reply + " Did you mean: " + String.join(", ", close) + "?";
+        }
+        return result.reply;
+    }
+
+    /** Usernames matching {@code query} by prefix, then by close spelling; see UserSearch. */
+    static List<String> searchUsers(String query, int limit) {
+        long start = System.nanoTime();
+        List<String> matches = userSearch.search(query, limit);
+        Metrics.SEARCH_USERS.record(start);
+        return matches;
+    }
+
+    static void writeSearchResults(PrintWriter out, String query) {
+        List<String> matches = query == null ? List.of() : searchUsers(query, UserSearch.DEFAULT_LIMIT);
+        if (matches.isEmpty()) {
+            out.println("No users found.");
+            return;
+        }
+        out.println("Users matching \"" + query.trim() + "\":");
+        matches.forEach(name -> out.println("- " + name));
+    }
+
+    /**
+     * Accepts a pending request; false if it was no longer pending (e.g.
+     * handled in another session). Throws, with nothing changed, if the
+     * accept could not be logged.
+     */
+    static boolean acceptFriendRequest(User user, String requester) throws IOException {
+        long start = System.nanoTime();
+        boolean accepted;
+        try {
+            accepted = socialGraph.accept(user.username, requester);
+        } catch (IOException e) {
+            Metrics.ACCEPT_REQUEST.recordError(start);
+            throw e;
+        }
+        if (accepted) {
+            homeTimeline.invalidate(user.username);
+            homeTimeline.invalidate(requester);
+        }
+        Metrics.ACCEPT_REQUEST.record(start);
+        return accepted;
+    }
+
+    static boolean rejectFriendRequest(User user, String requester) throws IOException {
+        long start = System.nanoTime();
+        boolean rejected;
+        try {
+            rejected = socialGraph.reject(user.username, requester);
+        } catch (IOException e) {
+            Metrics.REJECT_REQUEST.recordError(start);
+            throw e;
+        }
+        Metrics.REJECT_REQUEST.record(start);
+        return rejected;
+    }
+
+    /** Prints every post, streamed from the store a chunk at a time rather than loaded whole. */
+    static void writePosts(PrintWriter out) {
+        long start = System.nanoTime();
+        if (postStore.size() == 0) {
+            Metrics.VIEW_POSTS.record(start);
+            out.println("No posts available.");
+            return;
+        }
+
+        out.println("All Posts:");
+        try {
+            postStore.forEach(post -> out.println(post.render()));
+        } catch (IOException e) {
+            out.println("Error reading posts.");
+            Metrics.VIEW_POSTS.recordError(start);
+            return;
+        }
+        Metrics.VIEW_POSTS.record(start);
+    }
+
+    /** Prints one newest-first page of posts older than the given post id (blank means latest). */
+    static void writePostPage(PrintWriter out, String cursor) {
+        Long before = parseCursor(out, cursor);
+        if (before == null) return;
+        try {
+            writePage(out, postPage(before));
+        } catch (IOException e) {
+            out.println("Error reading posts.");
+        }
+    }
+
+    /** Same as writePostPage, restricted to posts by the user's friends. */
+    static void writeTimelinePage(PrintWriter out, User user, String cursor) {
+        Long before = parseCursor(out, cursor);
+        if (before == null) return;
+        try {
+            writePage(out, timelinePage(user, before));
+        } catch (IOException e) {
+            out.println("Error reading posts.");
+        }
+    }
+
+    static List<PostStore.Post> postPage(long beforeId) throws IOException {
+        long start = System.nanoTime();
+        try {
+            List<PostStore.Post> page = postStore.page(beforeId, PostStore.PAGE_SIZE);
+            Metrics.BROWSE_POSTS.record(start);
+            return page;
+        } catch (IOException e) {
+            Metrics.BROWSE_POSTS.recordError(start);
+            throw e;
+        }
+    }
+
+    static List<PostStore.Post> timelinePage(User user, long beforeId) throws IOException {
+        long start = System.nanoTime();
+        try {
+            List<PostStore.Post> page = homeTimeline.page(user, beforeId, PostStore.PAGE_SIZE);
+            Metrics.HOME_TIMELINE.record(start);
+            return page;
+        } catch (IOException e) {
+            Metrics.HOME_TIMELINE.recordError(start);
+            throw e;
+        }
+    }
+
+    /** Prints one newest-first page of posts matching {@code query} older than the given post id. */
+    static void writePostSearchPage(PrintWriter out, String query, String cursor) {
+        Long before = parseCursor(out, cursor);
+        if (before == null) return;
+        PostSearch.Query parsed = PostSearch.Query.parse(query == null ? "" : query);
+        if (parsed.isEmpty()) {
+            out.println("Enter words to search for, or from:username.");
+            return;
+        }
+        try {
+            writePage(out, searchPosts(parsed, before));
+        } catch (IOException e) {
+            out.println("Error reading posts.");
+        }
+    }
+
+    static List<PostStore.Post> searchPosts(PostSearch.Query query, long beforeId) throws IOException {
+        long start = System.nanoTime();
+        try {
+            List<PostStore.Post> page = postSearch.search(query, beforeId, PostStore.PAGE_SIZE);
+            Metrics.SEARCH_POSTS.record(start);
+            return page;
+        } catch (IOException e) {
+            Metrics.SEARCH_POSTS.recordError(start);
+            throw e;
+        }
+    }
+
+    private static Long parseCursor(PrintWriter out, String cursor) {
+        if (cursor == null || cursor.isBlank()) return Long.MAX_VALUE;
+        try {
+            return Long.parseLong(cursor.trim());
+        } catch (NumberFormatException e) {
+            out.println("Invalid post id.");
+            return null;
+        }
+    }
+
+    static List<FriendSuggestions.Suggestion> suggestions(User user) {
+        long start = System.nanoTime();
+        List<FriendSuggestions.Suggestion> suggestions = friendSuggestions.suggest(user);
+        Metrics.SUGGESTIONS.record(start);
+        return suggestions;
+    }
+
+    static void writeSuggestions(PrintWriter out, User user) {
+        List<FriendSuggestions.Suggestion> suggestions = suggestions(user);
+        if (suggestions.isEmpty()) {
+            out.println("No suggestions yet. Add some friends first.");
+            return;
+        }
+        out.println("People you may know:");
+        for (FriendSuggestions.Suggestion s : suggestions) {
+            out.println("- " + s.username() + " (" + s.mutualFriends() + " mutual "
+                    + (s.mutualFriends() == 1 ? "friend" : "friends") + ")");
+        }
+    }
+
+    private static void writePage(PrintWriter out, List<PostStore.Post> page) {
+        if (page.isEmpty()) {
+            out.println("No more posts.");
+            return;
+        }
+        for (PostStore.Post post : page) {
+            out.println("#" + post.id() + " " + post.render());
+        }
+        int oldest = page.get(page.size() - 1).id();
+        out.println(oldest > 0 ? "Next page: " + oldest : "No more posts.");
+    }
+
+    /**
+     * Stores a direct message, then pushes it to the recipient right away if
+     * they are logged in. Offline recipients read it later via View Messages.
+     * Returns the message id.
+     */
+    static long sendDirectMessage(String sender, String target, String msg) throws IOException {
+        long sentAt = System.nanoTime();
+        return messageSent(sentAt, messageStore.appendAsync(sender, target, msg));
+    }
+
+    /** sendDirectMessage for the NIO selector thread: the push happens on {@code executor} once the message is written. */
+    static CompletableFuture<Long> sendDirectMessageAsync(String sender, String target, String msg, Executor executor) {
+        long sentAt = System.nanoTime();
+        CompletableFuture<MessageStore.Message> stored = messageStore.appendAsync(sender, target, msg);
+        return stored.handleAsync((m, e) -> {
+            try {
+                return messageSent(sentAt, stored);
+            } catch (IOException io) {
+                throw new CompletionException(io);
+            }
+        }, executor);
+    }
+
+    private static long messageSent(long sentAt, CompletableFuture<MessageStore.Message> pending) throws IOException {
+        MessageStore.Message stored;
+        try {
+            stored = GroupCommitLog.join(pending);
+        } catch (IOException e) {
+            Metrics.SEND_MESSAGE.recordError(sentAt);
+            throw e;
+        }
+        Outbox outbox = loggedInUsers.get(stored.recipient());
+        if (outbox != null) {
+            outbox.pushMessage(stored.sender(), stored.text(), stored.id(), sentAt);
+        }
+        Metrics.SEND_MESSAGE.record(sentAt);
+        return stored.id();
+    }
+
+    /** Prints up to a page of the conversation, oldest first, ending just before the given message id. */
+    static void writeMessages(PrintWriter out, String username, String target, long beforeId) throws IOException {
+        List<MessageStore.Message> msgs = readMessages(username, target, -1, beforeId);
+        if (msgs.isEmpty()) {
+            out.println("No messages."); return;
+        }
+        if (msgs.size() == MessageStore.PAGE_SIZE) {
+            out.println("(Older messages: option 11, before id " + msgs.get(0).id() + ")");
+        }
+        for (MessageStore.Message m : msgs) {
+            out.println(m.render());
+        }
+    }
+
+    /**
+     * Queues a message for everyone in the chat room. Returns its id, or -1 if
+     * the room's fan-out is too far behind to take it.
+     */
+    static long sendChatMessage(ChatRoom room, String sender, String text) {
+        long sentAt = System.nanoTime();
+        long id = room.post(sender, text, sentAt);
+        if (id < 0) {
+            Metrics.CHAT_MESSAGE.recordError(sentAt);
+        } else {
+            Metrics.CHAT_MESSAGE.record(sentAt);
+        }
+        return id;
+    }
+
+    /** Joins the global room unless already in it, printing what was said recently, then prompts for a line. */
+    static void joinGlobalChat(PrintWriter out, User user, Outbox outbox) {
+        ChatRoom room = chatRooms.get(ChatRoom.GLOBAL);
+        if (!room.isSubscribed(user.username, outbox)) {
+            List<ChatRoom.Message> recent = room.join(user.username, outbox);
+            out.println("Joined " + room.name + " (" + room.subscribers() + " listening).");
+            for (ChatRoom.Message m : recent) out.println(m.render(room.name));
+        }
+        out.println("Message for " + room.name + " (blank to just listen):");
+    }
+
+    static void writeChatSend(PrintWriter out, User user, String text) {
+        if (text == null || text.isBlank()) return;
+        long id = sendChatMessage(chatRooms.get(ChatRoom.GLOBAL), user.username, text);
+        out.println(id < 0 ? "Chat is busy, try again." : "Sent.");
+    }
+
+    static void writeLeaveGlobalChat(PrintWriter out, User user, Outbox outbox) {
+        boolean left = chatRooms.get(ChatRoom.GLOBAL).leave(user.username, outbox);
+        out.println(left ? "Left " + ChatRoom.GLOBAL + "." : "Not in " + ChatRoom.GLOBAL + ".");
+    }
+
+    /** Called on logout and disconnect. */
+    static void leaveChatRooms(String username, Outbox outbox) {
+        for (ChatRoom room : chatRooms.values()) room.leave(username, outbox);
+    }
+
+    /** A page of the conversation ending just before {@code beforeId} and starting after {@code afterId} at the earliest, oldest first. */
+    static List<MessageStore.Message> readMessages(String username, String target, long afterId, long beforeId) throws IOException {
+        long start = System.nanoTime();
+        try {
+            List<MessageStore.Message> msgs = messageStore.between(username, target, afterId, beforeId, MessageStore.PAGE_SIZE);
+            Metrics.VIEW_MESSAGES.record(start);
+            return msgs;
+        } catch (IOException e) {
+            Metrics.VIEW_MESSAGES.recordError(start);
+            throw e;
+        }
+    }
+
+    static Long parseMessageId(PrintWriter out, String id) {
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            out.println("Invalid message id.");
+            return null;
+        }
+    }
+
+    static class User {
         String username, password, gender, country;
         int age;
-        Set<String> friends = new HashSet<>();
-        Set<String> friendRequests = new HashSet<>();
+        // changed only through SocialGraph; concurrent so readers never lock
+        final Set<String> friends;
+        Set<String> friendRequests = ConcurrentHashMap.newKeySet();
 
         User(String username, String password, int age, String gender, String country) {
+            this(username, password, age, gender, country, 0);
+        }
+
+        /** For loaders that know the friend count up front, so the set is sized once instead of growing. */
+        User(String username, String password, int age, String gender, String country, int expectedFriends) {
             this.username = username;
             this.password = password;
             this.age = age;
             this.gender = gender;
             this.country = country;
+            if (compactGraph != null) {
+                this.friends = compactGraph.neighborSet(username);
+            } else {
+                this.friends = expectedFriends > 0 ? ConcurrentHashMap.newKeySet(expectedFriends) : ConcurrentHashMap.newKeySet();
+            }
         }
     }
 
@@ -115,25 +697,33 @@ public class ChipiChipiServer {
         private Socket socket;
         private BufferedReader in;
         private PrintWriter out;
+        private Outbox.SocketWriter socketWriter;
         private User currentUser = null;
+        private Outbox outbox = null;
 
         ClientHandler(Socket socket) {
             this.socket = socket;
         }
 
         public void run() {
+            Metrics.activeConnections.incrementAndGet();
             try {
+                // menus go out as several small writes; don't let Nagle hold them for the client's delayed ACK
+                socket.setTcpNoDelay(true);
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                socketWriter = new Outbox.SocketWriter(socket.getOutputStream());
+                out = new PrintWriter(socketWriter, true);
 
                 out.println("Welcome to ChipiChipi!");
                 mainMenu();
 
             } catch (IOException e) {
                 System.out.println("Client error: " + e.getMessage());
+                Metrics.clientErrors.increment();
             } finally {
+                Metrics.activeConnections.decrementAndGet();
                 if (currentUser != null) {
-                    loggedInUsers.remove(currentUser.username);
+                    logout();
                 }
                 try {
                     socket.close();
@@ -143,23 +733,44 @@ public class ChipiChipiServer {
 
         private void mainMenu() throws IOException {
             while (true) {
-                out.println("1. Register\n2. Login\n3. Exit\nChoose option (1-3):");
+                out.println(MAIN_MENU);
                 String choice = in.readLine();
                 if (choice == null) break;
                 switch (choice) {
                     case "1" -> register();
                     case "2" -> login();
                     case "3" -> { out.println("Goodbye!"); return; }
+                    case CommandProtocol.HELLO -> { framed(); return; }
                     default -> out.println("Invalid option.");
                 }
             }
         }
 
+        /**
+         * Serves the framed command protocol for the rest of the connection.
+         * Responses are flushed only once no further pipelined request is
+         * already buffered, so a burst of commands goes back in one write.
+         */
+        private void framed() throws IOException {
+            CommandProtocol protocol = new CommandProtocol(() -> new Outbox.Queued(socketWriter));
+            out.println(CommandProtocol.HELLO + "\tOK");
+            try {
+                String line;
+                while (!protocol.isClosed() && (line = in.readLine()) != null) {
+                    out.print(protocol.handle(line) + System.lineSeparator());
+                    if (!in.ready()) out.flush();
+                }
+            } finally {
+                out.flush();
+                protocol.close();
+            }
+        }
+
         private void register() throws IOException {
             out.println("Enter username:");
             String username = in.readLine();
             if (users.containsKey(username)) {
-                out.println("Username already exists.");
+                out.println(Registration.TAKEN.reply);
                 return;
             }
             out.println("Enter password:");
@@ -171,10 +782,7 @@ public class ChipiChipiServer {
             out.println("Enter country:");
             String country = in.readLine();
 
-            User user = new User(username, password, age, gender, country);
-            users.put(username, user);
-            saveUsers();
-            out.println("Registration successful!");
+            out.println(registerUser(new User(username, password, age, gender, country)).reply);
         }
 
         private void login() throws IOException {
@@ -183,21 +791,23 @@ public class ChipiChipiServer {
             out.println("Enter password:");
             String password = in.readLine();
 
-            User user = users.get(username);
-            if (user == null || !user.password.equals(password)) {
+            User user = authenticate(username, password);
+            if (user == null) {
                 out.println("Invalid username or password.");
                 return;
             }
 
             currentUser = user;
-            loggedInUsers.put(username, out);
+            outbox = new Outbox.Queued(socketWriter);
+            loggedInUsers.put(username, outbox);
+            friendSuggestions.prepare(user);
             out.println("Login successful. Welcome, " + username + "!");
             userMenu();
         }
 
         private void userMenu() throws IOException {
             while (true) {
-                out.println("\n1. Send Friend Request\n2. Manage Requests\n3. View Friends\n4. Post\n5. View Posts\n6. Send Message\n7. View Messages\n8. Logout\nChoose option:");
+                out.println(USER_MENU);
                 String opt = in.readLine();
                 if (opt == null) break;
                 switch (opt) {
@@ -208,7 +818,18 @@ public class ChipiChipiServer {
                     case "5" -> viewPosts();
                     case "6" -> sendMessage();
                     case "7" -> viewMessages();
-                    case "8" -> { loggedInUsers.remove(currentUser.username); currentUser = null; return; }
+                    case "8" -> { logout(); return; }
+                    case "9" -> browsePosts();
+                    case "10" -> homeTimeline();
+                    case "11" -> olderMessages();
+                    case "12" -> writeSuggestions(out, currentUser);
+                    case "13" -> searchUsers();
+                    case "14" -> searchPosts();
+                    case "15" -> {
+                        joinGlobalChat(out, currentUser, outbox);
+                        writeChatSend(out, currentUser, in.readLine());
+                    }
+                    case "16" -> writeLeaveGlobalChat(out, currentUser, outbox);
                     default -> out.println("Invalid.");
                 }
             }
@@ -217,38 +838,35 @@ public class ChipiChipiServer {
         private void sendFriendRequest() throws IOException {
             out.println("Username to request:");
             String target = in.readLine();
-            if (!users.containsKey(target)) {
-                out.println("User not found."); return;
-            }
-            if (currentUser.friends.contains(target)) {
-                out.println("Already friends."); return;
-            }
-            User friend = users.get(target);
-            if (friend.friendRequests.contains(currentUser.username)) {
-                out.println("Request already sent."); return;
-            }
-            friend.friendRequests.add(currentUser.username);
-            saveUsers();
-            out.println("Request sent.");
+            out.println(ChipiChipiServer.sendFriendRequest(currentUser, target));
+        }
+
+        private void searchUsers() throws IOException {
+            out.println("Search for:");
+            writeSearchResults(out, in.readLine());
+        }
+
+        private void searchPosts() throws IOException {
+            out.println("Search posts for (words, from:username):");
+            String query = in.readLine();
+            out.println("Show posts before id (blank for latest):");
+            writePostSearchPage(out, query, in.readLine());
         }
 
         private void manageFriendRequests() throws IOException {
-            Iterator<String> iter = currentUser.friendRequests.iterator();
-            while (iter.hasNext()) {
-                String requester = iter.next();
+            for (String requester : new ArrayList<>(currentUser.friendRequests)) {
                 out.println("Request from: " + requester + " (A)ccept / (R)eject?");
                 String res = in.readLine();
-                if (res.equalsIgnoreCase("A")) {
-                    currentUser.friends.add(requester);
-                    users.get(requester).friends.add(currentUser.username);
-                    iter.remove();
-                    out.println("Accepted.");
-                } else if (res.equalsIgnoreCase("R")) {
-                    iter.remove();
-                    out.println("Rejected.");
+                try {
+                    if (res.equalsIgnoreCase("A")) {
+                        out.println(acceptFriendRequest(currentUser, requester) ? "Accepted." : NO_LONGER_PENDING);
+                    } else if (res.equalsIgnoreCase("R")) {
+                        out.println(rejectFriendRequest(currentUser, requester) ? "Rejected." : NO_LONGER_PENDING);
+                    }
+                } catch (IOException e) {
+                    out.println(NOT_SAVED);
                 }
             }
-            saveUsers();
         }
 
         private void showFriends() {
@@ -263,80 +881,59 @@ public class ChipiChipiServer {
         private void post() throws IOException {
             out.println("Enter post:");
             String post = in.readLine();
-            savePost(currentUser.username, post);
-            out.println("Posted.");
+            out.println(savePost(currentUser.username, post) < 0 ? "Could not save post." : "Posted.");
         }
 
         private void viewPosts() {
-            File file = new File("posts.txt");
-            if (!file.exists()) {
-                out.println("No posts found.");
-                return;
-            }
+            writePosts(out);
+        }
 
-            List<String> posts = new ArrayList<>();
-            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String[] parts = line.split(";", 3);
-                    if (parts.length == 3) {
-                        String username = parts[0];
-                        String timestamp = parts[1];
-                        String content = parts[2];
-                        posts.add("[" + username + "] "+"-> " + content + " (" + timestamp + ")");
-                    }
-                }
-            } catch (IOException e) {
-                out.println("Error reading posts.");
-                return;
-            }
+        private void browsePosts() throws IOException {
+            out.println("Show posts before id (blank for latest):");
+            writePostPage(out, in.readLine());
+        }
 
-            if (posts.isEmpty()) {
-                out.println("No posts available.");
-                return;
-            }
+        private void homeTimeline() throws IOException {
+            out.println("Show posts before id (blank for latest):");
+            writeTimelinePage(out, currentUser, in.readLine());
+        }
 
-            out.println("All Posts:");
-            for (String post : posts) {
-                out.println(post);
-            }
+        private void logout() {
+            loggedInUsers.remove(currentUser.username, outbox);
+            leaveChatRooms(currentUser.username, outbox);
+            outbox.close();
+            outbox = null;
+            homeTimeline.invalidate(currentUser.username);
+            friendSuggestions.invalidate(currentUser.username);
+            currentUser = null;
         }
 
 
         private void sendMessage() throws IOException {
             out.println("Send message to:");
             String target = in.readLine();
-            if (!currentUser.friends.contains(target)) {
+            if (!socialGraph.areFriends(currentUser.username, target)) {
                 out.println("Not your friend."); return;
             }
             out.println("Enter message:");
             String msg = in.readLine();
-            String file = currentUser.username + "_" + target + "_msg.txt";
-            try (PrintWriter pw = new PrintWriter(new FileWriter(file, true))) {
-                pw.println(currentUser.username + ": " + msg);
-            }
+            sendDirectMessage(currentUser.username, target, msg);
             out.println("Sent.");
         }
 
         private void viewMessages() throws IOException {
             out.println("With whom:");
             String target = in.readLine();
-            String f1 = currentUser.username + "_" + target + "_msg.txt";
-            String f2 = target + "_" + currentUser.username + "_msg.txt";
-            List<String> msgs = new ArrayList<>();
-            for (String file : List.of(f1, f2)) {
-                File f = new File(file);
-                if (f.exists()) {
-                    try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-                        String line;
-                        while ((line = br.readLine()) != null) msgs.add(line);
-                    }
-                }
-            }
-            if (msgs.isEmpty()) {
-                out.println("No messages."); return;
-            }
-            msgs.forEach(out::println);
+            writeMessages(out, currentUser.username, target, Long.MAX_VALUE);
+        }
+
+        private void olderMessages() throws IOException {
+            out.println("With whom:");
+            String target = in.readLine();
+            out.println("Show messages before id:");
+            Long before = parseMessageId(out, in.readLine());
+            if (before == null) return;
+            writeMessages(out, currentUser.username, target, before);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+// ClientModel.java
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.*;
+
+/**
+ * What ChipiChipiGUI_Full shows about the session: the logged-in user, the
+ * open chat, and the friend list with its pending requests.
+ *
+ * Views register a PropertyChangeListener for the property they show and are
+ * told only when its value really changes; setting a value equal to the
+ * current one fires nothing. So a logged-in client that is left alone does
+ * no UI work at all. Values are immutable. Used on the Swing event thread
+ * only.
+ */
+class ClientModel {
+    static final String USER = "user";
+    static final String ACTIVE_CHAT = "activeChat";
+    static final String FRIENDS = "friends";
+
+    /** The logged-in user's profile, as PROFILE returns it. */
+    record User(String username, int age, String gender, String country) {}
+
+    /** Friends and pending friend requests, in the server's order. */
+    record Friends(List<String> friends, List<String> requests) {
+        static final Friends NONE = new Friends(List.of(), List.of());
+
+        Friends {
+            friends = List.copyOf(friends);
+            requests = List.copyOf(requests);
+        }
+    }
+
+    private final PropertyChangeSupport changes = new PropertyChangeSupport(this);
+    private User user = null;
+    private String activeChat = "#Global"; // default
+    private Friends friends = Friends.NONE;
+    private long changesFired = 0;
+
+    void addListener(String property, PropertyChangeListener listener) {
+        changes.addPropertyChangeListener(property, listener);
+    }
+
+    /** Null when logged out. */
+    User user() {
+        return user;
+    }
+
+    boolean loggedIn() {
+        return user != null;
+    }
+
+    /** Null when logged out. */
+    String username() {
+        return user == null ? null : user.username();
+    }
+
+    String activeChat() {
+        return activeChat;
+    }
+
+    Friends friends() {
+        return friends;
+    }
+
+    void setUser(User user) {
+        User old = this.user;
+        this.user = user;
+        fire(USER, old, user);
+    }
+
+    void setActiveChat(String chat) {
+        String old = activeChat;
+        activeChat = chat;
+        fire(ACTIVE_CHAT, old, chat);
+    }
+
+    void setFriends(Friends friends) {
+        Friends old = this.friends;
+        this.friends = friends;
+        fire(FRIENDS, old, friends);
+    }
+
+    /** {@code name}'s request was accepted: they move from the requests to the friends. */
+    void acceptRequest(String name) {
+        List<String> now = new ArrayList<>(friends.friends());
+        if (!now.contains(name)) now.add(name);
+        List<String> pending = new ArrayList<>(friends.requests());
+        pending.remove(name);
+        setFriends(new Friends(now, pending));
+    }
+
+    /** {@code name}'s request was rejected. */
+    void removeRequest(String name) {
+        List<String> pending = new ArrayList<>(friends.requests());
+        pending.remove(name);
+        setFriends(new Friends(friends.friends(), pending));
+    }
+
+    /** How many changes were announced, i.e. how often the views had something to update. */
+    long changesFired() {
+        return changesFired;
+    }
+
+    private void fire(String property, Object old, Object now) {
+        if (Objects.equals(old, now)) return;
+        changesFired++;
+        changes.firePropertyChange(property, old, now);
+    }
+}
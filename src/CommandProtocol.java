@@ -0,0 +1,386 @@
+// CommandProtocol.java
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Framed command mode, entered by sending HELLO instead of a main menu option.
+ *
+ * Every request and response is one line of tab-separated fields, and every
+ * request carries a client-chosen id that its response echoes, so a client
+ * can pipeline any number of commands without waiting for prompts:
+ *
+ *   request   id  VERB  arg...
+ *   response  id  OK    field...        or   id  ERR  message
+ *   push      0   DM    sender  text  id
+ *   push      0   CHAT  room  id  sender  text
+ *
+ * Backslash, tab, CR and LF inside a field are escaped as \\ \t \r \n.
+ * Commands on one connection run in order, so responses come back in the
+ * order requests were sent. Verbs:
+ *
+ *   REGISTER user pass age gender country    LOGIN user pass    LOGOUT    QUIT
+ *   FRIEND user    REQUESTS    ACCEPT user    REJECT user    FRIENDS
+ *   PROFILE        -> username age gender country
+ *   SUGGEST        -> user mutualFriends, repeated (best first)
+ *   SEARCH query [limit]                     -> usernames (prefix matches, then close spellings)
+ *   POST text      -> post id
+ *   POSTS [beforeId] / TIMELINE [beforeId]   -> id author timestamp content, repeated
+ *   FINDPOSTS query [beforeId]               -> same, for posts with every word of query ("from:user" filters)
+ *   SEND user text -> message id
+ *   MESSAGES user [beforeId] [afterId]       -> id sender text, repeated (oldest first); the newest
+ *                                               MessageStore.PAGE_SIZE between the two ids
+ *   JOIN room      -> recent id sender text, repeated (oldest first); CHAT pushes follow
+ *   SAY room text  -> message id        LEAVE room
+ */
+class CommandProtocol {
+    static final String HELLO = "CHIPI/1";
+    static final String PUSH_ID = "0";
+
+    private final Supplier<Outbox> outboxes;
+    private ChipiChipiServer.User currentUser = null;
+    private Outbox outbox = null;
+    private boolean closed = false;
+
+    /** {@code outboxes} supplies the connection's push channel at each login. */
+    CommandProtocol(Supplier<Outbox> outboxes) {
+        this.outboxes = outboxes;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** Runs one request line and returns its response line (without a line terminator). */
+    String handle(String line) {
+        return handle(line, null, null).join();
+    }
+
+    /**
+     * Same as handle(line), for callers that must not block. With {@code loop}
+     * set, POST and SEND return before their group commit and the response is
+     * completed on {@code loop} once it is written, and verbs that read or
+     * fsync files run on {@code disk}; every other verb, or any verb without a
+     * loop, comes back already completed.
+     */
+    CompletableFuture<String> handle(String line, Executor loop, Executor disk) {
+        String[] f = split(line);
+        String id = f[0];
+        if (f.length < 2) return CompletableFuture.completedFuture(response(id, "ERR", "Missing command."));
+        String verb = f[1].toUpperCase();
+        String[] args = Arrays.copyOfRange(f, 2, f.length);
+        CompletableFuture<List<String>> result;
+        try {
+            result = loop != null ? start(verb, args, loop, disk) : null;
+            if (result == null) result = CompletableFuture.completedFuture(run(verb, args));
+        } catch (CommandException | IOException e) {
+            return CompletableFuture.completedFuture(failure(id, f[1], e));
+        }
+        return result.handle((fields, e) -> e == null ? response(id, "OK", fields) : failure(id, f[1], e));
+    }
+
+    private static String failure(String id, String command, Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        if (e instanceof CommandException) return response(id, "ERR", e.getMessage());
+        if (e instanceof IOException) {
+            System.out.println("Error in command " + command + ": " + e.getMessage());
+            return response(id, "ERR", "Server error.");
+        }
+        if (e instanceof RuntimeException r) throw r;
+        throw new CompletionException(e);
+    }
+
+    /** Logs the user out if the connection goes away while logged in. */
+    void close() {
+        if (currentUser != null) logout();
+        closed = true;
+    }
+
+    private List<String> run(String verb, String[] args) throws IOException {
+        switch (verb) {
+            case "REGISTER" -> { return register(args); }
+            case "LOGIN" -> { return login(args); }
+            case "QUIT" -> { close(); return List.of(); }
+        }
+
+        if (currentUser == null) throw new CommandException("Not logged in.");
+        switch (verb) {
+            case "LOGOUT" -> { logout(); return List.of(); }
+            case "FRIEND" -> {
+                String reply = ChipiChipiServer.sendFriendRequest(currentUser, arg(args, 0));
+                if (!reply.equals("Request sent.")) throw new CommandException(reply);
+                return List.of();
+            }
+            case "REQUESTS" -> { return new ArrayList<>(currentUser.friendRequests); }
+            case "ACCEPT", "REJECT" -> {
+                String requester = arg(args, 0);
+                boolean done = verb.equals("ACCEPT")
+                        ? ChipiChipiServer.acceptFriendRequest(currentUser, requester)
+                        : ChipiChipiServer.rejectFriendRequest(currentUser, requester);
+                if (!done) throw new CommandException("No request from " + requester + ".");
+                return List.of();
+            }
+            case "FRIENDS" -> { return new ArrayList<>(currentUser.friends); }
+            case "PROFILE" -> {
+                return List.of(currentUser.username, Integer.toString(currentUser.age), currentUser.gender, currentUser.country);
+            }
+            case "SEARCH" -> {
+                int limit = UserSearch.DEFAULT_LIMIT;
+                if (args.length > 1 && !args[1].isEmpty()) {
+                    try {
+                        limit = Math.min(Integer.parseInt(args[1]), 100);
+                    } catch (NumberFormatException e) {
+                        throw new CommandException("Invalid limit " + args[1] + ".");
+                    }
+                    if (limit < 1) throw new CommandException("Invalid limit " + args[1] + ".");
+                }
+                return ChipiChipiServer.searchUsers(arg(args, 0), limit);
+            }
+            case "SUGGEST" -> {
+                List<String> fields = new ArrayList<>();
+                for (FriendSuggestions.Suggestion s : ChipiChipiServer.suggestions(currentUser)) {
+                    fields.add(s.username());
+                    fields.add(Integer.toString(s.mutualFriends()));
+                }
+                return fields;
+            }
+            case "POST" -> {
+                int postId = ChipiChipiServer.savePost(currentUser.username, arg(args, 0));
+                if (postId < 0) throw new CommandException("Could not save post.");
+                return List.of(Integer.toString(postId));
+            }
+            case "POSTS" -> {
+                return posts(ChipiChipiServer.postPage(postCursor(args)));
+            }
+            case "TIMELINE" -> {
+                return posts(ChipiChipiServer.timelinePage(currentUser, postCursor(args)));
+            }
+            case "FINDPOSTS" -> {
+                PostSearch.Query query = PostSearch.Query.parse(arg(args, 0));
+                if (query.isEmpty()) throw new CommandException("Empty query.");
+                return posts(ChipiChipiServer.searchPosts(query, postCursor(Arrays.copyOfRange(args, 1, args.length))));
+            }
+            case "SEND" -> {
+                String target = arg(args, 0);
+                if (!ChipiChipiServer.socialGraph.areFriends(currentUser.username, target)) {
+                    throw new CommandException("Not your friend.");
+                }
+                long messageId = ChipiChipiServer.sendDirectMessage(currentUser.username, target, arg(args, 1));
+                return List.of(Long.toString(messageId));
+            }
+            case "MESSAGES" -> {
+                long before = args.length > 1 && !args[1].isEmpty() ? parseId(args[1]) : Long.MAX_VALUE;
+                long after = args.length > 2 && !args[2].isEmpty() ? parseId(args[2]) : -1;
+                List<String> fields = new ArrayList<>();
+                for (MessageStore.Message m : ChipiChipiServer.readMessages(currentUser.username, arg(args, 0), after, before)) {
+                    fields.add(Long.toString(m.id()));
+                    fields.add(m.sender());
+                    fields.add(m.text());
+                }
+                return fields;
+            }
+            case "JOIN" -> {
+                List<String> fields = new ArrayList<>();
+                for (ChatRoom.Message m : room(args).join(currentUser.username, outbox)) {
+                    fields.add(Long.toString(m.id()));
+                    fields.add(m.sender());
+                    fields.add(m.text());
+                }
+                return fields;
+            }
+            case "SAY" -> {
+                long messageId = ChipiChipiServer.sendChatMessage(room(args), currentUser.username, arg(args, 1));
+                if (messageId < 0) throw new CommandException("Chat is busy, try again.");
+                return List.of(Long.toString(messageId));
+            }
+            case "LEAVE" -> {
+                ChatRoom room = room(args);
+                if (!room.leave(currentUser.username, outbox)) throw new CommandException("Not in " + room.name + ".");
+                return List.of();
+            }
+            default -> throw new CommandException("Unknown command " + verb + ".");
+        }
+    }
+
+    /**
+     * POST and SEND without waiting for their group commit, and the verbs that
+     * touch users.log, the post or message stores or the search indexes on
+     * {@code disk}; null for verbs that always run in place.
+     */
+    private CompletableFuture<List<String>> start(String verb, String[] args, Executor loop, Executor disk) {
+        if (verb.equals("REGISTER")) return offload(verb, args, disk);
+        if (currentUser == null) return null;
+        switch (verb) {
+            case "POST" -> {
+                return ChipiChipiServer.savePostAsync(currentUser.username, arg(args, 0), loop).thenApply(postId -> {
+                    if (postId < 0) throw new CommandException("Could not save post.");
+                    return List.of(Integer.toString(postId));
+                });
+            }
+            case "SEND" -> {
+                String target = arg(args, 0);
+                if (!ChipiChipiServer.socialGraph.areFriends(currentUser.username, target)) {
+                    throw new CommandException("Not your friend.");
+                }
+                return ChipiChipiServer.sendDirectMessageAsync(currentUser.username, target, arg(args, 1), loop)
+                        .thenApply(messageId -> List.of(Long.toString(messageId)));
+            }
+            case "FRIEND", "ACCEPT", "REJECT", "SEARCH", "POSTS", "TIMELINE", "FINDPOSTS", "MESSAGES" -> {
+                return offload(verb, args, disk);
+            }
+            default -> { return null; }
+        }
+    }
+
+    private CompletableFuture<List<String>> offload(String verb, String[] args, Executor disk) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(verb, args);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, disk);
+    }
+
+    private List<String> register(String[] args) {
+        String username = arg(args, 0);
+        int age;
+        try {
+            age = Integer.parseInt(arg(args, 2));
+        } catch (NumberFormatException e) {
+            throw new CommandException("Invalid age.");
+        }
+        ChipiChipiServer.User user = new ChipiChipiServer.User(username, arg(args, 1), age, arg(args, 3), arg(args, 4));
+        ChipiChipiServer.Registration result = ChipiChipiServer.registerUser(user);
+        if (result != ChipiChipiServer.Registration.REGISTERED) throw new CommandException(result.reply);
+        return List.of();
+    }
+
+    private List<String> login(String[] args) {
+        ChipiChipiServer.User user = ChipiChipiServer.authenticate(arg(args, 0), arg(args, 1));
+        if (user == null) {
+            throw new CommandException("Invalid username or password.");
+        }
+        if (currentUser != null) logout();
+        currentUser = user;
+        outbox = outboxes.get();
+        outbox.framed = true;
+        ChipiChipiServer.loggedInUsers.put(user.username, outbox);
+        ChipiChipiServer.friendSuggestions.prepare(user);
+        return List.of();
+    }
+
+    private void logout() {
+        ChipiChipiServer.loggedInUsers.remove(currentUser.username, outbox);
+        ChipiChipiServer.leaveChatRooms(currentUser.username, outbox);
+        outbox.close();
+        outbox = null;
+        ChipiChipiServer.homeTimeline.invalidate(currentUser.username);
+        ChipiChipiServer.friendSuggestions.invalidate(currentUser.username);
+        currentUser = null;
+    }
+
+    private static List<String> posts(List<PostStore.Post> page) {
+        List<String> fields = new ArrayList<>(page.size() * 4);
+        for (PostStore.Post p : page) {
+            fields.add(Integer.toString(p.id()));
+            fields.add(p.author());
+            fields.add(p.timestamp());
+            fields.add(p.content());
+        }
+        return fields;
+    }
+
+    private static ChatRoom room(String[] args) {
+        ChatRoom room = ChipiChipiServer.chatRooms.get(arg(args, 0));
+        if (room == null) throw new CommandException("No such room " + args[0] + ".");
+        return room;
+    }
+
+    private static long postCursor(String[] args) {
+        if (args.length == 0 || args[0].isEmpty()) return Long.MAX_VALUE;
+        return parseId(args[0]);
+    }
+
+    private static long parseId(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new CommandException("Invalid id " + id + ".");
+        }
+    }
+
+    private static String arg(String[] args, int i) {
+        if (i >= args.length) throw new CommandException("Missing argument " + (i + 1) + ".");
+        return args[i];
+    }
+
+    /** A pushed event line, e.g. event("DM", sender, text). */
+    static String event(String type, String... fields) {
+        return response(PUSH_ID, type, Arrays.asList(fields));
+    }
+
+    private static String response(String id, String status, String message) {
+        return response(id, status, List.of(message));
+    }
+
+    private static String response(String id, String status, List<String> fields) {
+        StringBuilder sb = new StringBuilder();
+        escape(sb, id);
+        sb.append('\t').append(status);
+        for (String field : fields) {
+            sb.append('\t');
+            escape(sb, field);
+        }
+        return sb.toString();
+    }
+
+    static void escape(StringBuilder sb, String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\t' -> sb.append("\\t");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+    }
+
+    /** Splits a line on tabs and unescapes each field. */
+    static String[] split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char n = line.charAt(++i);
+                field.append(switch (n) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    default -> n;
+                });
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /** A request the server understood but refused; becomes an ERR response. */
+    private static final class CommandException extends RuntimeException {
+        CommandException(String message) {
+            super(message);
+        }
+    }
+}
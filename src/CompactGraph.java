@@ -0,0 +1,209 @@
+// CompactGraph.java
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Friend lists as sorted int arrays instead of Set<String> per user.
+ *
+ * Every username is interned to a dense int id the first time it is seen.
+ * A user's friends are one sorted int[] (4 bytes per friend plus one array
+ * header), so a membership check is a binary search and an undirected edge
+ * costs 8 bytes instead of two hash set entries of about 100 bytes each.
+ *
+ * Arrays are never modified in place: a change builds the new array and
+ * swaps it in with a compare-and-set, so readers need no lock and always see
+ * a complete list. Ids and lists live in fixed-size pages that are never
+ * copied as the graph grows.
+ *
+ * Enabled with --compact-graph; User.friends is then a Set<String> view over
+ * this graph (see neighborSet), so the rest of the server is unchanged.
+ */
+class CompactGraph {
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_PAGES = 1 << 12; // 268M ids
+    private static final int[] EMPTY = new int[0];
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicReferenceArray<String[]> namePages = new AtomicReferenceArray<>(MAX_PAGES);
+    private final AtomicReferenceArray<AtomicReferenceArray<int[]>> adjacencyPages = new AtomicReferenceArray<>(MAX_PAGES);
+
+    /** The id of {@code username}, assigning the next one if it is new. */
+    int idOf(String username) {
+        Integer id = ids.get(username);
+        if (id != null) return id;
+        return ids.computeIfAbsent(username, name -> {
+            int assigned = nextId.getAndIncrement();
+            String[] page = namePage(assigned);
+            page[assigned & (PAGE_SIZE - 1)] = name;
+            return assigned;
+        });
+    }
+
+    /** The id of {@code username}, or -1 if it was never interned. */
+    int find(String username) {
+        Integer id = ids.get(username);
+        return id == null ? -1 : id;
+    }
+
+    String nameOf(int id) {
+        return namePages.get(id >>> PAGE_BITS)[id & (PAGE_SIZE - 1)];
+    }
+
+    int size() {
+        return nextId.get();
+    }
+
+    /** The sorted friend ids of {@code id}; the array must not be modified. */
+    int[] neighbors(int id) {
+        int[] list = adjacencyPage(id).get(id & (PAGE_SIZE - 1));
+        return list == null ? EMPTY : list;
+    }
+
+    boolean contains(int a, int b) {
+        return Arrays.binarySearch(neighbors(a), b) >= 0;
+    }
+
+    /** Adds b to a's list (one direction only); false if already there. */
+    boolean add(int a, int b) {
+        AtomicReferenceArray<int[]> page = adjacencyPage(a);
+        int slot = a & (PAGE_SIZE - 1);
+        while (true) {
+            int[] current = page.get(slot);
+            int[] list = current == null ? EMPTY : current;
+            int pos = Arrays.binarySearch(list, b);
+            if (pos >= 0) return false;
+            pos = -pos - 1;
+            int[] next = new int[list.length + 1];
+            System.arraycopy(list, 0, next, 0, pos);
+            next[pos] = b;
+            System.arraycopy(list, pos, next, pos + 1, list.length - pos);
+            if (page.compareAndSet(slot, current, next)) return true;
+        }
+    }
+
+    /** Merges many ids into a's list with a single copy; returns whether it changed. */
+    boolean addAll(int a, int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        AtomicReferenceArray<int[]> page = adjacencyPage(a);
+        int slot = a & (PAGE_SIZE - 1);
+        while (true) {
+            int[] current = page.get(slot);
+            int[] list = current == null ? EMPTY : current;
+            int[] merged = new int[list.length + sorted.length];
+            int i = 0, j = 0, n = 0;
+            while (i < list.length || j < sorted.length) {
+                int next;
+                if (j == sorted.length || (i < list.length && list[i] <= sorted[j])) {
+                    next = list[i++];
+                } else {
+                    next = sorted[j++];
+                }
+                if (n == 0 || merged[n - 1] != next) merged[n++] = next;
+            }
+            if (n == list.length) return false;
+            if (page.compareAndSet(slot, current, Arrays.copyOf(merged, n))) return true;
+        }
+    }
+
+    boolean remove(int a, int b) {
+        AtomicReferenceArray<int[]> page = adjacencyPage(a);
+        int slot = a & (PAGE_SIZE - 1);
+        while (true) {
+            int[] current = page.get(slot);
+            if (current == null) return false;
+            int pos = Arrays.binarySearch(current, b);
+            if (pos < 0) return false;
+            int[] next = new int[current.length - 1];
+            System.arraycopy(current, 0, next, 0, pos);
+            System.arraycopy(current, pos + 1, next, pos, current.length - pos - 1);
+            if (page.compareAndSet(slot, current, next)) return true;
+        }
+    }
+
+    /** A live Set<String> view of {@code username}'s friends, for User.friends. */
+    Set<String> neighborSet(String username) {
+        return new NeighborSet(idOf(username));
+    }
+
+    private String[] namePage(int id) {
+        int p = id >>> PAGE_BITS;
+        String[] page = namePages.get(p);
+        if (page == null) {
+            namePages.compareAndSet(p, null, new String[PAGE_SIZE]);
+            page = namePages.get(p);
+        }
+        return page;
+    }
+
+    private AtomicReferenceArray<int[]> adjacencyPage(int id) {
+        int p = id >>> PAGE_BITS;
+        AtomicReferenceArray<int[]> page = adjacencyPages.get(p);
+        if (page == null) {
+            adjacencyPages.compareAndSet(p, null, new AtomicReferenceArray<>(PAGE_SIZE));
+            page = adjacencyPages.get(p);
+        }
+        return page;
+    }
+
+    private final class NeighborSet extends AbstractSet<String> {
+        private final int owner;
+
+        NeighborSet(int owner) {
+            this.owner = owner;
+        }
+
+        @Override public boolean contains(Object o) {
+            if (!(o instanceof String name)) return false;
+            int id = find(name);
+            return id >= 0 && CompactGraph.this.contains(owner, id);
+        }
+
+        @Override public boolean add(String name) {
+            return CompactGraph.this.add(owner, idOf(name));
+        }
+
+        @Override public boolean addAll(Collection<? extends String> names) {
+            int[] added = new int[names.size()];
+            int n = 0;
+            for (String name : names) added[n++] = idOf(name);
+            return CompactGraph.this.addAll(owner, Arrays.copyOf(added, n));
+        }
+
+        @Override public boolean remove(Object o) {
+            if (!(o instanceof String name)) return false;
+            int id = find(name);
+            return id >= 0 && CompactGraph.this.remove(owner, id);
+        }
+
+        @Override public int size() {
+            return neighbors(owner).length;
+        }
+
+        /** Iterates the list as it was when the iterator was created. */
+        @Override public Iterator<String> iterator() {
+            int[] list = neighbors(owner);
+            return new Iterator<>() {
+                private int i = 0;
+
+                @Override public boolean hasNext() {
+                    return i < list.length;
+                }
+
+                @Override public String next() {
+                    if (i >= list.length) throw new NoSuchElementException();
+                    return nameOf(list[i++]);
+                }
+
+                @Override public void remove() {
+                    CompactGraph.this.remove(owner, list[i - 1]);
+                }
+            };
+        }
+    }
+}
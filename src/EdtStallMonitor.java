@@ -0,0 +1,58 @@
+// EdtStallMonitor.java
+
+import javax.swing.SwingUtilities;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long the Swing event thread takes to get to new work.
+ *
+ * A daemon thread posts a probe every PROBE_INTERVAL_MS and records how long
+ * it waited in the event queue. A probe that waited longer than STALL_MS
+ * means the window could not repaint or react to input for that long. At
+ * most one probe is in the queue at a time, so a long stall is recorded once
+ * with its full length rather than as a pile of overlapping probes.
+ *
+ * The client starts one with --edt-monitor and prints stats() on exit.
+ */
+class EdtStallMonitor {
+    static final int PROBE_INTERVAL_MS = 10;
+    static final int STALL_MS = 100;
+
+    final LatencyHistogram delays = new LatencyHistogram();
+    final LongAdder stalls = new LongAdder();
+    private volatile boolean running = false;
+    private volatile boolean probing = false;
+
+    void start() {
+        running = true;
+        Thread.ofPlatform().daemon().name("edt-monitor").start(this::run);
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    private void run() {
+        while (running) {
+            if (!probing) {
+                probing = true;
+                long posted = System.nanoTime();
+                SwingUtilities.invokeLater(() -> {
+                    long waited = System.nanoTime() - posted;
+                    delays.recordNanos(waited);
+                    if (waited >= STALL_MS * 1_000_000L) stalls.increment();
+                    probing = false;
+                });
+            }
+            try {
+                Thread.sleep(PROBE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    String stats() {
+        return "edt probe delay micros " + delays.summary() + " stalls>=" + STALL_MS + "ms=" + stalls.sum();
+    }
+}
@@ -0,0 +1,279 @@
+// FriendSuggestions.java
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * "People you may know": friends of friends, ranked by how many friends they
+ * share with the reader, then same country, then age within AGE_BAND years.
+ *
+ * Each logged-in reader who asks gets a candidate table, built once from
+ * the friend lists of their friends. After that it is kept up to date as
+ * friendships are accepted (SocialGraph calls beginChange / endChange around
+ * every accept), at a cost of one lookup per friend of the two new friends,
+ * so the graph is never walked again for that reader.
+ *
+ * Each table also keeps its best CACHED candidates in order. Mutual counts
+ * only ever grow (there is no unfriending), so a candidate can only enter
+ * that list through its own increment, and the list stays exact without
+ * rescanning. The table is scanned again only when accepts have taken the
+ * list below LIMIT.
+ *
+ * Tables are built in the background at login for users with many friends,
+ * and dropped on logout. A table built while an accept was in flight
+ * may have missed or double-counted it, so it is served once and rebuilt on
+ * the next request.
+ */
+class FriendSuggestions {
+    static final int LIMIT = 10;
+    static final int AGE_BAND = 5;
+    // below this a table builds in well under a millisecond, so it is not worth a background build
+    static final int PREPARE_MIN_FRIENDS = 100;
+    private static final int CACHED = 2 * LIMIT;
+
+    record Suggestion(String username, int mutualFriends, boolean sameCountry, boolean sameAgeBand) {}
+
+    private final Map<String, ChipiChipiServer.User> users;
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    // accepts begun / finished; a build that sees them equal and unchanged overlapped none
+    private final AtomicLong changesStarted = new AtomicLong();
+    private final AtomicLong changesFinished = new AtomicLong();
+
+    final LongAdder builds = new LongAdder();
+    final LongAdder buildNanos = new LongAdder();
+    final LongAdder rescans = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+
+    FriendSuggestions(Map<String, ChipiChipiServer.User> users) {
+        this.users = users;
+    }
+
+    /** Up to LIMIT suggestions for {@code reader}, best first, without friends or users they already asked. */
+    List<Suggestion> suggest(ChipiChipiServer.User reader) {
+        Table table = table(reader);
+        List<Suggestion> result = new ArrayList<>(LIMIT);
+        for (Suggestion s : table.top()) {
+            ChipiChipiServer.User candidate = users.get(s.username());
+            if (candidate == null || reader.friends.contains(s.username())
+                    || candidate.friendRequests.contains(reader.username)) continue;
+            result.add(s);
+            if (result.size() == LIMIT) break;
+        }
+        return result;
+    }
+
+    /**
+     * Builds the reader's table in the background if they have at least
+     * PREPARE_MIN_FRIENDS friends, so their first request does not pay for it.
+     * Called at login.
+     */
+    void prepare(ChipiChipiServer.User reader) {
+        if (reader.friends.size() < PREPARE_MIN_FRIENDS || tables.containsKey(reader.username)) return;
+        Thread.ofVirtual().name("suggestions-" + reader.username).start(() -> {
+            table(reader);
+            // logged out while we were building
+            if (!ChipiChipiServer.loggedInUsers.containsKey(reader.username)) invalidate(reader.username);
+        });
+    }
+
+    /** Called by SocialGraph before it adds the two sides of a friendship. */
+    long beginChange() {
+        return changesStarted.incrementAndGet();
+    }
+
+    /** Called by SocialGraph once {@code a} and {@code b} are friends; {@code ticket} is from beginChange. */
+    void endChange(String a, String b, long ticket) {
+        try {
+            ChipiChipiServer.User userA = users.get(a);
+            ChipiChipiServer.User userB = users.get(b);
+            if (userA == null || userB == null) return;
+            befriended(userA, userB, ticket);
+            befriended(userB, userA, ticket);
+        } finally {
+            changesFinished.incrementAndGet();
+        }
+    }
+
+    /** Forgets a reader's table, e.g. on logout. */
+    void invalidate(String username) {
+        tables.remove(username);
+    }
+
+    String stats() {
+        long built = builds.sum();
+        return "suggestions tables=" + tables.size()
+                + " builds=" + built
+                + " avgBuildMicros=" + (built == 0 ? 0 : buildNanos.sum() / built / 1000)
+                + " rescans=" + rescans.sum()
+                + " cacheHits=" + cacheHits.sum();
+    }
+
+    /** Applies "{@code user} is now friends with {@code friend}" to every table it changes. */
+    private void befriended(ChipiChipiServer.User user, ChipiChipiServer.User friend, long ticket) {
+        // the user's own table: the friend stops being a candidate, the friend's friends gain one mutual
+        Table own = tables.get(user.username);
+        if (own != null && own.covers(ticket)) {
+            own.lock.lock();
+            try {
+                own.remove(friend.username);
+                for (String x : friend.friends) {
+                    if (!x.equals(user.username) && !user.friends.contains(x)) own.increment(x);
+                }
+            } finally {
+                own.lock.unlock();
+            }
+        }
+        // tables of the user's other friends: the new friend is now reachable through one more mutual
+        for (String f : user.friends) {
+            if (f.equals(friend.username)) continue;
+            Table table = tables.get(f);
+            if (table == null || !table.covers(ticket)) continue;
+            ChipiChipiServer.User owner = users.get(f);
+            if (owner == null || owner.friends.contains(friend.username)) continue;
+            table.lock.lock();
+            try {
+                table.increment(friend.username);
+            } finally {
+                table.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The reader's table, built now unless a good one exists. The build runs
+     * outside the map, so it holds no bin lock that other readers' lookups
+     * could wait on; two requests racing for the same reader may both build,
+     * and the first to publish wins.
+     */
+    private Table table(ChipiChipiServer.User reader) {
+        Table current = tables.get(reader.username);
+        if (current != null && !current.stale) {
+            cacheHits.increment();
+            return current;
+        }
+        Table built = build(reader);
+        boolean published = current == null
+                ? tables.putIfAbsent(reader.username, built) == null
+                : tables.replace(reader.username, current, built);
+        if (!published) {
+            Table winner = tables.get(reader.username);
+            if (winner != null && !winner.stale) return winner;
+            // the other build was stale too, or the table was dropped: serve ours once, unpublished
+            built.stale = true;
+            return built;
+        }
+        // checked after publishing: accepts that start from here on find the table and update it
+        built.stale = !built.quiet || changesStarted.get() != built.builtAt;
+        return built;
+    }
+
+    private Table build(ChipiChipiServer.User reader) {
+        long start = System.nanoTime();
+        long finished = changesFinished.get();
+        long started = changesStarted.get();
+
+        Table table = new Table(reader, started, started == finished);
+        Map<String, int[]> counts = table.counts;
+        for (String f : reader.friends) {
+            ChipiChipiServer.User friend = users.get(f);
+            if (friend == null) continue;
+            for (String x : friend.friends) {
+                int[] count = counts.get(x);
+                if (count == null) counts.put(x, count = new int[1]);
+                count[0]++;
+            }
+        }
+        // cheaper to drop the reader and their friends once than to test every friend-of-friend
+        counts.remove(reader.username);
+        for (String f : reader.friends) counts.remove(f);
+        table.lock.lock();
+        try {
+            table.rescan();
+        } finally {
+            table.lock.unlock();
+        }
+        builds.increment();
+        buildNanos.add(System.nanoTime() - start);
+        return table;
+    }
+
+    /** One reader's candidates: mutual-friend counts plus the best CACHED of them, in order. */
+    private final class Table {
+        final ReentrantLock lock = new ReentrantLock();
+        final ChipiChipiServer.User reader;
+        final long builtAt;
+        final boolean quiet; // no accept was in flight when the build started
+        final Map<String, int[]> counts = new HashMap<>();
+        volatile boolean stale;
+        private final List<Suggestion> top = new ArrayList<>(CACHED + 1);
+
+        Table(ChipiChipiServer.User reader, long builtAt, boolean quiet) {
+            this.reader = reader;
+            this.builtAt = builtAt;
+            this.quiet = quiet;
+        }
+
+        /** Whether the change with this ticket happened after the build read the graph. */
+        boolean covers(long ticket) {
+            return ticket > builtAt;
+        }
+
+        List<Suggestion> top() {
+            lock.lock();
+            try {
+                if (top.size() < LIMIT && counts.size() > top.size()) rescan();
+                return new ArrayList<>(top);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void increment(String candidate) {
+            int[] count = counts.get(candidate);
+            if (count == null) counts.put(candidate, count = new int[1]);
+            count[0]++;
+            Suggestion s = suggestion(candidate, count[0]);
+            boolean wasTop = top.removeIf(t -> t.username().equals(candidate));
+            // top holds the best top.size() candidates, so anyone else must beat its last entry to get in
+            boolean complete = top.size() == counts.size() - 1;
+            if (wasTop || complete || (!top.isEmpty() && RANKING.compare(s, top.get(top.size() - 1)) < 0)) {
+                int pos = Collections.binarySearch(top, s, RANKING);
+                top.add(pos < 0 ? -pos - 1 : pos, s);
+                if (top.size() > CACHED) top.remove(CACHED);
+            }
+        }
+
+        void remove(String candidate) {
+            if (counts.remove(candidate) != null) top.removeIf(t -> t.username().equals(candidate));
+        }
+
+        /** Rebuilds the ordered list from the counts; O(candidates). */
+        void rescan() {
+            PriorityQueue<Suggestion> best = new PriorityQueue<>(CACHED + 1, RANKING.reversed());
+            for (Map.Entry<String, int[]> e : counts.entrySet()) {
+                best.add(suggestion(e.getKey(), e.getValue()[0]));
+                if (best.size() > CACHED) best.poll();
+            }
+            top.clear();
+            top.addAll(best);
+            top.sort(RANKING);
+            rescans.increment();
+        }
+
+        private Suggestion suggestion(String candidate, int mutual) {
+            ChipiChipiServer.User user = users.get(candidate);
+            boolean sameCountry = user != null && user.country.equalsIgnoreCase(reader.country);
+            boolean sameAge = user != null && Math.abs(user.age - reader.age) <= AGE_BAND;
+            return new Suggestion(candidate, mutual, sameCountry, sameAge);
+        }
+    }
+
+    private static final Comparator<Suggestion> RANKING = Comparator
+            .comparingInt(Suggestion::mutualFriends).reversed()
+            .thenComparing(Suggestion::sameCountry, Comparator.reverseOrder())
+            .thenComparing(Suggestion::sameAgeBand, Comparator.reverseOrder())
+            .thenComparing(Suggestion::username);
+}
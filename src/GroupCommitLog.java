@@ -0,0 +1,118 @@
+// GroupCommitLog.java
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Funnels appends to one log file through a single long-lived writer thread.
+ *
+ * Callers queue a record and wait. The writer takes everything queued, up to
+ * maxBatchBytes (optionally lingering a little for more), hands the batch to
+ * the sink as one write, optionally forces it to disk, and only then releases
+ * the callers. A burst of N appends therefore costs one write and at most one
+ * fsync instead of N.
+ */
+class GroupCommitLog<R> {
+    interface Sink<R> {
+        /** Writes and indexes a batch in order; returns one result (e.g. an id) per record. */
+        long[] write(List<R> records) throws IOException;
+
+        void force() throws IOException;
+    }
+
+    private record Pending<R>(R record, CompletableFuture<Long> done) {}
+
+    private final Sink<R> sink;
+    private final ToIntFunction<R> sizer;
+    private final boolean fsync;
+    private final int maxBatchBytes;
+    private final long lingerNanos;
+    private final BlockingQueue<Pending<R>> queue = new LinkedBlockingQueue<>();
+
+    final LongAdder batches = new LongAdder();
+    final LongAdder records = new LongAdder();
+
+    GroupCommitLog(String name, Sink<R> sink, ToIntFunction<R> sizer, boolean fsync, int maxBatchBytes, long lingerMillis) {
+        this.sink = sink;
+        this.sizer = sizer;
+        this.fsync = fsync;
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        Thread writer = new Thread(this::run, "group-commit-" + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queues a record and waits until its batch is written (and forced, in fsync mode). */
+    long append(R record) throws IOException {
+        return join(appendAsync(record));
+    }
+
+    /**
+     * Queues a record without waiting. The future completes on the writer
+     * thread once the batch is written, so callers that must not block (the
+     * NIO selector thread) continue from it on their own executor.
+     */
+    CompletableFuture<Long> appendAsync(R record) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        queue.add(new Pending<>(record, done));
+        return done;
+    }
+
+    /** Waits for an append's future, rethrowing a failed write as the IOException it was. */
+    static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw e;
+        }
+    }
+
+    String stats() {
+        long n = batches.sum();
+        return "batches=" + n + " records=" + records.sum()
+                + " avgBatch=" + (n == 0 ? 0 : String.format("%.1f", (double) records.sum() / n));
+    }
+
+    private void run() {
+        List<Pending<R>> batch = new ArrayList<>();
+        List<R> items = new ArrayList<>();
+        try {
+            while (true) {
+                Pending<R> next = queue.take();
+                int bytes = 0;
+                long deadline = System.nanoTime() + lingerNanos;
+                do {
+                    batch.add(next);
+                    items.add(next.record());
+                    bytes += sizer.applyAsInt(next.record());
+                    if (bytes >= maxBatchBytes) break;
+                    long wait = deadline - System.nanoTime();
+                    next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                } while (next != null);
+
+                commit(batch, items);
+                batch.clear();
+                items.clear();
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void commit(List<Pending<R>> batch, List<R> items) {
+        try {
+            long[] results = sink.write(items);
+            if (fsync) sink.force();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).done().complete(results[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Pending<R> p : batch) p.done().completeExceptionally(e);
+        }
+        batches.increment();
+        records.add(batch.size());
+    }
+}
@@ -0,0 +1,214 @@
+// HomeTimeline.java
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Friends-only home timeline.
+ *
+ * Each logged-in reader gets an inbox: a ring buffer of the newest post ids
+ * written by their friends. New posts are pushed into the inboxes of the
+ * author's friends (fan-out on write), so a timeline page is a slice of the
+ * inbox plus one read per post shown.
+ *
+ * Authors with more than FANOUT_LIMIT friends are not fanned out; readers
+ * merge their posts from the per-author index instead (fan-out on read).
+ * Pages older than what an inbox still holds fall back to merging every
+ * friend's per-author index.
+ *
+ * Inboxes are built on first read and dropped on logout or when the reader's
+ * friend list changes. A new inbox is published, still locked, before its
+ * friends' posts are scanned, so a post fanned out meanwhile waits for the
+ * scan and then lands in it; the ring ignores ids it already holds.
+ */
+class HomeTimeline {
+    static final int INBOX_CAPACITY = 200;
+    static final int FANOUT_LIMIT = 1_000;
+
+    private final PostStore posts;
+    private final Map<String, ChipiChipiServer.User> users;
+    private final Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+
+    final LongAdder fanoutPosts = new LongAdder();
+    final LongAdder fanoutDeliveries = new LongAdder();
+    final LongAdder fanoutNanos = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cacheMisses = new LongAdder();
+
+    HomeTimeline(PostStore posts, Map<String, ChipiChipiServer.User> users) {
+        this.posts = posts;
+        this.users = users;
+    }
+
+    /** Pushes a new post into the inbox of every friend of its author that has one. */
+    void onPost(String author, int postId) {
+        ChipiChipiServer.User user = users.get(author);
+        if (user == null || isHeavyAuthor(user)) return;
+        long start = System.nanoTime();
+        int delivered = 0;
+        for (String friend : user.friends) {
+            Inbox inbox = inboxes.get(friend);
+            if (inbox != null) {
+                inbox.add(postId);
+                delivered++;
+            }
+        }
+        fanoutPosts.increment();
+        fanoutDeliveries.add(delivered);
+        fanoutNanos.add(System.nanoTime() - start);
+    }
+
+    /** Newest-first page of friends' posts with ids below {@code beforeId}. */
+    List<PostStore.Post> page(ChipiChipiServer.User reader, long beforeId, int limit) throws IOException {
+        Inbox inbox = inboxFor(reader);
+
+        int[] ids = inbox.before(beforeId, limit);
+        TreeSet<Integer> merged = new TreeSet<>(Comparator.reverseOrder());
+        for (int id : ids) merged.add(id);
+
+        if (ids.length < limit && inbox.evicted()) {
+            // the page reaches past what the inbox kept: read every friend's own index
+            cacheMisses.increment();
+            for (String friend : reader.friends) {
+                for (int id : posts.idsByAuthor(friend, beforeId, limit)) merged.add(id);
+            }
+        } else {
+            cacheHits.increment();
+            for (String friend : reader.friends) {
+                ChipiChipiServer.User user = users.get(friend);
+                if (user == null || !isHeavyAuthor(user)) continue;
+                for (int id : posts.idsByAuthor(friend, beforeId, limit)) merged.add(id);
+            }
+        }
+
+        int[] pageIds = merged.stream().limit(limit).mapToInt(Integer::intValue).toArray();
+        return posts.get(pageIds);
+    }
+
+    /** Forgets a reader's inbox, e.g. on logout or after their friends changed. */
+    void invalidate(String username) {
+        inboxes.remove(username);
+    }
+
+    String stats() {
+        long postsFanned = fanoutPosts.sum();
+        long hits = cacheHits.sum();
+        long reads = hits + cacheMisses.sum();
+        return "timeline inboxes=" + inboxes.size()
+                + " fanoutPosts=" + postsFanned
+                + " fanoutDeliveries=" + fanoutDeliveries.sum()
+                + " avgFanoutMicros=" + (postsFanned == 0 ? 0 : fanoutNanos.sum() / postsFanned / 1000)
+                + " hitRate=" + (reads == 0 ? "n/a" : String.format("%.3f", (double) hits / reads));
+    }
+
+    /** The reader's inbox, built first if they have none; a concurrent onPost either finds it or is seen by the scan. */
+    private Inbox inboxFor(ChipiChipiServer.User reader) {
+        Inbox inbox = inboxes.get(reader.username);
+        if (inbox != null) return inbox;
+        Inbox fresh = new Inbox(INBOX_CAPACITY);
+        fresh.lock.lock();
+        try {
+            inbox = inboxes.putIfAbsent(reader.username, fresh);
+            if (inbox != null) return inbox;
+            fill(reader, fresh);
+            return fresh;
+        } finally {
+            fresh.lock.unlock();
+        }
+    }
+
+    /** Scans the friends' per-author indexes into a new inbox; the caller holds its lock. */
+    private void fill(ChipiChipiServer.User reader, Inbox inbox) {
+        TreeSet<Integer> newest = new TreeSet<>();
+        boolean truncated = false;
+        for (String friend : reader.friends) {
+            ChipiChipiServer.User user = users.get(friend);
+            if (user == null || isHeavyAuthor(user)) continue;
+            for (int id : posts.idsByAuthor(friend, Integer.MAX_VALUE, INBOX_CAPACITY + 1)) {
+                newest.add(id);
+                if (newest.size() > INBOX_CAPACITY) {
+                    newest.pollFirst();
+                    truncated = true;
+                }
+            }
+        }
+        for (int id : newest) inbox.add(id);
+        if (truncated) inbox.evicted = true;
+    }
+
+    private static boolean isHeavyAuthor(ChipiChipiServer.User user) {
+        return user.friends.size() > FANOUT_LIMIT;
+    }
+
+    /** Fixed-size ring of distinct post ids kept in ascending order. */
+    private static final class Inbox {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int[] ring;
+        private int head = 0; // index of the oldest id
+        private int size = 0;
+        private boolean evicted = false;
+
+        Inbox(int capacity) {
+            ring = new int[capacity];
+        }
+
+        void add(int id) {
+            lock.lock();
+            try {
+                if (contains(id)) return; // fanned out while the inbox was being built, and found by the scan too
+                if (size == ring.length) {
+                    head = (head + 1) % ring.length;
+                    size--;
+                    evicted = true;
+                }
+                // posts may be fanned out slightly out of order; keep the ring sorted
+                int pos = size;
+                while (pos > 0 && ring[(head + pos - 1) % ring.length] > id) {
+                    ring[(head + pos) % ring.length] = ring[(head + pos - 1) % ring.length];
+                    pos--;
+                }
+                ring[(head + pos) % ring.length] = id;
+                size++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean contains(int id) {
+            for (int i = size - 1; i >= 0; i--) {
+                int kept = ring[(head + i) % ring.length];
+                if (kept == id) return true;
+                if (kept < id) return false;
+            }
+            return false;
+        }
+
+        /** Up to {@code limit} ids below {@code beforeId}, newest first. */
+        int[] before(long beforeId, int limit) {
+            lock.lock();
+            try {
+                int[] result = new int[Math.min(limit, size)];
+                int n = 0;
+                for (int i = size - 1; i >= 0 && n < result.length; i--) {
+                    int id = ring[(head + i) % ring.length];
+                    if (id < beforeId) result[n++] = id;
+                }
+                return Arrays.copyOf(result, n);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean evicted() {
+            lock.lock();
+            try {
+                return evicted;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+// LogText.java
+
+/**
+ * Escaping for free text kept in the line-per-record logs (post content in
+ * posts.txt, message text in messages/). Backslash, LF and CR are written as
+ * \\ \n \r, so a text can never end its record early or add one of its own.
+ * Any other backslash pair is read back as it is, which keeps lines written
+ * before texts were escaped readable.
+ */
+final class LogText {
+    private LogText() {}
+
+    static String escape(String text) {
+        if (text.indexOf('\\') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String stored) {
+        if (stored.indexOf('\\') < 0) return stored;
+        StringBuilder sb = new StringBuilder(stored.length());
+        for (int i = 0; i < stored.length(); i++) {
+            char c = stored.charAt(i);
+            if (c != '\\' || i + 1 == stored.length()) {
+                sb.append(c);
+                continue;
+            }
+            char n = stored.charAt(++i);
+            switch (n) {
+                case '\\' -> sb.append('\\');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                default -> sb.append(c).append(n);
+            }
+        }
+        return sb.toString();
+    }
+}
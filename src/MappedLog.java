@@ -0,0 +1,125 @@
+// MappedLog.java
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only memory-mapped view of a growing, newline-delimited log file.
+ *
+ * The file is mapped in fixed windows (a single mapping cannot exceed 2 GB)
+ * and more is mapped as the file grows. Line boundaries are found by scanning
+ * the mapped bytes, and only the byte ranges a caller asks for are copied and
+ * decoded, so reading the tail never touches the head of the file.
+ *
+ * A read-only mapping cannot reach past the end of the file, so appends are
+ * not mapped one by one: reads of the unmapped tail go through the channel
+ * until it has grown by REMAP_CHUNK, and then everything there is gets mapped
+ * at once.
+ */
+class MappedLog {
+    private static final long WINDOW = 1L << 28; // 256 MB
+    private static final long REMAP_CHUNK = 1L << 24; // 16 MB
+
+    interface LineVisitor {
+        void line(long offset, int length) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final ReentrantLock remapLock = new ReentrantLock();
+    private volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+    private volatile long mappedLength = 0;
+
+    MappedLog(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Makes sure bytes [0, length) are mapped; only the last window and new ones are remapped. */
+    void ensureMapped(long length) throws IOException {
+        if (length <= mappedLength) return;
+        remapLock.lock();
+        try {
+            if (length <= mappedLength) return;
+            int count = (int) ((length + WINDOW - 1) / WINDOW);
+            MappedByteBuffer[] next = Arrays.copyOf(windows, count);
+            for (int i = Math.max(0, windows.length - 1); i < count; i++) {
+                long start = i * WINDOW;
+                long size = Math.min(WINDOW, length - start);
+                next[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+            windows = next;
+            mappedLength = length;
+        } finally {
+            remapLock.unlock();
+        }
+    }
+
+    /**
+     * Reports every complete line in [from, to) to the visitor without
+     * decoding it, and returns the offset just past the last complete line.
+     */
+    long scan(long from, long to, LineVisitor visitor) throws IOException {
+        ensureMapped(to);
+        long lineStart = from;
+        long pos = from;
+        while (pos < to) {
+            MappedByteBuffer w = windows[(int) (pos / WINDOW)];
+            int i = (int) (pos % WINDOW);
+            int end = (int) Math.min(w.limit(), to - (pos - i));
+            for (; i < end; i++) {
+                if (w.get(i) == '\n') {
+                    long nl = pos - (pos % WINDOW) + i;
+                    visitor.line(lineStart, (int) (nl - lineStart));
+                    lineStart = nl + 1;
+                }
+            }
+            pos = pos - (pos % WINDOW) + end;
+        }
+        return lineStart;
+    }
+
+    /** Position of the first {@code b} in [from, to), or -1. */
+    long indexOf(byte b, long from, long to) {
+        for (long pos = from; pos < to; pos++) {
+            if (windows[(int) (pos / WINDOW)].get((int) (pos % WINDOW)) == b) return pos;
+        }
+        return -1;
+    }
+
+    /** Copies [offset, offset + length) out of the mapping, or off the channel if it is in the unmapped tail. */
+    byte[] bytes(long offset, int length) throws IOException {
+        if (offset + length > mappedLength) {
+            long size = channel.size();
+            if (size - mappedLength >= REMAP_CHUNK) ensureMapped(size);
+            if (offset + length > mappedLength) return readTail(offset, length);
+        }
+        MappedByteBuffer[] ws = windows;
+        byte[] dst = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long pos = offset + copied;
+            MappedByteBuffer w = ws[(int) (pos / WINDOW)];
+            int i = (int) (pos % WINDOW);
+            int n = Math.min(length - copied, w.limit() - i);
+            w.get(i, dst, copied, n);
+            copied += n;
+        }
+        return dst;
+    }
+
+    private byte[] readTail(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) throw new EOFException();
+        }
+        return buf.array();
+    }
+
+    String read(long offset, int length) throws IOException {
+        return new String(bytes(offset, length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,430 @@
+// MessageStore.java
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.*;
+
+/**
+ * All direct messages in one append-only log, split into fixed-size segment
+ * files under messages/, replacing the per-pair a_b_msg.txt files.
+ *
+ * Record format, one per line:  id;timestampMillis;sender;recipient;text
+ * (text escaped with LogText, so it cannot hold a line break)
+ *
+ * Ids grow with every append, so they double as the time order. Both
+ * directions of a chat share one conversation id (the two usernames in
+ * sorted order), and each conversation keeps an in-memory list of its
+ * message ids and their locations in the log. Reading the last N messages,
+ * or the N before some id, costs N positional reads.
+ *
+ * On first start the legacy *_msg.txt files next to messages/ are imported
+ * once; they are left on disk untouched. The import is written to
+ * messages.import/ and renamed to messages/ only when complete, so an import
+ * cut short is started over on the next start instead of leaving half the
+ * messages. Bytes in them that are not UTF-8 are imported as U+FFFD, and a
+ * file that cannot be read at all is reported and left out, rather than
+ * failing the import of every other conversation.
+ *
+ * With {@code mapped} set, segments are indexed and read through MappedLog.
+ *
+ * Appends go through a GroupCommitLog, so concurrent messages share one write
+ * and, when {@code fsync} is set, one fsync per batch.
+ */
+class MessageStore {
+    static final int PAGE_SIZE = 50;
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final Pattern LEGACY_FILE = Pattern.compile("(.+)_msg\\.txt");
+
+    record Message(long id, long timestamp, String sender, String recipient, String text) {
+        String render() {
+            return sender + ": " + ChipiChipiServer.oneLine(text);
+        }
+    }
+
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    /** A message waiting in the group-commit queue; its id is assigned when written. */
+    private record PendingMessage(long timestamp, String sender, String recipient, String text) {}
+
+    private final Path dir;
+    private final boolean mapped;
+    private final boolean fsync;
+    private final GroupCommitLog<PendingMessage> log;
+    private volatile MappedLog[] mappedSegments = new MappedLog[0];
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private volatile FileChannel[] segments = new FileChannel[0];
+    private long activeSize = 0;
+    private long nextId = 0;
+
+    MessageStore(String dir) {
+        this(dir, false, false, 0);
+    }
+
+    MessageStore(String dir, boolean mapped, boolean fsync, long lingerMillis) {
+        this.dir = Paths.get(dir);
+        this.mapped = mapped;
+        this.fsync = fsync;
+        this.log = new GroupCommitLog<>("messages", new GroupCommitLog.Sink<>() {
+            @Override public long[] write(List<PendingMessage> batch) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    long[] ids = writeBatch(batch);
+                    Metrics.MESSAGE_WRITE.record(start);
+                    return ids;
+                } catch (IOException e) {
+                    Metrics.MESSAGE_WRITE.recordError(start);
+                    throw e;
+                }
+            }
+
+            @Override public void force() throws IOException {
+                segments[segments.length - 1].force(false);
+            }
+        }, m -> m.text().length() + m.sender().length() + m.recipient().length() + 32, fsync, MAX_BATCH_BYTES, lingerMillis);
+    }
+
+    static String conversationId(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + "," + b : b + "," + a;
+    }
+
+    /** Indexes every segment, importing the legacy per-pair files if the log does not exist yet. */
+    void open(Set<String> knownUsers) throws IOException {
+        appendLock.lock();
+        try {
+            if (!Files.isDirectory(dir)) importLegacyFiles(knownUsers);
+            Files.createDirectories(dir);
+
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.log")) {
+                for (Path p : ds) files.add(p);
+            }
+            Collections.sort(files);
+            for (Path p : files) {
+                FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                addSegment(ch);
+                activeSize = index(segments.length - 1, ch);
+            }
+            if (segments.length == 0) rollSegment();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /** Appends a message and returns it, with its id, once its batch has been written. */
+    Message append(String sender, String recipient, String text) throws IOException {
+        return GroupCommitLog.join(appendAsync(sender, recipient, text));
+    }
+
+    /** Same as append, without waiting; the message arrives on the group-commit writer thread. */
+    CompletableFuture<Message> appendAsync(String sender, String recipient, String text) {
+        PendingMessage pending = new PendingMessage(System.currentTimeMillis(), sender, recipient, text);
+        return log.appendAsync(pending).thenApply(id -> new Message(id, pending.timestamp(), sender, recipient, text));
+    }
+
+    String commitStats() {
+        return "messages log " + log.stats();
+    }
+
+    /**
+     * Assigns ids to a batch, writes it to the active segment (rolling to a new
+     * one when full) and indexes it. Runs on the writer thread.
+     */
+    private long[] writeBatch(List<PendingMessage> batch) throws IOException {
+        appendLock.lock();
+        try {
+            long[] ids = new long[batch.size()];
+            byte[][] encoded = new byte[batch.size()][];
+            for (int i = 0; i < ids.length; i++) {
+                PendingMessage m = batch.get(i);
+                ids[i] = nextId++;
+                encoded[i] = encode(ids[i], m);
+            }
+
+            int from = 0;
+            while (from < encoded.length) {
+                if (activeSize > 0 && activeSize + encoded[from].length > SEGMENT_BYTES) rollSegment();
+
+                // as many records as still fit in the active segment, and at least one
+                int to = from;
+                long bytes = 0;
+                while (to < encoded.length && (to == from || activeSize + bytes + encoded[to].length <= SEGMENT_BYTES)) {
+                    bytes += encoded[to].length;
+                    to++;
+                }
+                ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(bytes));
+                for (int i = from; i < to; i++) buf.put(encoded[i]);
+                buf.flip();
+
+                int segment = segments.length - 1;
+                FileChannel ch = segments[segment];
+                long offset = activeSize;
+                while (buf.hasRemaining()) {
+                    ch.write(buf, offset + buf.position());
+                }
+                for (int i = from; i < to; i++) {
+                    PendingMessage m = batch.get(i);
+                    conversation(m.sender(), m.recipient()).add(ids[i], segment, offset, encoded[i].length - 1);
+                    offset += encoded[i].length;
+                }
+                activeSize = offset;
+                from = to;
+            }
+            return ids;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static byte[] encode(long id, PendingMessage m) {
+        return (id + ";" + m.timestamp() + ";" + m.sender() + ";" + m.recipient() + ";" + LogText.escape(m.text()) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The newest {@code limit} messages between two users, oldest first. */
+    List<Message> latest(String a, String b, int limit) throws IOException {
+        return before(a, b, Long.MAX_VALUE, limit);
+    }
+
+    /** Up to {@code limit} messages between two users with ids below {@code beforeId}, oldest first. */
+    List<Message> before(String a, String b, long beforeId, int limit) throws IOException {
+        return between(a, b, -1, beforeId, limit);
+    }
+
+    /** The newest {@code limit} messages between two users with ids above {@code afterId} and below {@code beforeId}, oldest first. */
+    List<Message> between(String a, String b, long afterId, long beforeId, int limit) throws IOException {
+        Conversation conv = conversations.get(conversationId(a, b));
+        List<Message> result = new ArrayList<>();
+        if (conv == null) return result;
+
+        int n = conv.size;
+        long[] ids = conv.ids;
+        long[] locations = conv.locations;
+        int[] lengths = conv.lengths;
+        int end = Arrays.binarySearch(ids, 0, n, beforeId);
+        if (end < 0) end = -end - 1;
+        int start = Arrays.binarySearch(ids, 0, end, afterId);
+        start = start < 0 ? -start - 1 : start + 1;
+        for (int i = Math.max(start, end - limit); i < end; i++) {
+            result.add(read((int) (locations[i] >>> 40), locations[i] & ((1L << 40) - 1), lengths[i]));
+        }
+        return result;
+    }
+
+    private Message read(int segment, long offset, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Message m = readRecord(segment, offset, length);
+            Metrics.MESSAGE_READ.record(start);
+            return m;
+        } catch (IOException e) {
+            Metrics.MESSAGE_READ.recordError(start);
+            throw e;
+        }
+    }
+
+    private Message readRecord(int segment, long offset, int length) throws IOException {
+        if (mapped) {
+            return parse(mappedSegments[segment].read(offset, length));
+        }
+        FileChannel ch = segments[segment];
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) throw new EOFException(dir.toString());
+        }
+        return parse(new String(buf.array(), StandardCharsets.UTF_8));
+    }
+
+    private static Message parse(String line) {
+        String[] parts = line.split(";", 5);
+        if (parts.length < 5) return null;
+        try {
+            return new Message(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], parts[3], LogText.unescape(parts[4]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Indexes one segment and returns the length of its complete records. */
+    private long index(int segment, FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (mapped) {
+            MappedLog log = mappedSegments[segment];
+            long complete = log.scan(0, size, (offset, length) -> {
+                Message m = parse(log.read(offset, length));
+                if (m != null) {
+                    conversation(m.sender(), m.recipient()).add(m.id(), segment, offset, length);
+                    nextId = Math.max(nextId, m.id() + 1);
+                }
+            });
+            if (complete < size) ch.truncate(complete);
+            return complete;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        long lineStart = 0;
+        long pos = 0;
+        while (pos < size) {
+            chunk.clear();
+            int n = ch.read(chunk, pos);
+            if (n <= 0) break;
+            byte[] bytes = chunk.array();
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] != '\n') {
+                    line.write(bytes[i]);
+                    continue;
+                }
+                Message m = parse(line.toString(StandardCharsets.UTF_8));
+                if (m != null) {
+                    conversation(m.sender(), m.recipient()).add(m.id(), segment, lineStart, line.size());
+                    nextId = Math.max(nextId, m.id() + 1);
+                }
+                lineStart = pos + i + 1;
+                line.reset();
+            }
+            pos += n;
+        }
+        // drop a torn final record so the next append starts on a clean line
+        if (lineStart < size) ch.truncate(lineStart);
+        return lineStart;
+    }
+
+    private void rollSegment() throws IOException {
+        if (fsync && segments.length > 0) segments[segments.length - 1].force(false);
+        Path p = dir.resolve(String.format("%08d.log", segments.length));
+        addSegment(FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        activeSize = 0;
+    }
+
+    private void addSegment(FileChannel ch) {
+        if (mapped) {
+            MappedLog[] nextMapped = Arrays.copyOf(mappedSegments, mappedSegments.length + 1);
+            nextMapped[nextMapped.length - 1] = new MappedLog(ch);
+            mappedSegments = nextMapped;
+        }
+        FileChannel[] next = Arrays.copyOf(segments, segments.length + 1);
+        next[next.length - 1] = ch;
+        segments = next;
+    }
+
+    private Conversation conversation(String a, String b) {
+        return conversations.computeIfAbsent(conversationId(a, b), k -> new Conversation());
+    }
+
+    /**
+     * Copies every a_b_msg.txt next to the log directory (the server's
+     * working directory) into new segments
+     * under messages.import/, then renames that to the log directory. The two
+     * halves of a chat are imported one after the other, as they were shown.
+     * A messages.import/ already there is what an earlier import left when it
+     * did not finish, and is thrown away.
+     */
+    private void importLegacyFiles(Set<String> knownUsers) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toAbsolutePath().getParent(), "*_msg.txt")) {
+            for (Path p : ds) files.add(p);
+        }
+        if (files.isEmpty()) return;
+        Collections.sort(files);
+
+        Path staging = dir.resolveSibling(dir.getFileName() + ".import");
+        if (Files.isDirectory(staging)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(staging)) {
+                for (Path p : ds) Files.delete(p);
+            }
+        }
+        Files.createDirectories(staging);
+
+        long id = 0;
+        int segment = 0;
+        long size = 0;
+        long now = System.currentTimeMillis();
+        FileOutputStream out = new FileOutputStream(staging.resolve(String.format("%08d.log", segment)).toFile());
+        try {
+            for (Path p : files) {
+                Matcher m = LEGACY_FILE.matcher(p.getFileName().toString());
+                if (!m.matches()) continue;
+                String[] pair = splitPair(m.group(1), knownUsers);
+                if (pair == null) continue;
+                List<String> lines;
+                try {
+                    lines = readLegacyFile(p);
+                } catch (IOException e) {
+                    System.out.println("Error importing " + p.getFileName() + ", left out: " + e.getMessage());
+                    continue;
+                }
+                for (String line : lines) {
+                    int idx = line.indexOf(':');
+                    String sender = idx > 0 ? line.substring(0, idx).trim() : pair[0];
+                    String text = idx > 0 ? line.substring(idx + 1).trim() : line;
+                    String recipient = sender.equals(pair[1]) ? pair[0] : pair[1];
+                    byte[] record = encode(id++, new PendingMessage(now, sender, recipient, text));
+                    if (size > 0 && size + record.length > SEGMENT_BYTES) {
+                        out.getFD().sync();
+                        out.close();
+                        out = new FileOutputStream(staging.resolve(String.format("%08d.log", ++segment)).toFile());
+                        size = 0;
+                    }
+                    out.write(record);
+                    size += record.length;
+                }
+            }
+            // on disk before the rename makes them the log
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(staging, dir, StandardCopyOption.ATOMIC_MOVE);
+        if (id > 0) System.out.println("Imported " + id + " legacy messages into " + dir);
+    }
+
+    /** The lines of a legacy file, read the way the old server wrote them, with bad bytes replaced rather than thrown on. */
+    private static List<String> readLegacyFile(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        // unlike Files.readAllLines, an InputStreamReader replaces malformed input
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) lines.add(line);
+        }
+        return lines;
+    }
+
+    /** Splits "a_b" into two usernames, preferring a split where both are known users. */
+    private static String[] splitPair(String name, Set<String> knownUsers) {
+        String[] fallback = null;
+        for (int i = name.indexOf('_'); i > 0; i = name.indexOf('_', i + 1)) {
+            String a = name.substring(0, i), b = name.substring(i + 1);
+            if (b.isEmpty()) break;
+            if (knownUsers.contains(a) && knownUsers.contains(b)) return new String[] {a, b};
+            if (fallback == null) fallback = new String[] {a, b};
+        }
+        return fallback;
+    }
+
+    /** Message ids and log locations of one conversation; single writer, readers take size first. */
+    private static final class Conversation {
+        private volatile long[] ids = new long[16];
+        private volatile long[] locations = new long[16];
+        private volatile int[] lengths = new int[16];
+        private volatile int size = 0;
+
+        void add(long id, int segment, long offset, int length) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                locations = Arrays.copyOf(locations, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            ids[size] = id;
+            locations[size] = ((long) segment << 40) | offset;
+            lengths[size] = length;
+            size = size + 1;
+        }
+    }
+}
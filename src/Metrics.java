@@ -0,0 +1,187 @@
+// Metrics.java
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Server-wide counters, latency timers and gauges.
+ *
+ * Every client action and every persistence call has a Timer counting calls,
+ * failures and latency. Everything registered here is published as MBeans
+ * under "chipichipi:" and, when the server runs with --metrics-port=N, as
+ * plain text on http://127.0.0.1:N/metrics, one "name value" line each.
+ *
+ * Typical use:
+ *   long start = System.nanoTime();
+ *   ... work ...
+ *   Metrics.POST.record(start);        // or recordError(start) on failure
+ */
+class Metrics {
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    // client actions, shared by the menu, NIO and framed protocols
+    static final Timer REGISTER = timer("action.register");
+    static final Timer LOGIN = timer("action.login");
+    static final Timer POST = timer("action.post");
+    static final Timer VIEW_POSTS = timer("action.viewPosts");
+    static final Timer BROWSE_POSTS = timer("action.browsePosts");
+    static final Timer HOME_TIMELINE = timer("action.homeTimeline");
+    static final Timer SEND_MESSAGE = timer("action.sendMessage");
+    static final Timer VIEW_MESSAGES = timer("action.viewMessages");
+    static final Timer FRIEND_REQUEST = timer("action.friendRequest");
+    static final Timer ACCEPT_REQUEST = timer("action.acceptRequest");
+    static final Timer REJECT_REQUEST = timer("action.rejectRequest");
+    static final Timer SUGGESTIONS = timer("action.suggestions");
+    static final Timer SEARCH_USERS = timer("action.searchUsers");
+    static final Timer SEARCH_POSTS = timer("action.searchPosts");
+    static final Timer CHAT_MESSAGE = timer("action.chatMessage");
+
+    // persistence
+    static final Timer USER_LOG_APPEND = timer("store.users.append");
+    static final Timer SAVE_USERS = timer("store.users.snapshot");
+    static final Timer POST_WRITE = timer("store.posts.writeBatch");
+    static final Timer POST_READ = timer("store.posts.read");
+    static final Timer MESSAGE_WRITE = timer("store.messages.writeBatch");
+    static final Timer MESSAGE_READ = timer("store.messages.read");
+
+    static final AtomicInteger activeConnections = new AtomicInteger();
+    static final LongAdder clientErrors = new LongAdder();
+
+    static {
+        gauge("connections.active", activeConnections::get);
+        gauge("connections.errors", clientErrors::sum);
+    }
+
+    static Timer timer(String name) {
+        return timers.computeIfAbsent(name, Timer::new);
+    }
+
+    static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** Registers the MBeans and, if {@code httpPort} is positive, starts the scrape endpoint on localhost. */
+    static void start(int httpPort) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Timer timer : timers.values()) {
+                server.registerMBean(timer, new ObjectName("chipichipi:type=Timer,name=" + timer.name));
+            }
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                server.registerMBean(new Gauge(gauge.getValue()), new ObjectName("chipichipi:type=Gauge,name=" + gauge.getKey()));
+            }
+        } catch (JMException e) {
+            System.out.println("Error registering metrics MBeans: " + e.getMessage());
+        }
+
+        if (httpPort <= 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            http.start();
+            System.out.println("Metrics on http://127.0.0.1:" + httpPort + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Error starting metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    /** Every metric as "name value" lines, sorted by name. */
+    static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : new TreeSet<>(timers.keySet())) {
+            Timer t = timers.get(name);
+            String prefix = "chipichipi_" + name.replace('.', '_');
+            line(sb, prefix + "_count", t.getCount());
+            line(sb, prefix + "_errors", t.getErrors());
+            line(sb, prefix + "_micros_mean", t.getMeanMicros());
+            line(sb, prefix + "_micros{quantile=\"0.5\"}", t.getP50Micros());
+            line(sb, prefix + "_micros{quantile=\"0.9\"}", t.getP90Micros());
+            line(sb, prefix + "_micros{quantile=\"0.99\"}", t.getP99Micros());
+            line(sb, prefix + "_micros{quantile=\"0.999\"}", t.getP999Micros());
+            line(sb, prefix + "_micros_max", t.getMaxMicros());
+        }
+        for (String name : new TreeSet<>(gauges.keySet())) {
+            line(sb, "chipichipi_" + name.replace('.', '_'), gauges.get(name).getAsLong());
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    public interface TimerMXBean {
+        long getCount();
+        long getErrors();
+        long getMeanMicros();
+        long getP50Micros();
+        long getP90Micros();
+        long getP99Micros();
+        long getP999Micros();
+        long getMaxMicros();
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    /** Calls, failures and latency of one operation. Failed calls count toward latency too. */
+    static final class Timer implements TimerMXBean {
+        final String name;
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        void record(long startNanos) {
+            latency.recordNanos(System.nanoTime() - startNanos);
+        }
+
+        void recordError(long startNanos) {
+            errors.increment();
+            record(startNanos);
+        }
+
+        @Override public long getCount() { return latency.count(); }
+        @Override public long getErrors() { return errors.sum(); }
+        @Override public long getMeanMicros() { return latency.meanMicros(); }
+        @Override public long getP50Micros() { return latency.percentileMicros(50); }
+        @Override public long getP90Micros() { return latency.percentileMicros(90); }
+        @Override public long getP99Micros() { return latency.percentileMicros(99); }
+        @Override public long getP999Micros() { return latency.percentileMicros(99.9); }
+        @Override public long getMaxMicros() { return latency.maxMicros(); }
+    }
+
+    private static final class Gauge implements GaugeMXBean {
+        private final LongSupplier value;
+
+        Gauge(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override public long getValue() {
+            return value.getAsLong();
+        }
+    }
+}
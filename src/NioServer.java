@@ -0,0 +1,382 @@
+// NioServer.java
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to the thread-per-connection accept loop.
+ *
+ * One selector thread owns every socket. Each connection keeps its own read
+ * buffer, a line decoder and a queue of pending writes, and feeds complete
+ * lines into a NioSession which holds the menu state that ClientHandler keeps
+ * on its call stack. Posts and messages finish on the selector thread too:
+ * their group commits complete into the task queue, which wakes the selector,
+ * and the connection stops reading until the reply is out. Everything else
+ * that reads or fsyncs a file runs on the disk executor, one virtual thread
+ * per command, and completes into the same queue.
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final int port;
+    private final Queue<Connection> pendingInterest = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Executor loop = this::execute;
+    private final ExecutorService disk = Executors.newVirtualThreadPerTaskExecutor();
+    private Selector selector;
+    private Thread loopThread;
+
+    NioServer(int port) {
+        this.port = port;
+    }
+
+    void run() throws IOException {
+        selector = Selector.open();
+        loopThread = Thread.currentThread();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("ChipiChipi Server (nio) started on port " + port);
+
+        while (true) {
+            selector.select();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+
+                if (key.isAcceptable()) {
+                    acceptAll(server);
+                    continue;
+                }
+
+                Connection conn = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) conn.read();
+                    if (key.isValid() && key.isWritable()) conn.write();
+                } catch (IOException e) {
+                    System.out.println("Client error: " + e.getMessage());
+                    Metrics.clientErrors.increment();
+                    conn.close();
+                } catch (RuntimeException e) {
+                    // a bug hit by one connection must not end the loop every other connection runs on
+                    System.out.println("Client error: " + e);
+                    Metrics.clientErrors.increment();
+                    conn.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Client error: " + e);
+                    Metrics.clientErrors.increment();
+                }
+            }
+
+            Connection conn;
+            while ((conn = pendingInterest.poll()) != null) {
+                try {
+                    conn.updateInterest();
+                } catch (RuntimeException e) {
+                    System.out.println("Client error: " + e);
+                    Metrics.clientErrors.increment();
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /** Accepts every connection waiting in the backlog, so a burst of connects does not overflow it. */
+    private void acceptAll(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            try {
+                accept(channel);
+            } catch (IOException e) {
+                System.out.println("Client error: " + e.getMessage());
+                Metrics.clientErrors.increment();
+                channel.close();
+            }
+        }
+    }
+
+    private void accept(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Connection conn = new Connection(channel, key);
+        key.attach(conn);
+        Metrics.activeConnections.incrementAndGet();
+        try {
+            conn.session.onOpen();
+        } catch (RuntimeException e) {
+            System.out.println("Client error: " + e);
+            Metrics.clientErrors.increment();
+            conn.close();
+        }
+    }
+
+    /**
+     * Called by a connection whenever it gains pending output. The interest
+     * set is only touched from the selector thread, so other threads hand the
+     * connection over and wake the selector up.
+     */
+    private void requestWrite(Connection conn) {
+        pendingInterest.add(conn);
+        if (Thread.currentThread() != loopThread) {
+            selector.wakeup();
+        }
+    }
+
+    /** Runs a task on the selector thread, e.g. the rest of a command whose append has been written. */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != loopThread) {
+            selector.wakeup();
+        }
+    }
+
+    /** A buffer waiting to be written; sentAt is non-zero for lines pushed by other sessions. */
+    private record Outgoing(ByteBuffer buf, long sentAt) {}
+
+    private final class Connection implements NioSession.Waiter {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final LineDecoder decoder = new LineDecoder(MAX_LINE_LENGTH);
+        private final Queue<Outgoing> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingPushes = new AtomicInteger();
+        private final PrintWriter writer = new PrintWriter(new ChannelWriter(this), true);
+        private final NioSession session;
+        private boolean closeAfterFlush = false;
+        private boolean closed = false;
+        private boolean waiting = false; // the session awaits an append; its input stays in readBuffer
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.session = new NioSession(writer, new ConnectionOutbox(this), this);
+        }
+
+        void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n == -1) {
+                close();
+                return;
+            }
+            feed();
+        }
+
+        /** Hands the session every complete line in readBuffer, unless it is waiting; the rest stays there. */
+        private void feed() throws IOException {
+            readBuffer.flip();
+            String line;
+            while (!closeAfterFlush && !waiting && (line = decoder.next(readBuffer)) != null) {
+                if (!session.onLine(line)) {
+                    closeAfterFlush = true;
+                    requestWrite(this);
+                }
+            }
+            // framed-mode responses are only printed, so a pipelined burst leaves as one buffer
+            writer.flush();
+            readBuffer.compact();
+        }
+
+        @Override public Executor loop() {
+            return loop;
+        }
+
+        @Override public Executor disk() {
+            return disk;
+        }
+
+        /** Reading stops too, so a client that keeps sending cannot grow anything while the append is out. */
+        @Override public void suspend() {
+            waiting = true;
+            requestWrite(this);
+        }
+
+        @Override public void resume() {
+            if (closed) return;
+            waiting = false;
+            try {
+                if (!session.isOpen()) closeAfterFlush = true;
+                feed();
+            } catch (IOException e) {
+                System.out.println("Client error: " + e.getMessage());
+                Metrics.clientErrors.increment();
+                close();
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Client error: " + e);
+                Metrics.clientErrors.increment();
+                close();
+                return;
+            }
+            requestWrite(this);
+        }
+
+        void write() throws IOException {
+            Outgoing next;
+            while ((next = outbound.peek()) != null) {
+                channel.write(next.buf());
+                if (next.buf().hasRemaining()) return;
+                outbound.poll();
+                if (next.sentAt() != 0) {
+                    pendingPushes.decrementAndGet();
+                    Outbox.recordDelivery(next.sentAt());
+                }
+            }
+            updateInterest();
+        }
+
+        void enqueue(ByteBuffer buf, long sentAt) {
+            outbound.add(new Outgoing(buf, sentAt));
+            requestWrite(this);
+        }
+
+        void updateInterest() {
+            if (!key.isValid()) return;
+            int read = waiting ? 0 : SelectionKey.OP_READ;
+            if (!outbound.isEmpty()) {
+                key.interestOps(read | SelectionKey.OP_WRITE);
+            } else if (closeAfterFlush) {
+                close();
+            } else {
+                key.interestOps(read);
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            Metrics.activeConnections.decrementAndGet();
+            try {
+                session.onClose();
+            } catch (RuntimeException e) {
+                System.out.println("Client error: " + e);
+                Metrics.clientErrors.increment();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Splits an inbound byte stream into lines, carrying partial lines over
+     * between reads. Accepts both "\n" and "\r\n" terminators.
+     */
+    private static final class LineDecoder {
+        private final int maxLength;
+        private byte[] pending = new byte[256];
+        private int length = 0;
+
+        LineDecoder(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        String next(ByteBuffer in) throws IOException {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    int end = length;
+                    if (end > 0 && pending[end - 1] == '\r') end--;
+                    String line = new String(pending, 0, end, StandardCharsets.UTF_8);
+                    length = 0;
+                    return line;
+                }
+                if (length == maxLength) {
+                    throw new IOException("Line exceeds " + maxLength + " bytes");
+                }
+                if (length == pending.length) {
+                    pending = Arrays.copyOf(pending, Math.min(pending.length * 2, maxLength));
+                }
+                pending[length++] = b;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Pushes from other sessions skip the session's writer and go straight onto
+     * the connection's write queue, capped at Outbox.CAPACITY pending lines.
+     */
+    private static final class ConnectionOutbox extends Outbox {
+        private final Connection conn;
+
+        ConnectionOutbox(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override boolean push(String line, long sentAt) {
+            return offer((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8), sentAt);
+        }
+
+        /** A chat line is encoded once per room message and shared by every connection it goes to. */
+        @Override boolean pushChat(ChatRoom.Broadcast broadcast, long sentAt) {
+            return offer(broadcast.bytes(framed), sentAt);
+        }
+
+        private boolean offer(byte[] bytes, long sentAt) {
+            if (conn.pendingPushes.incrementAndGet() > CAPACITY) {
+                conn.pendingPushes.decrementAndGet();
+                dropped.increment();
+                return false;
+            }
+            conn.enqueue(ByteBuffer.wrap(bytes), sentAt);
+            return true;
+        }
+    }
+
+    /**
+     * Writer handed to the session in place of a socket
+     * stream. Characters are collected until flush, then encoded and queued on
+     * the connection, so writers never block on a slow peer.
+     */
+    private static final class ChannelWriter extends Writer {
+        private final Connection conn;
+        private final StringBuilder buffer = new StringBuilder();
+
+        ChannelWriter(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override public void write(char[] cbuf, int off, int len) {
+            buffer.append(cbuf, off, len);
+        }
+
+        @Override public void write(String str, int off, int len) {
+            buffer.append(str, off, off + len);
+        }
+
+        @Override public void flush() {
+            if (buffer.length() == 0) return;
+            conn.enqueue(ByteBuffer.wrap(buffer.toString().getBytes(StandardCharsets.UTF_8)), 0);
+            buffer.setLength(0);
+        }
+
+        @Override public void close() {
+            flush();
+        }
+    }
+}
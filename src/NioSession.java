@@ -0,0 +1,376 @@
+// NioSession.java
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The register/login/userMenu flow of ClientHandler, rewritten as a state
+ * machine so it can be driven one line at a time from the NIO event loop.
+ * Every prompt and reply matches the blocking handler, so existing clients
+ * cannot tell the two modes apart. Sending CommandProtocol.HELLO at the main
+ * menu switches the connection to framed commands for good.
+ *
+ * Nothing that touches a file runs on the selector thread. Posts and direct
+ * messages hand their group commit's future to await(); registrations, friend
+ * request changes (fsync'd to users.log) and every post, message or search
+ * read go to the connection's disk executor through offload(), which prints
+ * their output once they are done. Either way await() pauses the connection's
+ * input until the reply has been written from the selector thread.
+ */
+class NioSession {
+    /** What the connection lends a session for the work it must not block the selector thread on. */
+    interface Waiter {
+        /** Runs tasks on the selector thread, waking it if needed. */
+        Executor loop();
+
+        /** Runs file reads and fsync'd writes, which may block, off the selector thread. */
+        Executor disk();
+
+        /** Stops handing the session input lines. */
+        void suspend();
+
+        /** Called on the selector thread once the reply is out; hands over any lines that arrived meanwhile. */
+        void resume();
+    }
+
+    /** The rest of a command, run when its append completes. */
+    private interface Step<T> {
+        void run(T result) throws IOException;
+    }
+
+    /** The part of a menu command that touches files; it prints into a buffer, not the connection. */
+    private interface Output {
+        void write(PrintWriter out) throws IOException;
+    }
+
+    private enum State {
+        MAIN_MENU,
+        REGISTER_USERNAME, REGISTER_PASSWORD, REGISTER_AGE, REGISTER_GENDER, REGISTER_COUNTRY,
+        LOGIN_USERNAME, LOGIN_PASSWORD,
+        USER_MENU,
+        REQUEST_TARGET,
+        MANAGE_REQUEST,
+        POST_BODY,
+        MESSAGE_TARGET, MESSAGE_BODY,
+        VIEW_MESSAGES_TARGET,
+        OLDER_MESSAGES_TARGET, OLDER_MESSAGES_CURSOR,
+        BROWSE_CURSOR,
+        TIMELINE_CURSOR,
+        SEARCH_QUERY,
+        POST_SEARCH_QUERY, POST_SEARCH_CURSOR,
+        CHAT_LINE,
+        FRAMED,
+        CLOSED
+    }
+
+    private final PrintWriter out;
+    private final Outbox outbox;
+    private final Waiter waiter;
+    private State state = State.MAIN_MENU;
+    private ChipiChipiServer.User currentUser = null;
+
+    // fields collected across several lines of a multi-prompt command
+    private String username, password, gender, target;
+    private int age;
+    private Deque<String> pendingRequests;
+    private CommandProtocol protocol;
+
+    NioSession(PrintWriter out, Outbox outbox, Waiter waiter) {
+        this.out = out;
+        this.outbox = outbox;
+        this.waiter = waiter;
+    }
+
+    void onOpen() {
+        out.println("Welcome to ChipiChipi!");
+        mainMenu();
+    }
+
+    /** Handles one input line; returns false once the client has asked to leave. */
+    boolean onLine(String line) {
+        return guarded(this::handle, line);
+    }
+
+    boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    private void handle(String line) throws IOException {
+        switch (state) {
+            case MAIN_MENU -> onMainMenu(line);
+            case REGISTER_USERNAME -> {
+                if (ChipiChipiServer.users.containsKey(line)) {
+                    out.println(ChipiChipiServer.Registration.TAKEN.reply);
+                    mainMenu();
+                    break;
+                }
+                username = line;
+                prompt("Enter password:", State.REGISTER_PASSWORD);
+            }
+            case REGISTER_PASSWORD -> { password = line; prompt("Enter age:", State.REGISTER_AGE); }
+            case REGISTER_AGE -> {
+                try {
+                    age = Integer.parseInt(line);
+                } catch (NumberFormatException e) {
+                    out.println("Invalid age.");
+                    mainMenu();
+                    break;
+                }
+                prompt("Enter gender:", State.REGISTER_GENDER);
+            }
+            case REGISTER_GENDER -> { gender = line; prompt("Enter country:", State.REGISTER_COUNTRY); }
+            case REGISTER_COUNTRY -> {
+                ChipiChipiServer.User user = new ChipiChipiServer.User(username, password, age, gender, line);
+                offload(buffer -> buffer.println(ChipiChipiServer.registerUser(user).reply), this::mainMenu);
+            }
+            case LOGIN_USERNAME -> { username = line; prompt("Enter password:", State.LOGIN_PASSWORD); }
+            case LOGIN_PASSWORD -> onLogin(line);
+            case USER_MENU -> onUserMenu(line);
+            case REQUEST_TARGET -> onFriendRequest(line);
+            case MANAGE_REQUEST -> onManageRequest(line);
+            case POST_BODY -> await(ChipiChipiServer.savePostAsync(currentUser.username, line, waiter.loop()), id -> {
+                out.println(id < 0 ? "Could not save post." : "Posted.");
+                userMenu();
+            });
+            case MESSAGE_TARGET -> {
+                if (!ChipiChipiServer.socialGraph.areFriends(currentUser.username, line)) {
+                    out.println("Not your friend.");
+                    userMenu();
+                    break;
+                }
+                target = line;
+                prompt("Enter message:", State.MESSAGE_BODY);
+            }
+            case MESSAGE_BODY -> await(ChipiChipiServer.sendDirectMessageAsync(currentUser.username, target, line, waiter.loop()), id -> {
+                out.println("Sent.");
+                userMenu();
+            });
+            case VIEW_MESSAGES_TARGET -> {
+                String name = currentUser.username;
+                offload(buffer -> ChipiChipiServer.writeMessages(buffer, name, line, Long.MAX_VALUE), this::userMenu);
+            }
+            case OLDER_MESSAGES_TARGET -> { target = line; prompt("Show messages before id:", State.OLDER_MESSAGES_CURSOR); }
+            case OLDER_MESSAGES_CURSOR -> {
+                Long before = ChipiChipiServer.parseMessageId(out, line);
+                if (before == null) {
+                    userMenu();
+                    break;
+                }
+                String name = currentUser.username, with = target;
+                offload(buffer -> ChipiChipiServer.writeMessages(buffer, name, with, before), this::userMenu);
+            }
+            case BROWSE_CURSOR -> offload(buffer -> ChipiChipiServer.writePostPage(buffer, line), this::userMenu);
+            case TIMELINE_CURSOR -> {
+                ChipiChipiServer.User user = currentUser;
+                offload(buffer -> ChipiChipiServer.writeTimelinePage(buffer, user, line), this::userMenu);
+            }
+            case SEARCH_QUERY -> offload(buffer -> ChipiChipiServer.writeSearchResults(buffer, line), this::userMenu);
+            case POST_SEARCH_QUERY -> { target = line; prompt("Show posts before id (blank for latest):", State.POST_SEARCH_CURSOR); }
+            case POST_SEARCH_CURSOR -> {
+                String query = target;
+                offload(buffer -> ChipiChipiServer.writePostSearchPage(buffer, query, line), this::userMenu);
+            }
+            case CHAT_LINE -> { ChipiChipiServer.writeChatSend(out, currentUser, line); userMenu(); }
+            case FRAMED -> {
+                CompletableFuture<String> response = protocol.handle(line, waiter.loop(), waiter.disk());
+                if (response.isDone()) {
+                    // no flush here: the connection flushes once per read, after every buffered request
+                    respond(response.join());
+                } else {
+                    await(response, this::respond);
+                }
+            }
+            case CLOSED -> { }
+        }
+    }
+
+    /** Runs part of a command; an error closes this connection only, after what was already written. */
+    private <T> boolean guarded(Step<T> step, T input) {
+        try {
+            step.run(input);
+        } catch (IOException e) {
+            System.out.println("Client error: " + e.getMessage());
+            Metrics.clientErrors.increment();
+            state = State.CLOSED;
+        } catch (RuntimeException e) {
+            // runs on the selector thread: close this connection only, after what was already written
+            System.out.println("Client error: " + e);
+            Metrics.clientErrors.increment();
+            state = State.CLOSED;
+        }
+        return state != State.CLOSED;
+    }
+
+    private void respond(String response) {
+        out.print(response + System.lineSeparator());
+        if (protocol.isClosed()) state = State.CLOSED;
+    }
+
+    /**
+     * Pauses this connection's input until {@code pending} completes, then runs
+     * {@code then} with its result on the selector thread. A failed append
+     * reaches {@code then} as the IOException it was.
+     */
+    private <T> void await(CompletableFuture<T> pending, Step<T> then) {
+        waiter.suspend();
+        pending.whenCompleteAsync((result, error) -> {
+            if (state == State.CLOSED) return; // the connection went away meanwhile
+            guarded(done -> then.run(GroupCommitLog.join(done)), pending);
+            waiter.resume();
+        }, waiter.loop());
+    }
+
+    /**
+     * Runs {@code work} on the disk executor, then prints what it wrote and
+     * runs {@code next} from the selector thread. The work must not read this
+     * session's fields, which the selector thread may change if the
+     * connection closes meanwhile; it gets copies instead.
+     */
+    private void offload(Output work, Runnable next) {
+        await(CompletableFuture.supplyAsync(() -> {
+            StringWriter text = new StringWriter();
+            try (PrintWriter buffer = new PrintWriter(text)) {
+                work.write(buffer);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return text.toString();
+        }, waiter.disk()), text -> {
+            out.print(text);
+            next.run();
+        });
+    }
+
+    void onClose() {
+        if (currentUser != null) {
+            logout();
+        }
+        if (protocol != null) {
+            protocol.close();
+        }
+        state = State.CLOSED;
+    }
+
+    private void onMainMenu(String choice) {
+        switch (choice) {
+            case "1" -> prompt("Enter username:", State.REGISTER_USERNAME);
+            case "2" -> prompt("Enter username:", State.LOGIN_USERNAME);
+            case "3" -> { out.println("Goodbye!"); state = State.CLOSED; }
+            case CommandProtocol.HELLO -> {
+                protocol = new CommandProtocol(() -> outbox);
+                prompt(CommandProtocol.HELLO + "\tOK", State.FRAMED);
+            }
+            default -> { out.println("Invalid option."); mainMenu(); }
+        }
+    }
+
+    private void onLogin(String password) {
+        ChipiChipiServer.User user = ChipiChipiServer.authenticate(username, password);
+        if (user == null) {
+            out.println("Invalid username or password.");
+            mainMenu();
+            return;
+        }
+
+        currentUser = user;
+        ChipiChipiServer.loggedInUsers.put(username, outbox);
+        ChipiChipiServer.friendSuggestions.prepare(user);
+        out.println("Login successful. Welcome, " + username + "!");
+        userMenu();
+    }
+
+    private void onUserMenu(String opt) {
+        switch (opt) {
+            case "1" -> prompt("Username to request:", State.REQUEST_TARGET);
+            case "2" -> {
+                pendingRequests = new ArrayDeque<>(currentUser.friendRequests);
+                nextRequest();
+            }
+            case "3" -> { showFriends(); userMenu(); }
+            case "4" -> prompt("Enter post:", State.POST_BODY);
+            case "5" -> offload(ChipiChipiServer::writePosts, this::userMenu);
+            case "6" -> prompt("Send message to:", State.MESSAGE_TARGET);
+            case "7" -> prompt("With whom:", State.VIEW_MESSAGES_TARGET);
+            case "8" -> { logout(); mainMenu(); }
+            case "9" -> prompt("Show posts before id (blank for latest):", State.BROWSE_CURSOR);
+            case "10" -> prompt("Show posts before id (blank for latest):", State.TIMELINE_CURSOR);
+            case "11" -> prompt("With whom:", State.OLDER_MESSAGES_TARGET);
+            case "12" -> { ChipiChipiServer.writeSuggestions(out, currentUser); userMenu(); }
+            case "13" -> prompt("Search for:", State.SEARCH_QUERY);
+            case "14" -> prompt("Search posts for (words, from:username):", State.POST_SEARCH_QUERY);
+            case "15" -> { ChipiChipiServer.joinGlobalChat(out, currentUser, outbox); state = State.CHAT_LINE; }
+            case "16" -> { ChipiChipiServer.writeLeaveGlobalChat(out, currentUser, outbox); userMenu(); }
+            default -> { out.println("Invalid."); userMenu(); }
+        }
+    }
+
+    private void onFriendRequest(String target) {
+        ChipiChipiServer.User user = currentUser;
+        offload(buffer -> buffer.println(ChipiChipiServer.sendFriendRequest(user, target)), this::userMenu);
+    }
+
+    private void onManageRequest(String res) {
+        String requester = pendingRequests.poll();
+        if (!res.equalsIgnoreCase("A") && !res.equalsIgnoreCase("R")) {
+            nextRequest();
+            return;
+        }
+        ChipiChipiServer.User user = currentUser;
+        offload(buffer -> {
+            try {
+                if (res.equalsIgnoreCase("A")) {
+                    boolean accepted = ChipiChipiServer.acceptFriendRequest(user, requester);
+                    buffer.println(accepted ? "Accepted." : ChipiChipiServer.NO_LONGER_PENDING);
+                } else {
+                    boolean rejected = ChipiChipiServer.rejectFriendRequest(user, requester);
+                    buffer.println(rejected ? "Rejected." : ChipiChipiServer.NO_LONGER_PENDING);
+                }
+            } catch (IOException e) {
+                buffer.println(ChipiChipiServer.NOT_SAVED);
+            }
+        }, this::nextRequest);
+    }
+
+    private void nextRequest() {
+        String requester = pendingRequests.peek();
+        if (requester == null) {
+            pendingRequests = null;
+            userMenu();
+            return;
+        }
+        prompt("Request from: " + requester + " (A)ccept / (R)eject?", State.MANAGE_REQUEST);
+    }
+
+    private void logout() {
+        ChipiChipiServer.loggedInUsers.remove(currentUser.username, outbox);
+        ChipiChipiServer.leaveChatRooms(currentUser.username, outbox);
+        ChipiChipiServer.homeTimeline.invalidate(currentUser.username);
+        ChipiChipiServer.friendSuggestions.invalidate(currentUser.username);
+        currentUser = null;
+    }
+
+    private void showFriends() {
+        if (currentUser.friends.isEmpty()) {
+            out.println("No friends.");
+            return;
+        }
+        out.println("Your friends:");
+        currentUser.friends.forEach(f -> out.println("- " + f));
+    }
+
+    private void mainMenu() {
+        prompt(ChipiChipiServer.MAIN_MENU, State.MAIN_MENU);
+    }
+
+    private void userMenu() {
+        prompt(ChipiChipiServer.USER_MENU, State.USER_MENU);
+    }
+
+    private void prompt(String text, State next) {
+        out.println(text);
+        state = next;
+    }
+}
@@ -0,0 +1,165 @@
+// Outbox.java
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Where other sessions send lines meant for a logged-in user (loggedInUsers
+ * maps username to Outbox). push() never blocks: if the recipient is reading
+ * too slowly and its queue is full, the line is dropped and counted. Anything
+ * pushed is already durable elsewhere, so a dropped push is only a missed
+ * notification.
+ */
+abstract class Outbox {
+    static final int CAPACITY = 1024;
+
+    static final LongAdder delivered = new LongAdder();
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder deliveryNanos = new LongAdder();
+    static final AtomicLong maxDeliveryNanos = new AtomicLong();
+
+    /**
+     * Queues a line for the client. {@code sentAt} is the System.nanoTime()
+     * at which the sender started the action, used for delivery latency.
+     */
+    abstract boolean push(String line, long sentAt);
+
+    /** Set when the client uses the framed command protocol, which gets pushes as event lines. */
+    volatile boolean framed = false;
+
+    /** Pushes a direct message, formatted for the client's protocol. */
+    boolean pushMessage(String sender, String text, long id, long sentAt) {
+        String line = framed ? CommandProtocol.event("DM", sender, text, Long.toString(id)) : "[DM from " + sender + "] " + ChipiChipiServer.oneLine(text);
+        return push(line, sentAt);
+    }
+
+    /** Pushes a chat room message, formatted for the client's protocol. */
+    boolean pushChat(ChatRoom.Broadcast broadcast, long sentAt) {
+        return push(broadcast.line(framed), sentAt);
+    }
+
+    /** Stops delivery; called on logout and disconnect. */
+    void close() {}
+
+    static void recordDelivery(long sentAt) {
+        long nanos = System.nanoTime() - sentAt;
+        delivered.increment();
+        deliveryNanos.add(nanos);
+        maxDeliveryNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    static String stats() {
+        long n = delivered.sum();
+        return "push delivered=" + n
+                + " dropped=" + dropped.sum()
+                + " avgLatencyMicros=" + (n == 0 ? 0 : deliveryNanos.sum() / n / 1000)
+                + " maxLatencyMicros=" + maxDeliveryNanos.get() / 1000;
+    }
+
+    /**
+     * Outbox for a blocking socket: a bounded queue drained by its own virtual
+     * thread, so the thread that pushes never waits on the recipient's socket.
+     */
+    static final class Queued extends Outbox {
+        /** A line plus line separator, as UTF-8. */
+        private record Delivery(byte[] bytes, long sentAt) {}
+
+        private final SocketWriter out;
+        private final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(CAPACITY);
+        private final Thread drainer;
+
+        Queued(SocketWriter out) {
+            this.out = out;
+            this.drainer = Thread.ofVirtual().name("outbox").start(this::drain);
+        }
+
+        @Override boolean push(String line, long sentAt) {
+            return offer((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8), sentAt);
+        }
+
+        /** A chat line is encoded once per room message and shared by every outbox it goes to. */
+        @Override boolean pushChat(ChatRoom.Broadcast broadcast, long sentAt) {
+            return offer(broadcast.bytes(framed), sentAt);
+        }
+
+        private boolean offer(byte[] bytes, long sentAt) {
+            if (queue.offer(new Delivery(bytes, sentAt))) return true;
+            dropped.increment();
+            return false;
+        }
+
+        @Override void close() {
+            drainer.interrupt();
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    Delivery d = queue.take();
+                    out.writeLine(d.bytes);
+                    recordDelivery(d.sentAt);
+                }
+            } catch (InterruptedException | IOException ignored) {}
+        }
+    }
+
+    /**
+     * The writer under a blocking session's PrintWriter. Characters are
+     * collected until flush and then written to the socket in one piece,
+     * under the same lock a Queued outbox takes to write a pushed line, so
+     * pushed lines never split a session's own output line.
+     *
+     * PrintWriter guards its writes with a monitor, and a virtual thread that
+     * blocks inside one pins its carrier thread. If drainers wrote through
+     * the PrintWriter, one client that stopped reading would hold a carrier
+     * for good, and with as few carriers as cores, stall every other outbox.
+     */
+    static final class SocketWriter extends Writer {
+        private final OutputStream stream;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final StringBuilder buffer = new StringBuilder();
+
+        SocketWriter(OutputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override public void write(char[] cbuf, int off, int len) {
+            buffer.append(cbuf, off, len);
+        }
+
+        @Override public void write(String str, int off, int len) {
+            buffer.append(str, off, off + len);
+        }
+
+        @Override public void flush() throws IOException {
+            if (buffer.length() == 0) return;
+            byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            buffer.setLength(0);
+            send(bytes);
+        }
+
+        @Override public void close() throws IOException {
+            flush();
+            stream.close();
+        }
+
+        /** Writes one encoded line, ending in a line separator, between the session's flushes. */
+        void writeLine(byte[] line) throws IOException {
+            send(line);
+        }
+
+        private void send(byte[] bytes) throws IOException {
+            lock.lock();
+            try {
+                stream.write(bytes);
+                stream.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+// PostSearch.java
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Full-text search over posts: an inverted index from each word to the ids
+ * of the posts that contain it.
+ *
+ * Words are runs of letters and digits, lower-cased; anything longer than
+ * MAX_WORD_LENGTH is not indexed. Authors are indexed too, under
+ * "@" + username, which no word can spell. A query is a list of words that
+ * must all appear (AND), optionally with "from:username" to keep one author's
+ * posts only.
+ *
+ * Post ids grow with time, so each posting list is in id order and the
+ * newest matches are at its end. A page is found by walking the shortest
+ * list backwards from the cursor and binary-searching the others, so a
+ * query reads only as many posts as the page shows.
+ *
+ * The index is built from posts.txt at startup and updated by savePost.
+ * Updates are serialized and applied in id order: a post whose
+ * predecessors have not been indexed yet (a concurrent savePost that has
+ * not got here, or a line another process appended) first pulls them from
+ * the PostStore. Searches take no lock and only look at posts below the
+ * volatile {@code indexed} count, so a post shows up for every word at once.
+ */
+class PostSearch {
+    static final int MAX_WORD_LENGTH = 64;
+    private static final String AUTHOR_KEY = "@";
+    private static final String FROM = "from:";
+    // posts read per positional read while building or catching up
+    private static final int CHUNK = 4096;
+
+    /** A parsed query: words that must all appear, and an author or null. */
+    record Query(List<String> words, String author) {
+        static Query parse(String text) {
+            List<String> words = new ArrayList<>();
+            String author = null;
+            for (String part : text.trim().split("\\s+")) {
+                if (part.regionMatches(true, 0, FROM, 0, FROM.length()) && part.length() > FROM.length()) {
+                    author = part.substring(FROM.length());
+                } else {
+                    for (String word : PostSearch.words(part)) {
+                        if (!words.contains(word)) words.add(word);
+                    }
+                }
+            }
+            return new Query(words, author);
+        }
+
+        boolean isEmpty() {
+            return words.isEmpty() && author == null;
+        }
+    }
+
+    private final PostStore posts;
+    private final Map<String, Postings> index = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int indexed = 0;
+
+    PostSearch(PostStore posts) {
+        this.posts = posts;
+    }
+
+    /** Indexes every post the store has that is not indexed yet. */
+    void build() throws IOException {
+        lock.lock();
+        try {
+            catchUp(posts.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Indexes a post just written by savePost. */
+    void onPost(int id, String author, String content) throws IOException {
+        lock.lock();
+        try {
+            if (id < indexed) return; // already pulled in by a later post's catch-up
+            catchUp(id);
+            add(id, author, content);
+            indexed = id + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return indexed;
+    }
+
+    int distinctWords() {
+        return index.size();
+    }
+
+    /** Newest-first page of posts matching {@code query} with ids below {@code beforeId}. */
+    List<PostStore.Post> search(Query query, long beforeId, int limit) throws IOException {
+        return posts.get(ids(query, beforeId, limit));
+    }
+
+    /** Ids of up to {@code limit} matching posts below {@code beforeId}, newest first. */
+    int[] ids(Query query, long beforeId, int limit) {
+        if (query.isEmpty() || limit <= 0) return new int[0];
+        int before = (int) Math.max(0, Math.min(beforeId, indexed));
+
+        List<String> keys = new ArrayList<>(query.words());
+        if (query.author() != null) keys.add(AUTHOR_KEY + query.author());
+        int k = keys.size();
+        int[][] lists = new int[k][];
+        int[] ends = new int[k];
+        for (int i = 0; i < k; i++) {
+            Postings p = index.get(keys.get(i));
+            if (p == null) return new int[0];
+            // size first: the array read after it holds at least that many
+            int n = p.size;
+            lists[i] = p.ids;
+            ends[i] = lowerBound(lists[i], 0, n, before);
+        }
+        // drive from the shortest list; the others only need membership checks
+        Integer[] order = new Integer[k];
+        for (int i = 0; i < k; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> ends[i]));
+
+        int[] result = new int[limit];
+        int found = 0;
+        int[] shortest = lists[order[0]];
+        candidates:
+        for (int c = ends[order[0]] - 1; c >= 0 && found < limit; c--) {
+            int id = shortest[c];
+            for (int j = 1; j < k; j++) {
+                int i = order[j];
+                // candidates only go down, so each list's search range shrinks with them
+                int end = ends[i];
+                int pos = lowerBound(lists[i], 0, end, id);
+                ends[i] = pos;
+                if (pos == end || lists[i][pos] != id) {
+                    if (pos == 0) break candidates; // nothing below id left in this list
+                    continue candidates;
+                }
+            }
+            result[found++] = id;
+        }
+        return Arrays.copyOf(result, found);
+    }
+
+    /** Lower-cased runs of letters and digits, each at most MAX_WORD_LENGTH long. */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_WORD_LENGTH) words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /** Indexes posts indexed..upTo-1 from the store; caller holds the lock. */
+    private void catchUp(int upTo) throws IOException {
+        while (indexed < upTo) {
+            List<PostStore.Post> chunk = posts.range(indexed, Math.min(CHUNK, upTo - indexed));
+            if (chunk.isEmpty()) break;
+            for (PostStore.Post post : chunk) add(post.id(), post.author(), post.content());
+            indexed = chunk.get(chunk.size() - 1).id() + 1;
+        }
+    }
+
+    private void add(int id, String author, String content) {
+        index.computeIfAbsent(AUTHOR_KEY + author, k -> new Postings()).add(id);
+        for (String word : words(content)) {
+            index.computeIfAbsent(word, k -> new Postings()).add(id);
+        }
+    }
+
+    /** First position in ids[from..to) holding a value >= key. */
+    private static int lowerBound(int[] ids, int from, int to, int key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ids[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Ids of the posts containing one word, ascending. Appended under the PostSearch lock. */
+    private static final class Postings {
+        private volatile int[] ids = new int[2];
+        private volatile int size = 0;
+
+        void add(int id) {
+            // a word repeated within one post is added once
+            if (size > 0 && ids[size - 1] == id) return;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size] = id;
+            size = size + 1;
+        }
+    }
+}
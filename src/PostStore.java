@@ -0,0 +1,368 @@
+// PostStore.java
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * posts.txt plus an in-memory offset index, so a page of posts is read with
+ * one positional read instead of a scan of the whole file. Longer ranges are
+ * read MAX_READ_BYTES at a time, so even a log over 2 GB can be walked.
+ *
+ * Content is escaped with LogText, so a post is always exactly one line.
+ * Every well-formed line (username;timestamp;content) gets a post id equal to
+ * its position among well-formed lines, so ids only grow. The index keeps the
+ * byte offset and length of each post and, per author, the ids they wrote.
+ * Malformed legacy lines stay in the file but are never indexed.
+ *
+ * Appends are serialized by a lock; readers never block. They see a post once
+ * its index entry is published through the volatile counters.
+ *
+ * With {@code mapped} set, indexing and reads go through a MappedLog instead
+ * of channel reads.
+ *
+ * Appends go through a GroupCommitLog: concurrent posts are written as one
+ * batch, forced to disk once per batch when {@code fsync} is set.
+ */
+class PostStore {
+    static final int PAGE_SIZE = 20;
+
+    record Post(int id, String author, String timestamp, String content) {
+        String render() {
+            return "[" + author + "] " + "-> " + ChipiChipiServer.oneLine(content) + " (" + timestamp + ")";
+        }
+    }
+
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final int MAX_READ_BYTES = 1 << 20;
+
+    /** A post waiting in the group-commit queue, already serialized. */
+    private record PendingPost(String author, byte[] bytes) {}
+
+    private final Path file;
+    private final boolean mapped;
+    private final GroupCommitLog<PendingPost> log;
+    private MappedLog mappedLog;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Map<String, IdList> byAuthor = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private volatile long[] offsets = new long[1024];
+    private volatile int[] lengths = new int[1024];
+    private volatile int count = 0;
+    private long indexedLength = 0;
+
+    PostStore(String file) {
+        this(file, false, false, 0);
+    }
+
+    PostStore(String file, boolean mapped, boolean fsync, long lingerMillis) {
+        this.file = Paths.get(file);
+        this.mapped = mapped;
+        this.log = new GroupCommitLog<>("posts", new GroupCommitLog.Sink<>() {
+            @Override public long[] write(List<PendingPost> batch) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    long[] ids = writeBatch(batch);
+                    Metrics.POST_WRITE.record(start);
+                    return ids;
+                } catch (IOException e) {
+                    Metrics.POST_WRITE.recordError(start);
+                    throw e;
+                }
+            }
+
+            @Override public void force() throws IOException {
+                channel.force(false);
+            }
+        }, p -> p.bytes().length, fsync, MAX_BATCH_BYTES, lingerMillis);
+    }
+
+    /** Opens the file (creating it if needed) and indexes every post in it. */
+    void open() throws IOException {
+        refresh();
+    }
+
+    /**
+     * Indexes anything appended to the file since the last call, e.g. by
+     * another process sharing posts.txt. Only the new tail is read.
+     */
+    void refresh() throws IOException {
+        appendLock.lock();
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (mapped) mappedLog = new MappedLog(channel);
+            }
+            long size = channel.size();
+            if (size <= indexedLength) return;
+            if (mapped) {
+                indexedLength = mappedLog.scan(indexedLength, size, this::indexMappedLine);
+                return;
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+            byte[] line = new byte[256];
+            int len = 0;
+            long lineStart = indexedLength;
+            long pos = indexedLength;
+            while (pos < size) {
+                chunk.clear();
+                int n = channel.read(chunk, pos);
+                if (n <= 0) break;
+                byte[] bytes = chunk.array();
+                for (int i = 0; i < n; i++) {
+                    if (bytes[i] != '\n') {
+                        if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                        line[len++] = bytes[i];
+                        continue;
+                    }
+                    indexLine(line, len, lineStart);
+                    lineStart = pos + i + 1;
+                    len = 0;
+                }
+                pos += n;
+            }
+            // a trailing partial line is picked up by a later refresh once it is complete
+            indexedLength = lineStart;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /** Appends a post and returns its id once its batch has been written. */
+    int append(String author, String timestamp, String content) throws IOException {
+        return GroupCommitLog.join(appendAsync(author, timestamp, content));
+    }
+
+    /** Same as append, without waiting; the id arrives on the group-commit writer thread. */
+    CompletableFuture<Integer> appendAsync(String author, String timestamp, String content) {
+        byte[] bytes = (author + ";" + timestamp + ";" + LogText.escape(content) + "\n").getBytes(StandardCharsets.UTF_8);
+        return log.appendAsync(new PendingPost(author, bytes)).thenApply(Long::intValue);
+    }
+
+    String commitStats() {
+        return "posts log " + log.stats();
+    }
+
+    /** Writes a batch of posts with one positional write and indexes them; runs on the writer thread. */
+    private long[] writeBatch(List<PendingPost> batch) throws IOException {
+        appendLock.lock();
+        try {
+            long offset = channel.size();
+            if (offset > indexedLength) {
+                refresh();
+            }
+            if (offset > indexedLength) {
+                // the file ends in an unterminated line; start ours on a fresh one
+                channel.write(ByteBuffer.wrap(new byte[] {'\n'}), offset);
+                offset++;
+            }
+
+            int total = 0;
+            for (PendingPost p : batch) total += p.bytes().length;
+            ByteBuffer buf = ByteBuffer.allocate(total);
+            for (PendingPost p : batch) buf.put(p.bytes());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf, offset + buf.position());
+            }
+
+            long[] ids = new long[batch.size()];
+            long pos = offset;
+            for (int i = 0; i < ids.length; i++) {
+                int length = batch.get(i).bytes().length;
+                ids[i] = publish(batch.get(i).author(), pos, length - 1);
+                pos += length;
+            }
+            indexedLength = pos;
+            return ids;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** Newest-first page of posts with ids below {@code beforeId}; pass size() for the latest page. */
+    List<Post> page(long beforeId, int limit) throws IOException {
+        int hi = (int) Math.max(0, Math.min(beforeId, count)) - 1;
+        int lo = Math.max(0, hi - limit + 1);
+        if (hi < 0) return new ArrayList<>();
+        List<Post> posts = read(lo, hi);
+        Collections.reverse(posts);
+        return posts;
+    }
+
+    /** Posts by one author, oldest first. */
+    List<Post> byAuthor(String author) throws IOException {
+        IdList ids = byAuthor.get(author);
+        List<Post> posts = new ArrayList<>();
+        if (ids == null) return posts;
+        int n = ids.size;
+        int[] values = ids.values;
+        for (int i = 0; i < n; i++) {
+            posts.add(read(values[i], values[i]).get(0));
+        }
+        return posts;
+    }
+
+    /** Up to {@code limit} ids by one author that are below {@code beforeId}, newest first. */
+    int[] idsByAuthor(String author, long beforeId, int limit) {
+        IdList ids = byAuthor.get(author);
+        if (ids == null) return new int[0];
+        int n = ids.size;
+        int[] values = ids.values;
+        int end = Arrays.binarySearch(values, 0, n, (int) Math.max(0, Math.min(beforeId, Integer.MAX_VALUE)));
+        if (end < 0) end = -end - 1;
+        int start = Math.max(0, end - limit);
+        int[] result = new int[end - start];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values[end - 1 - i];
+        }
+        return result;
+    }
+
+    /** Reads the given posts, one positional read each, in the order given. */
+    List<Post> get(int[] ids) throws IOException {
+        List<Post> posts = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            posts.add(read(id, id).get(0));
+        }
+        return posts;
+    }
+
+    /** Up to {@code limit} posts starting at id {@code fromId}, oldest first, with one read. */
+    List<Post> range(int fromId, int limit) throws IOException {
+        int hi = Math.min(fromId + limit, count) - 1;
+        if (hi < fromId) return new ArrayList<>();
+        return read(fromId, hi);
+    }
+
+    /** Every post, oldest first. */
+    List<Post> all() throws IOException {
+        List<Post> posts = new ArrayList<>(count);
+        forEach(posts::add);
+        return posts;
+    }
+
+    /** Hands every post to {@code action}, oldest first, reading MAX_READ_BYTES or so at a time. */
+    void forEach(Consumer<Post> action) throws IOException {
+        int n = count;
+        for (int lo = 0; lo < n; ) {
+            int hi = chunkEnd(lo, n - 1);
+            read(lo, hi).forEach(action);
+            lo = hi + 1;
+        }
+    }
+
+    private List<Post> read(int lo, int hi) throws IOException {
+        long start = System.nanoTime();
+        try {
+            List<Post> posts = readRange(lo, hi);
+            Metrics.POST_READ.record(start);
+            return posts;
+        } catch (IOException e) {
+            Metrics.POST_READ.recordError(start);
+            throw e;
+        }
+    }
+
+    /** Reads posts lo..hi (inclusive, ascending), one positional read per MAX_READ_BYTES or so of them. */
+    private List<Post> readRange(int lo, int hi) throws IOException {
+        List<Post> posts = new ArrayList<>(hi - lo + 1);
+        for (int from = lo; from <= hi; ) {
+            int to = chunkEnd(from, hi);
+            readChunk(from, to, posts);
+            from = to + 1;
+        }
+        return posts;
+    }
+
+    /** The last id from {@code lo} up to {@code hi} whose posts fit in one read with lo's; at least lo itself. */
+    private int chunkEnd(int lo, int hi) {
+        long[] offs = offsets;
+        int[] lens = lengths;
+        int to = lo;
+        while (to < hi && offs[to + 1] + lens[to + 1] - offs[lo] <= MAX_READ_BYTES) to++;
+        return to;
+    }
+
+    private void readChunk(int lo, int hi, List<Post> posts) throws IOException {
+        long[] offs = offsets;
+        int[] lens = lengths;
+        long start = offs[lo];
+        long end = offs[hi] + lens[hi];
+        byte[] bytes;
+        if (mapped) {
+            bytes = mappedLog.bytes(start, Math.toIntExact(end - start));
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(end - start));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, start + buf.position()) < 0) throw new EOFException(file.toString());
+            }
+            bytes = buf.array();
+        }
+
+        for (int id = lo; id <= hi; id++) {
+            String line = new String(bytes, (int) (offs[id] - start), lens[id], StandardCharsets.UTF_8);
+            String[] parts = line.split(";", 3);
+            posts.add(new Post(id, parts[0], parts[1], LogText.unescape(parts[2])));
+        }
+    }
+
+    private void indexLine(byte[] line, int len, long offset) {
+        if (len > 0 && line[len - 1] == '\r') len--;
+        int first = indexOf(line, 0, len);
+        if (first < 0 || indexOf(line, first + 1, len) < 0) return; // not username;timestamp;content
+        String author = new String(line, 0, first, StandardCharsets.UTF_8);
+        publish(author, offset, len);
+    }
+
+    /** Same as indexLine, but only the author prefix is copied out of the mapping. */
+    private void indexMappedLine(long offset, int len) throws IOException {
+        if (len > 0 && mappedLog.bytes(offset + len - 1, 1)[0] == '\r') len--;
+        long first = mappedLog.indexOf((byte) ';', offset, offset + len);
+        if (first < 0 || mappedLog.indexOf((byte) ';', first + 1, offset + len) < 0) return;
+        publish(mappedLog.read(offset, (int) (first - offset)), offset, len);
+    }
+
+    private int publish(String author, long offset, int length) {
+        int id = count;
+        if (id == offsets.length) {
+            offsets = Arrays.copyOf(offsets, id * 2);
+            lengths = Arrays.copyOf(lengths, id * 2);
+        }
+        offsets[id] = offset;
+        lengths[id] = length;
+        byAuthor.computeIfAbsent(author, k -> new IdList()).add(id);
+        count = id + 1;
+        return id;
+    }
+
+    private static int indexOf(byte[] line, int from, int len) {
+        for (int i = from; i < len; i++) {
+            if (line[i] == ';') return i;
+        }
+        return -1;
+    }
+
+    /** Append-only int list; single writer, readers take size before values. */
+    private static final class IdList {
+        private volatile int[] values = new int[8];
+        private volatile int size = 0;
+
+        void add(int id) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size] = id;
+            size = size + 1;
+        }
+    }
+}
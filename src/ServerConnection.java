@@ -0,0 +1,249 @@
+// ServerConnection.java
+
+import javax.swing.SwingUtilities;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The Swing client's connection to ChipiChipiServer, over the framed
+ * CommandProtocol.
+ *
+ * Nothing here blocks the caller. request() queues the command line for the
+ * writer thread and returns a future, which the reader thread completes when
+ * the response carrying the same id arrives: with the response fields on OK,
+ * or with a Failure holding the server's message on ERR. onEdt() runs a
+ * future's callbacks on the Swing event thread.
+ *
+ * Pushed DM and CHAT events are handed to the Listener on the event thread
+ * too. Under heavy traffic they are delivered in batches of up to
+ * EDT_BATCH per event-thread turn rather than one invokeLater each, so a
+ * flood of pushes cannot starve repaints and input.
+ */
+class ServerConnection implements Closeable {
+    static final String DEFAULT_HOST = "localhost";
+    static final int DEFAULT_PORT = 12345;
+    static final int EDT_BATCH = 200;
+
+    /** Called on the Swing event thread. */
+    interface Listener {
+        void onDirectMessage(String sender, long id, String text);
+        void onChat(String room, long id, String sender, String text);
+        void onDisconnect(String reason);
+    }
+
+    /** The server answered ERR, or the connection went away before it answered. */
+    static final class Failure extends RuntimeException {
+        Failure(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+    private final Listener listener;
+    private final Map<Long, CompletableFuture<List<String>>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final BlockingQueue<String> outgoing = new LinkedBlockingQueue<>();
+    private final Queue<Runnable> edtEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean edtScheduled = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    private ServerConnection(Socket socket, Listener listener) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.listener = listener;
+    }
+
+    /** Connects on a background thread; the future fails with an IOException if the server cannot be reached. */
+    static CompletableFuture<ServerConnection> connect(String host, int port, Listener listener) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                ServerConnection conn = new ServerConnection(socket, listener);
+                conn.hello();
+                conn.start();
+                return conn;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /** Sends CHIPI/1 at the main menu and skips the menu text until the server switches protocols. */
+    private void hello() throws IOException {
+        out.write(CommandProtocol.HELLO + "\n");
+        out.flush();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(CommandProtocol.HELLO + "\tOK")) return;
+        }
+        throw new EOFException("Server closed the connection");
+    }
+
+    private void start() {
+        Thread.ofPlatform().daemon().name("chipichipi-reader").start(this::readLoop);
+        Thread.ofPlatform().daemon().name("chipichipi-writer").start(this::writeLoop);
+    }
+
+    /** Sends {@code verb args...}; the future completes with the response fields. */
+    CompletableFuture<List<String>> request(String verb, String... args) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new Failure("Not connected."));
+            return result;
+        }
+        long id = nextId.getAndIncrement();
+        StringBuilder sb = new StringBuilder().append(id).append('\t').append(verb);
+        for (String arg : args) {
+            sb.append('\t');
+            CommandProtocol.escape(sb, arg);
+        }
+        pending.put(id, result);
+        outgoing.add(sb.append('\n').toString());
+        // closed between the check and the put: nobody else will fail it
+        if (closed && pending.remove(id) != null) result.completeExceptionally(new Failure("Not connected."));
+        return result;
+    }
+
+    /**
+     * Runs {@code onSuccess} or {@code onFailure} (with a message fit for the
+     * user) on the Swing event thread once {@code future} completes.
+     */
+    static <T> void onEdt(CompletableFuture<T> future, Consumer<T> onSuccess, Consumer<String> onFailure) {
+        future.whenComplete((value, error) -> SwingUtilities.invokeLater(() -> {
+            if (error == null) {
+                onSuccess.accept(value);
+            } else {
+                onFailure.accept(message(error));
+            }
+        }));
+    }
+
+    /** UTF-8 bytes that {@code fields} took in a response line, not counting its id and status. */
+    static int wireSize(List<String> fields) {
+        StringBuilder sb = new StringBuilder();
+        for (String field : fields) {
+            sb.append('\t');
+            CommandProtocol.escape(sb, field);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    static String message(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof Failure) return error.getMessage();
+        return "Cannot reach server: " + error.getMessage();
+    }
+
+    @Override public void close() {
+        shutdown("Disconnected.");
+    }
+
+    private void readLoop() {
+        String reason = "Server closed the connection.";
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = CommandProtocol.split(line);
+                if (f[0].equals(CommandProtocol.PUSH_ID)) {
+                    onPush(f);
+                    continue;
+                }
+                CompletableFuture<List<String>> future;
+                try {
+                    future = pending.remove(Long.parseLong(f[0]));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (future == null) continue;
+                if (f.length > 1 && f[1].equals("OK")) {
+                    future.complete(Arrays.asList(f).subList(2, f.length));
+                } else {
+                    future.completeExceptionally(new Failure(f.length > 2 ? f[2] : "Request failed."));
+                }
+            }
+        } catch (IOException e) {
+            reason = "Connection lost: " + e.getMessage();
+        } catch (RuntimeException e) {
+            // a line the client cannot handle must not leave pending requests waiting forever
+            reason = "Connection error: " + e;
+        }
+        shutdown(reason);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                String line = outgoing.take();
+                if (line.isEmpty()) return; // queued by shutdown
+                out.write(line);
+                // pipelined requests queued meanwhile leave in the same packet
+                if (outgoing.isEmpty()) out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            shutdown("Connection lost: " + e.getMessage());
+        }
+    }
+
+    /** Hands a push to the listener on the EDT; one that is malformed is dropped here, on the reader thread. */
+    private void onPush(String[] f) {
+        if (f.length < 2) return;
+        try {
+            switch (f[1]) {
+                case "DM" -> {
+                    if (f.length < 5) return;
+                    long id = Long.parseLong(f[4]);
+                    toEdt(() -> listener.onDirectMessage(f[2], id, f[3]));
+                }
+                case "CHAT" -> {
+                    if (f.length < 6) return;
+                    long id = Long.parseLong(f[3]);
+                    toEdt(() -> listener.onChat(f[2], id, f[4], f[5]));
+                }
+                default -> { }
+            }
+        } catch (NumberFormatException e) {
+            // a push without a valid id
+        }
+    }
+
+    private void toEdt(Runnable event) {
+        edtEvents.add(event);
+        if (edtScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drainEdtEvents);
+    }
+
+    private void drainEdtEvents() {
+        edtScheduled.set(false);
+        Runnable event;
+        for (int i = 0; i < EDT_BATCH && (event = edtEvents.poll()) != null; i++) event.run();
+        // leave the rest for a later turn, after whatever input and painting is queued now
+        if (!edtEvents.isEmpty() && edtScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drainEdtEvents);
+    }
+
+    private void shutdown(String reason) {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        outgoing.add("");
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        for (Long id : new ArrayList<>(pending.keySet())) {
+            CompletableFuture<List<String>> future = pending.remove(id);
+            if (future != null) future.completeExceptionally(new Failure(reason));
+        }
+        toEdt(() -> listener.onDisconnect(reason));
+    }
+}
@@ -0,0 +1,177 @@
+// SocialGraph.java
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns every change to the friend graph (User.friends / User.friendRequests),
+ * and adds newly registered users to it.
+ *
+ * Users hash onto a fixed set of lock stripes. A change touching two users
+ * (request, accept, reject) takes both stripes, lowest index first, so it is
+ * atomic with respect to any other change to either user and cannot deadlock.
+ * The change is logged to the UserStore while the stripes are held, before it
+ * is applied, so the log order matches the order changes were applied; if
+ * the append fails, the change is not applied and the IOException reaches
+ * the caller. A registration is logged under the new user's stripe before
+ * the user is put in the map, so no change to the user can be logged ahead
+ * of its C record.
+ *
+ * The sets themselves are concurrent, so reads (friend lists, membership
+ * checks, timelines) never take a lock; they see each set as it was at some
+ * point but may see one side of an accept before the other.
+ *
+ * Accepts are reported to FriendSuggestions, when there is one, while the
+ * stripes are still held.
+ *
+ * Compaction takes every stripe before the store lock, so the snapshot it
+ * writes is a consistent cut of the graph. Lock order is always stripes, then
+ * the UserStore lock.
+ */
+class SocialGraph {
+    private static final int STRIPES = 64;
+
+    enum RequestResult {
+        SENT("Request sent."),
+        NO_SUCH_USER("User not found."),
+        ALREADY_FRIENDS("Already friends."),
+        ALREADY_SENT("Request already sent.");
+
+        final String reply;
+
+        RequestResult(String reply) {
+            this.reply = reply;
+        }
+    }
+
+    private final Map<String, ChipiChipiServer.User> users;
+    private final UserStore store;
+    private final FriendSuggestions suggestions;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    SocialGraph(Map<String, ChipiChipiServer.User> users, UserStore store) {
+        this(users, store, null);
+    }
+
+    SocialGraph(Map<String, ChipiChipiServer.User> users, UserStore store, FriendSuggestions suggestions) {
+        this.users = users;
+        this.store = store;
+        this.suggestions = suggestions;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    /** Adds {@code user} once its C record is logged; false if the name is taken. */
+    boolean register(ChipiChipiServer.User user) throws IOException {
+        ReentrantLock stripe = stripes[stripe(user.username)];
+        stripe.lock();
+        try {
+            // every registration of this name takes this stripe, so the check holds until the put
+            if (users.containsKey(user.username)) return false;
+            store.userCreated(user);
+            users.put(user.username, user);
+        } finally {
+            stripe.unlock();
+        }
+        compactIfDue();
+        return true;
+    }
+
+    RequestResult request(String from, String to) throws IOException {
+        ChipiChipiServer.User target = users.get(to);
+        ChipiChipiServer.User sender = users.get(from);
+        if (target == null || sender == null) return RequestResult.NO_SUCH_USER;
+        RequestResult result;
+        lockPair(from, to);
+        try {
+            if (sender.friends.contains(to)) {
+                result = RequestResult.ALREADY_FRIENDS;
+            } else if (target.friendRequests.contains(from)) {
+                result = RequestResult.ALREADY_SENT;
+            } else {
+                store.requestSent(from, to);
+                target.friendRequests.add(from);
+                result = RequestResult.SENT;
+            }
+        } finally {
+            unlockPair(from, to);
+        }
+        compactIfDue();
+        return result;
+    }
+
+    /** Makes {@code user} and {@code requester} friends; false if there was no pending request. */
+    boolean accept(String user, String requester) throws IOException {
+        ChipiChipiServer.User u = users.get(user);
+        ChipiChipiServer.User r = users.get(requester);
+        if (u == null || r == null) return false;
+        lockPair(user, requester);
+        try {
+            if (!u.friendRequests.contains(requester)) return false;
+            store.requestAccepted(user, requester);
+            u.friendRequests.remove(requester);
+            long ticket = suggestions != null ? suggestions.beginChange() : 0;
+            u.friends.add(requester);
+            r.friends.add(user);
+            if (suggestions != null) suggestions.endChange(user, requester, ticket);
+        } finally {
+            unlockPair(user, requester);
+        }
+        compactIfDue();
+        return true;
+    }
+
+    /** Drops the pending request; false if there was none. */
+    boolean reject(String user, String requester) throws IOException {
+        ChipiChipiServer.User u = users.get(user);
+        if (u == null) return false;
+        lockPair(user, requester);
+        try {
+            if (!u.friendRequests.contains(requester)) return false;
+            store.requestRejected(user, requester);
+            u.friendRequests.remove(requester);
+        } finally {
+            unlockPair(user, requester);
+        }
+        compactIfDue();
+        return true;
+    }
+
+    boolean areFriends(String a, String b) {
+        ChipiChipiServer.User user = users.get(a);
+        return user != null && user.friends.contains(b);
+    }
+
+    /** Folds the user log into a new snapshot once it has grown enough. */
+    void compactIfDue() {
+        if (store.compactionDue()) compact();
+    }
+
+    /** Writes a snapshot with every stripe held, so no change is half-applied in it. */
+    void compact() {
+        for (ReentrantLock stripe : stripes) stripe.lock();
+        try {
+            store.compact();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) stripes[i].unlock();
+        }
+    }
+
+    private void lockPair(String a, String b) {
+        int i = stripe(a);
+        int j = stripe(b);
+        stripes[Math.min(i, j)].lock();
+        if (i != j) stripes[Math.max(i, j)].lock();
+    }
+
+    private void unlockPair(String a, String b) {
+        int i = stripe(a);
+        int j = stripe(b);
+        if (i != j) stripes[Math.max(i, j)].unlock();
+        stripes[Math.min(i, j)].unlock();
+    }
+
+    private static int stripe(String username) {
+        return Math.floorMod(username.hashCode(), STRIPES);
+    }
+}
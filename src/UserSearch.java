@@ -0,0 +1,270 @@
+// UserSearch.java
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Username lookup by prefix, with typo-tolerant matches as a fallback.
+ *
+ * Prefix matches come from a case-insensitive sorted set, so a query is one
+ * O(log n) seek plus one step per result. Fuzzy matches come from a trigram
+ * index: every name is split into overlapping three-letter pieces ("$$b",
+ * "$bo", "bob", "ob$", "b$$") and each piece keeps the list of names that
+ * contain it. A name one typo (substitution, insertion or deletion) away
+ * from the query shares all but at most three of the query's pieces, so it
+ * is in at least two of the query's five rarest lists. Those lists are merged
+ * in id order, and only names found in enough of them are compared with the
+ * query (a linear one-edit check).
+ *
+ * At startup the index is built on a background thread (building()), since a
+ * million names take seconds; until it is done, searches scan the live
+ * username table instead: the same prefix matches and every name one typo
+ * away, only slower.
+ *
+ * Names are added as users register and never removed. Adds are serialized;
+ * searches take no lock. Every array a search reads is only ever appended
+ * to, and a search only looks at entries that were published (through a
+ * volatile count) before it started.
+ */
+class UserSearch {
+    static final int DEFAULT_LIMIT = 10;
+    // stop merging fuzzy candidate lists after this many entries, so a query made of very common pieces stays fast
+    private static final int MAX_FUZZY_POSTINGS = 20_000;
+    // how many of the query's rarest trigram lists are merged for fuzzy candidates
+    private static final int WINDOW = 5;
+
+    private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private final NavigableSet<String> sorted = new ConcurrentSkipListSet<>(ORDER);
+    private final Map<String, Postings> trigrams = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    // name lengths by id, so fuzzy candidates of the wrong length are ruled out without touching their string
+    private volatile short[] lengths = new short[16];
+    private volatile int published = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    // the names to scan until the index is ready; null once it is
+    private volatile Collection<String> pending;
+
+    /** An index over {@code usernames}, built before it returns. */
+    static UserSearch of(Collection<String> usernames) {
+        UserSearch search = new UserSearch();
+        for (String username : usernames) search.add(username);
+        return search;
+    }
+
+    /**
+     * An index over {@code usernames}, a live view such as the user table's key
+     * set, built on a background thread. Names registered meanwhile must still
+     * be passed to add(); adding one twice is harmless.
+     */
+    static UserSearch building(Collection<String> usernames) {
+        UserSearch search = new UserSearch();
+        search.pending = usernames;
+        Thread.ofPlatform().daemon().name("user-search-index").start(() -> {
+            long start = System.nanoTime();
+            try {
+                for (String username : usernames) search.add(username);
+                search.pending = null;
+                System.out.printf("User search index: %,d names in %,d ms%n",
+                        search.size(), (System.nanoTime() - start) / 1_000_000);
+            } catch (RuntimeException e) {
+                // searches keep scanning the user table
+                System.out.println("Error building user search index: " + e.getMessage());
+            }
+        });
+        return search;
+    }
+
+    /** Whether searches use the index rather than a scan of the user table. */
+    boolean ready() {
+        return pending == null;
+    }
+
+    /** Indexes a newly registered name. */
+    void add(String username) {
+        if (!sorted.add(username)) return;
+        lock.lock();
+        try {
+            int id = published;
+            if (id == names.length) {
+                names = Arrays.copyOf(names, id * 2);
+                lengths = Arrays.copyOf(lengths, id * 2);
+            }
+            names[id] = username;
+            lengths[id] = (short) Math.min(username.length(), Short.MAX_VALUE);
+            for (String gram : grams(username)) {
+                trigrams.computeIfAbsent(gram, g -> new Postings()).add(id);
+            }
+            published = id + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        Collection<String> scanned = pending;
+        return scanned != null ? scanned.size() : sorted.size();
+    }
+
+    /**
+     * Up to {@code limit} usernames for {@code query}: an exact (case-insensitive)
+     * match first, then prefix matches in alphabetical order, then names within
+     * a small edit distance, closest first.
+     */
+    List<String> search(String query, int limit) {
+        query = query.trim();
+        if (query.isEmpty() || limit <= 0) return new ArrayList<>();
+        List<String> result = new ArrayList<>(limit);
+        Collection<String> scanned = pending;
+        if (scanned != null) return scan(scanned, query, limit);
+
+        // the upper-case spelling sorts first among names that differ from it only in case
+        StringBuilder from = new StringBuilder(query.length());
+        for (int i = 0; i < query.length(); i++) from.append(Character.toUpperCase(query.charAt(i)));
+        for (String name : sorted.tailSet(from.toString(), true)) {
+            if (!name.regionMatches(true, 0, query, 0, query.length())) break;
+            if (name.equalsIgnoreCase(query)) {
+                result.add(0, name);
+            } else {
+                result.add(name);
+            }
+            if (result.size() == limit) return result;
+        }
+        for (String name : fuzzy(query, limit - result.size(), result)) result.add(name);
+        return result;
+    }
+
+    private List<String> fuzzy(String query, int limit, List<String> exclude) {
+        int known = published;
+        String[] names = this.names;
+        short[] lengths = this.lengths;
+        List<Postings.Slice> lists = new ArrayList<>();
+        int missing = 0;
+        for (String gram : grams(query)) {
+            Postings p = trigrams.get(gram);
+            if (p != null) {
+                lists.add(p.snapshot());
+            } else {
+                missing++;
+            }
+        }
+        // a piece nobody has is one of the (at most three) pieces the typo broke
+        if (missing > 3) return List.of();
+        lists.sort(Comparator.comparingInt(Postings.Slice::size));
+
+        // a match is absent from at most 3 - missing of the lists, so it is in all but that many of the rarest ones
+        int k = Math.min(lists.size(), WINDOW - missing);
+        int needed = Math.max(1, k - (3 - missing));
+        int[][] ids = new int[k][];
+        int[] sizes = new int[k];
+        int[] pos = new int[k];
+        for (int i = 0; i < k; i++) {
+            ids[i] = lists.get(i).ids();
+            sizes[i] = lists.get(i).size();
+        }
+
+        // lists are in id order, so one merge pass counts how many of them each id is in
+        TreeSet<String> matches = new TreeSet<>(ORDER);
+        int scanned = 0;
+        while (scanned < MAX_FUZZY_POSTINGS) {
+            int id = Integer.MAX_VALUE;
+            for (int i = 0; i < k; i++) {
+                if (pos[i] < sizes[i]) id = Math.min(id, ids[i][pos[i]]);
+            }
+            if (id >= known) break;
+            int count = 0;
+            for (int i = 0; i < k; i++) {
+                if (pos[i] < sizes[i] && ids[i][pos[i]] == id) {
+                    count++;
+                    pos[i]++;
+                }
+            }
+            scanned += count;
+            if (count < needed || Math.abs(lengths[id] - query.length()) > 1) continue;
+            String name = names[id];
+            if (oneEditApart(query, name) && !exclude.contains(name)) matches.add(name);
+        }
+        return matches.stream().limit(limit).toList();
+    }
+
+    /** What search() returns, found by comparing the query with every name; for use until the index is ready. */
+    private static List<String> scan(Collection<String> usernames, String query, int limit) {
+        TreeSet<String> prefixed = new TreeSet<>(ORDER);
+        TreeSet<String> close = new TreeSet<>(ORDER);
+        for (String name : usernames) {
+            if (name.regionMatches(true, 0, query, 0, query.length())) {
+                prefixed.add(name);
+            } else if (oneEditApart(query, name)) {
+                close.add(name);
+            }
+        }
+        List<String> result = new ArrayList<>(limit);
+        for (String name : prefixed) {
+            if (name.equalsIgnoreCase(query)) {
+                result.add(0, name);
+            } else {
+                result.add(name);
+            }
+            if (result.size() == limit) return result;
+        }
+        for (String name : close) {
+            if (result.size() == limit) return result;
+            result.add(name);
+        }
+        return result;
+    }
+
+    /** Lower-cased trigrams of the name padded with two '$' on each side. */
+    private static List<String> grams(String name) {
+        String padded = "$$" + name.toLowerCase(Locale.ROOT) + "$$";
+        List<String> grams = new ArrayList<>(padded.length() - 2);
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            String gram = padded.substring(i, i + 3);
+            if (!grams.contains(gram)) grams.add(gram);
+        }
+        return grams;
+    }
+
+    /** Whether one substitution, insertion or deletion turns {@code a} into {@code b}, ignoring case. */
+    static boolean oneEditApart(String a, String b) {
+        if (a.length() > b.length()) {
+            String t = a;
+            a = b;
+            b = t;
+        }
+        int diff = b.length() - a.length();
+        if (diff > 1) return false;
+        int i = 0;
+        while (i < a.length() && same(a.charAt(i), b.charAt(i))) i++;
+        if (i == a.length()) return diff == 1; // equal strings are prefix matches, not typos
+        // skip the one differing char of b (insertion) or of both (substitution), then the rest must match
+        int j = diff == 1 ? i : i + 1;
+        return a.regionMatches(true, j, b, j + diff, a.length() - j);
+    }
+
+    private static boolean same(char x, char y) {
+        return x == y || Character.toLowerCase(x) == Character.toLowerCase(y);
+    }
+
+    /** Ids of the names containing one trigram, in the order they were added. Appended under the UserSearch lock. */
+    private static final class Postings {
+        private volatile int[] ids = new int[2];
+        private volatile int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size] = id;
+            size = size + 1;
+        }
+
+        record Slice(int[] ids, int size) {}
+
+        /** The ids added so far, without copying; size is read first, so the array read after it holds at least that many. */
+        Slice snapshot() {
+            int n = size;
+            return new Slice(ids, n);
+        }
+    }
+}
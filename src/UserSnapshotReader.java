@@ -0,0 +1,280 @@
+// UserSnapshotReader.java
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parses users.txt (username;password;age;gender;country;friends;requests,
+ * lists comma-separated) on every core at startup.
+ *
+ * The file is cut into CHUNK_BYTES pieces that end on line breaks, and a
+ * fork-join task splits the list of pieces in half until each task owns
+ * one. Each piece is read with one positional read and parsed straight from
+ * the bytes: fields are found by scanning for ';' and ',' (ASCII bytes never
+ * occur inside a multi-byte UTF-8 character) and the age is read digit by
+ * digit, so there is no regex split and no per-line String to cut up.
+ * Friend sets are created at their final size.
+ *
+ * Rows with fewer than five fields or an age that is not a number are
+ * skipped and counted (they used to stop the server from starting). If a
+ * username appears on several rows the last one wins, as it did when the
+ * file was read line by line. With a CompactGraph every row of a name adds
+ * to the one friend list the graph keeps for it, so the winning row's chunk
+ * is read again to cut that list back to the row's own friends.
+ */
+class UserSnapshotReader {
+    static final int CHUNK_BYTES = 4 << 20;
+
+    private final FileChannel channel;
+    private final Map<String, ChipiChipiServer.User> users;
+    private final Set<String> duplicated = ConcurrentHashMap.newKeySet();
+    private final LongAdder malformed = new LongAdder();
+    // each chunk's users, by chunk; the Parse tasks fill distinct slots
+    private List<List<ChipiChipiServer.User>> parsed;
+
+    private UserSnapshotReader(FileChannel channel, Map<String, ChipiChipiServer.User> users) {
+        this.channel = channel;
+        this.users = users;
+    }
+
+    /** Called with the bounds of each non-empty line, without its line break. */
+    private interface Row {
+        void accept(byte[] b, int from, int to);
+    }
+
+    /** Adds every user in {@code file} to {@code users}; returns the number of malformed rows skipped. */
+    static long read(Path file, Map<String, ChipiChipiServer.User> users) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            UserSnapshotReader reader = new UserSnapshotReader(channel, users);
+            reader.readAll();
+            return reader.malformed.sum();
+        }
+    }
+
+    private void readAll() throws IOException {
+        long[] bounds = chunkBounds();
+        parsed = new ArrayList<>(Collections.nCopies(bounds.length - 1, null));
+        try {
+            ForkJoinPool.commonPool().invoke(new Parse(bounds, 0, bounds.length - 1));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (duplicated.isEmpty()) return;
+        // rare: settle repeated names in file order so the last row wins
+        Map<String, Integer> lastChunk = new HashMap<>();
+        for (int c = 0; c < parsed.size(); c++) {
+            for (ChipiChipiServer.User user : parsed.get(c)) {
+                if (!duplicated.contains(user.username)) continue;
+                users.put(user.username, user);
+                lastChunk.put(user.username, c);
+            }
+        }
+        if (ChipiChipiServer.compactGraph != null) keepLastRowFriends(bounds, lastChunk);
+    }
+
+    /**
+     * Every row of a repeated name shared one CompactGraph list, so it now
+     * holds the friends of all of them; drops those the last row does not list.
+     */
+    private void keepLastRowFriends(long[] bounds, Map<String, Integer> lastChunk) throws IOException {
+        Map<String, List<String>> lastRow = new HashMap<>();
+        for (int c : new TreeSet<>(lastChunk.values())) {
+            int chunk = c;
+            forEachRow(readChunk(bounds[c], bounds[c + 1]), (b, from, to) -> {
+                int[] ends = fieldEnds(b, from, to);
+                if (!isWellFormed(b, ends)) return;
+                String username = string(b, from, ends[0]);
+                if (Objects.equals(lastChunk.get(username), chunk)) {
+                    lastRow.put(username, ends.length > 5 ? names(b, ends[4] + 1, ends[5]) : List.of());
+                }
+            });
+        }
+        lastRow.forEach((username, keep) -> {
+            Set<String> friends = users.get(username).friends;
+            for (String friend : List.copyOf(friends)) {
+                if (!keep.contains(friend)) friends.remove(friend);
+            }
+        });
+    }
+
+    /** Chunk start offsets plus the file size; every start but the first follows a '\n'. */
+    private long[] chunkBounds() throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long next = CHUNK_BYTES;
+        while (next < size) {
+            long lineEnd = -1;
+            long pos = next;
+            while (lineEnd < 0 && pos < size) {
+                buf.clear();
+                int n = channel.read(buf, pos);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (buf.get(i) == '\n') {
+                        lineEnd = pos + i;
+                        break;
+                    }
+                }
+                pos += n;
+            }
+            if (lineEnd < 0 || lineEnd + 1 >= size) break;
+            bounds.add(lineEnd + 1);
+            next = lineEnd + 1 + CHUNK_BYTES;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    /** Parses chunks lo..hi-1, splitting until one chunk is left. */
+    private final class Parse extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] bounds;
+        private final int lo, hi;
+
+        Parse(long[] bounds, int lo, int hi) {
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Parse(bounds, lo, mid), new Parse(bounds, mid, hi));
+                return;
+            }
+            try {
+                parsed.set(lo, parseChunk(bounds[lo], bounds[lo + 1]));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private List<ChipiChipiServer.User> parseChunk(long start, long end) throws IOException {
+        List<ChipiChipiServer.User> chunk = new ArrayList<>();
+        forEachRow(readChunk(start, end), (b, from, to) -> {
+            ChipiChipiServer.User user = parseLine(b, from, to);
+            if (user == null) {
+                malformed.increment();
+            } else {
+                chunk.add(user);
+                if (users.putIfAbsent(user.username, user) != null) duplicated.add(user.username);
+            }
+        });
+        return chunk;
+    }
+
+    private byte[] readChunk(long start, long end) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(end - start));
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, start + buf.position()) < 0) throw new EOFException(String.valueOf(start + buf.position()));
+        }
+        return buf.array();
+    }
+
+    private static void forEachRow(byte[] bytes, Row row) {
+        int lineStart = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i < bytes.length && bytes[i] != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') lineEnd--;
+            if (lineEnd > lineStart) row.accept(bytes, lineStart, lineEnd);
+            lineStart = i + 1;
+        }
+    }
+
+    /** One row, or null if it is malformed. Trailing empty fields may be left out, as split(";") allowed. */
+    private static ChipiChipiServer.User parseLine(byte[] b, int from, int to) {
+        int[] fieldEnds = fieldEnds(b, from, to);
+        int fields = fieldEnds.length;
+        if (fields < 5) return null;
+        long age = parseAge(b, fieldEnds[1] + 1, fieldEnds[2]);
+        if (age == Long.MIN_VALUE) return null;
+
+        List<String> friends = fields > 5 ? names(b, fieldEnds[4] + 1, fieldEnds[5]) : List.of();
+        ChipiChipiServer.User user = new ChipiChipiServer.User(
+                string(b, from, fieldEnds[0]),
+                string(b, fieldEnds[0] + 1, fieldEnds[1]),
+                (int) age,
+                string(b, fieldEnds[2] + 1, fieldEnds[3]),
+                string(b, fieldEnds[3] + 1, fieldEnds[4]),
+                friends.size());
+        // one addAll, so a compact-graph friend list is merged once rather than copied per name
+        user.friends.addAll(friends);
+        if (fields > 6) user.friendRequests.addAll(names(b, fieldEnds[5] + 1, fieldEnds[6]));
+        return user;
+    }
+
+    /** Where each of a row's first seven ';'-separated fields ends; fewer if the row has fewer. */
+    private static int[] fieldEnds(byte[] b, int from, int to) {
+        int[] ends = new int[7];
+        int fields = 0;
+        int pos = from;
+        while (fields < 7) {
+            int end = indexOf(b, (byte) ';', pos, to);
+            ends[fields++] = end;
+            if (end == to) break;
+            pos = end + 1;
+        }
+        return fields == 7 ? ends : Arrays.copyOf(ends, fields);
+    }
+
+    /** What parseLine accepts: at least five fields, and an age that parses. */
+    private static boolean isWellFormed(byte[] b, int[] fieldEnds) {
+        return fieldEnds.length >= 5 && parseAge(b, fieldEnds[1] + 1, fieldEnds[2]) != Long.MIN_VALUE;
+    }
+
+    private static List<String> names(byte[] b, int from, int to) {
+        List<String> names = new ArrayList<>();
+        int pos = from;
+        while (pos < to) {
+            int end = indexOf(b, (byte) ',', pos, to);
+            if (end > pos) names.add(string(b, pos, end));
+            pos = end + 1;
+        }
+        return names;
+    }
+
+    /** The age as Integer.parseInt reads it, or Long.MIN_VALUE if it is not a number. */
+    private static long parseAge(byte[] b, int from, int to) {
+        int value = 0;
+        boolean digits = from < to && to - from <= 9;
+        for (int i = from; digits && i < to; i++) {
+            int d = b[i] - '0';
+            digits = d >= 0 && d <= 9;
+            value = value * 10 + d;
+        }
+        if (digits) return value;
+        // signs and other rare spellings
+        try {
+            return Integer.parseInt(string(b, from, to));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static int indexOf(byte[] b, byte c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) return i;
+        }
+        return to;
+    }
+
+    private static String string(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.UTF_8);
+    }
+}
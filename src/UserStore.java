@@ -0,0 +1,251 @@
+// UserStore.java
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persists the user table as a snapshot (users.txt, same format as before,
+ * parsed in parallel by UserSnapshotReader; or users.bin, see
+ * BinaryUserSnapshot, when the file name ends in ".bin") plus an
+ * append-only mutation log (users.log).
+ *
+ * Every register / friend request / accept / reject appends one short record
+ * to the log instead of rewriting the whole snapshot. Once the log has grown
+ * by COMPACT_EVERY records, SocialGraph folds it into a fresh snapshot and
+ * truncates it (compaction needs the graph held still, so the store cannot
+ * start it from inside an append). A record that cannot be written (or
+ * forced to disk, with fsync on) is cut off again and the IOException is
+ * thrown to the caller, which must then leave the change unapplied.
+ *
+ * Log records, one per line:
+ *   C;username;password;age;gender;country   user created
+ *   S;from;to                                 friend request sent
+ *   A;user;requester                          request accepted
+ *   R;user;requester                          request rejected
+ *
+ * Replaying the log over a snapshot that already contains some of its
+ * records yields the same state, so a crash between writing a snapshot and
+ * truncating the log is harmless. A torn final record (no trailing newline,
+ * or cut short so its fields do not parse) is discarded on startup and cut
+ * off the log; a malformed record before it is skipped and reported.
+ */
+class UserStore {
+    private static final int COMPACT_EVERY = 10_000;
+
+    private final Path snapshotFile;
+    private final boolean binary;
+    private final Path logFile;
+    private final boolean fsync;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Map<String, ChipiChipiServer.User> users;
+    private FileChannel log;
+    private volatile int recordsSinceSnapshot = 0;
+
+    UserStore(String snapshotFile, String logFile, boolean fsync) {
+        this.snapshotFile = Paths.get(snapshotFile);
+        this.binary = snapshotFile.endsWith(".bin");
+        this.logFile = Paths.get(logFile);
+        this.fsync = fsync;
+    }
+
+    /** Loads the snapshot, replays the log on top of it and opens the log for appending. */
+    void load(Map<String, ChipiChipiServer.User> users) throws IOException {
+        this.users = users;
+        if (Files.exists(snapshotFile) && binary) {
+            BinaryUserSnapshot.read(snapshotFile, users);
+        } else if (Files.exists(snapshotFile)) {
+            long skipped = UserSnapshotReader.read(snapshotFile, users);
+            if (skipped > 0) System.out.println("Skipped " + skipped + " malformed rows in " + snapshotFile);
+        }
+
+        long durableLength = replayLog();
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.truncate(durableLength);
+        log.position(durableLength);
+
+        // start every run from a compact snapshot so the log only holds this run's mutations
+        if (durableLength > 0) compact();
+    }
+
+    void userCreated(ChipiChipiServer.User user) throws IOException {
+        append("C;" + user.username + ";" + user.password + ";" + user.age + ";" + user.gender + ";" + user.country);
+    }
+
+    void requestSent(String from, String to) throws IOException {
+        append("S;" + from + ";" + to);
+    }
+
+    void requestAccepted(String username, String requester) throws IOException {
+        append("A;" + username + ";" + requester);
+    }
+
+    void requestRejected(String username, String requester) throws IOException {
+        append("R;" + username + ";" + requester);
+    }
+
+    /** Closes the log; the store must be loaded again before further mutations. */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            if (log != null) log.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean compactionDue() {
+        return recordsSinceSnapshot >= COMPACT_EVERY;
+    }
+
+    /**
+     * Writes the in-memory table as a new snapshot and empties the log. While
+     * the server runs, call it through SocialGraph.compact() so no friend
+     * change is half-applied in the snapshot.
+     */
+    void compact() {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            if (binary) {
+                BinaryUserSnapshot.write(tmp, users.values());
+            } else {
+                writeText(tmp);
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.truncate(0);
+            log.position(0);
+            if (fsync) log.force(true);
+            recordsSinceSnapshot = 0;
+            Metrics.SAVE_USERS.record(start);
+        } catch (IOException e) {
+            System.out.println("Error saving users: " + e.getMessage());
+            Metrics.SAVE_USERS.recordError(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeText(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder sb = new StringBuilder();
+            for (ChipiChipiServer.User user : users.values()) {
+                String friendStr = String.join(",", user.friends);
+                String requestStr = String.join(",", user.friendRequests);
+                sb.append(user.username).append(';').append(user.password).append(';').append(user.age)
+                        .append(';').append(user.gender).append(';').append(user.country)
+                        .append(';').append(friendStr).append(';').append(requestStr).append('\n');
+            }
+            writeFully(ch, sb.toString());
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Appends one record, forced to disk with fsync on. If that fails the
+     * record is cut off again and the error is thrown, so the caller can
+     * leave the change unapplied and tell the client.
+     */
+    private void append(String record) throws IOException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            long end = log.position();
+            try {
+                writeFully(log, record + "\n");
+                if (fsync) log.force(false);
+            } catch (IOException e) {
+                System.out.println("Error saving users: " + e.getMessage());
+                Metrics.USER_LOG_APPEND.recordError(start);
+                try {
+                    log.truncate(end);
+                    log.position(end);
+                } catch (IOException ignored) {
+                    // replay discards whatever part of the record is left, unless more records follow it
+                }
+                throw e;
+            }
+            Metrics.USER_LOG_APPEND.record(start);
+            recordsSinceSnapshot++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Applies every complete log record and returns the byte length up to the last one that applied. */
+    private long replayLog() throws IOException {
+        if (!Files.exists(logFile)) return 0;
+        byte[] bytes = Files.readAllBytes(logFile);
+        int start = 0;
+        int applied = 0; // end of the last record that applied
+        int malformed = 0; // records since then that did not
+        long skipped = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            if (apply(new String(bytes, start, i - start, StandardCharsets.UTF_8))) {
+                skipped += malformed;
+                malformed = 0;
+                applied = i + 1;
+            } else {
+                malformed++;
+            }
+            start = i + 1;
+        }
+        // anything after the last good record was being written when the server stopped
+        if (applied < bytes.length) System.out.println("Discarding torn record at end of " + logFile);
+        if (skipped > 0) System.out.println("Skipped " + skipped + " malformed records in " + logFile);
+        return applied;
+    }
+
+    /** Applies one record; false if it is malformed and was left out. */
+    private boolean apply(String record) {
+        String[] parts = record.split(";", -1);
+        switch (parts[0]) {
+            case "C" -> {
+                if (parts.length != 6) return false;
+                int age;
+                try {
+                    age = Integer.parseInt(parts[3]);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                ChipiChipiServer.User user = new ChipiChipiServer.User(parts[1], parts[2], age, parts[4], parts[5]);
+                users.putIfAbsent(user.username, user);
+            }
+            case "S" -> {
+                if (parts.length != 3) return false;
+                ChipiChipiServer.User target = users.get(parts[2]);
+                if (target != null) target.friendRequests.add(parts[1]);
+            }
+            case "A" -> {
+                if (parts.length != 3) return false;
+                ChipiChipiServer.User user = users.get(parts[1]);
+                ChipiChipiServer.User requester = users.get(parts[2]);
+                if (user == null || requester == null) return true;
+                user.friends.add(requester.username);
+                requester.friends.add(user.username);
+                user.friendRequests.remove(requester.username);
+            }
+            case "R" -> {
+                if (parts.length != 3) return false;
+                ChipiChipiServer.User user = users.get(parts[1]);
+                if (user != null) user.friendRequests.remove(parts[2]);
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel ch, String text) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+}